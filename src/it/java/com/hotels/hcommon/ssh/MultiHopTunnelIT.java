@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNoException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hotels.hcommon.ssh.harness.Connection;
+import com.hotels.hcommon.ssh.harness.EchoServer;
+import com.hotels.hcommon.ssh.harness.LocalPorts;
+import com.hotels.hcommon.ssh.harness.SocketConnection;
+import com.hotels.hcommon.ssh.harness.SshServerHarness;
+import com.hotels.hcommon.ssh.metrics.InMemoryTunnelMetrics;
+import com.hotels.hcommon.ssh.transport.SshTransports;
+
+public class MultiHopTunnelIT {
+
+  private static final byte[] MESSAGE = "hello".getBytes(StandardCharsets.UTF_8);
+
+  public static @ClassRule TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static SshServerHarness harness;
+  private static EchoServer echoServer;
+
+  @BeforeClass
+  public static void startServers() throws Exception {
+    harness = SshServerHarness.start(temporaryFolder.getRoot(), 3);
+    echoServer = new EchoServer();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception {
+    echoServer.close();
+    harness.close();
+  }
+
+  private Connection wrap(TunnelableFactory<Connection> tunnelableFactory, int localPort) {
+    return (Connection) tunnelableFactory.wrap(() -> new SocketConnection("localhost", localPort),
+        MethodChecker.DEFAULT, "localhost", localPort, echoServer.getHost(), echoServer.getPort());
+  }
+
+  @Test
+  public void echoThroughThreeHops() throws Exception {
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withMetrics(metrics).build());
+    Connection connection = wrap(tunnelableFactory, LocalPorts.free(1)[0]);
+    try {
+      connection.connect();
+      assertThat(connection.echo(MESSAGE), is(MESSAGE));
+      assertThat(metrics.getHandshakes().keySet(),
+          is(new HashSet<>(Arrays.asList("127.0.0.1", "127.0.0.2", "127.0.0.3"))));
+      assertThat(metrics.getActiveSessions(), is(3L));
+      assertThat(metrics.getActiveTunnels(), is(1L));
+    } finally {
+      connection.close();
+    }
+    assertThat(metrics.getActiveSessions(), is(0L));
+    assertThat(metrics.getActiveTunnels(), is(0L));
+  }
+
+  @Test
+  public void sharedSessionChainCarriesSeveralTunnels() throws Exception {
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withSessionSharing(true).withMetrics(metrics).build());
+    int[] localPorts = LocalPorts.free(2);
+    Connection connection1 = wrap(tunnelableFactory, localPorts[0]);
+    Connection connection2 = wrap(tunnelableFactory, localPorts[1]);
+    try {
+      connection1.connect();
+      connection2.connect();
+      assertThat(connection1.echo(MESSAGE), is(MESSAGE));
+      assertThat(connection2.echo(MESSAGE), is(MESSAGE));
+      assertThat(metrics.getActiveTunnels(), is(2L));
+      assertThat(metrics.getActiveSessions(), is(3L));
+      assertThat(metrics.getHandshakes().get("127.0.0.1").getCount(), is(1L));
+    } finally {
+      connection1.close();
+      connection2.close();
+    }
+    assertThat(metrics.getActiveSessions(), is(0L));
+  }
+
+  @Test
+  public void echoThroughSocketFactory() throws Exception {
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withMetrics(metrics).build());
+    Connection connection = (Connection) tunnelableFactory.wrapWithSocketFactory(
+        socketFactory -> new SocketConnection(socketFactory, "ignored", 1), MethodChecker.DEFAULT,
+        echoServer.getHost(), echoServer.getPort());
+    try {
+      connection.connect();
+      assertThat(connection.echo(MESSAGE), is(MESSAGE));
+      assertThat(connection.echo(MESSAGE), is(MESSAGE));
+      assertThat(metrics.getActiveSessions(), is(3L));
+    } finally {
+      connection.close();
+    }
+    assertThat(metrics.getActiveSessions(), is(0L));
+  }
+
+  @Test
+  public void echoThroughSocksProxy() throws Exception {
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withMetrics(metrics).build());
+    EchoServer otherEchoServer = new EchoServer();
+    Connection connection1 = (Connection) tunnelableFactory.wrapWithSocksProxy(
+        socksProxy -> new SocketConnection(socksProxy, echoServer.getHost(), echoServer.getPort()),
+        MethodChecker.DEFAULT, "localhost", 0);
+    Connection connection2 = (Connection) tunnelableFactory.wrapWithSocksProxy(
+        socksProxy -> new SocketConnection(socksProxy, otherEchoServer.getHost(), otherEchoServer.getPort()),
+        MethodChecker.DEFAULT, "localhost", 0);
+    try {
+      connection1.connect();
+      connection2.connect();
+      assertThat(connection1.echo(MESSAGE), is(MESSAGE));
+      assertThat(connection2.echo(MESSAGE), is(MESSAGE));
+      assertThat(metrics.getActiveTunnels(), is(1L));
+      assertThat(metrics.getActiveSessions(), is(3L));
+    } finally {
+      connection1.close();
+      connection2.close();
+      otherEchoServer.close();
+    }
+    assertThat(metrics.getActiveSessions(), is(0L));
+    assertThat(metrics.getActiveTunnels(), is(0L));
+  }
+
+  private static void assumeMina() {
+    try {
+      SshTransports.get("mina");
+    } catch (SshException e) {
+      assumeNoException("The mina profile is required", e);
+    }
+  }
+
+  @Test
+  public void echoThroughThreeHopsWithMina() throws Exception {
+    assumeMina();
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withTransport("mina").withMetrics(metrics).build());
+    Connection connection = wrap(tunnelableFactory, LocalPorts.free(1)[0]);
+    try {
+      connection.connect();
+      assertThat(connection.echo(MESSAGE), is(MESSAGE));
+      assertThat(metrics.getHandshakes().keySet(),
+          is(new HashSet<>(Arrays.asList("127.0.0.1", "127.0.0.2", "127.0.0.3"))));
+      assertThat(metrics.getActiveSessions(), is(3L));
+      assertThat(metrics.getActiveTunnels(), is(1L));
+    } finally {
+      connection.close();
+    }
+    assertThat(metrics.getActiveSessions(), is(0L));
+    assertThat(metrics.getActiveTunnels(), is(0L));
+  }
+
+  @Test
+  public void reopenMinaTunnelInBackgroundWhenSessionIsDropped() throws Exception {
+    assumeMina();
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    TunnelableFactory<Connection> tunnelableFactory = new TunnelableFactory<>(
+        harness.sshSettings().withTransport("mina").withMetrics(metrics).build());
+    Connection connection = wrap(tunnelableFactory, LocalPorts.free(1)[0]);
+    try {
+      connection.connect();
+      harness.dropSessions();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (metrics.getHandshakes().get("127.0.0.1").getCount() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      assertThat(metrics.getHandshakes().get("127.0.0.1").getCount(), is(2L));
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void rejectSettingsUnsupportedByMina() throws Exception {
+    assumeMina();
+    try {
+      new TunnelableFactory<Connection>(harness.sshSettings().withTransport("mina").withShards(2).build());
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("The MINA transport doesn't support shards"));
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.hotels.hcommon.ssh.harness.Connection;
+import com.hotels.hcommon.ssh.harness.EchoServer;
+import com.hotels.hcommon.ssh.harness.LocalPorts;
+import com.hotels.hcommon.ssh.harness.SinkServer;
+import com.hotels.hcommon.ssh.harness.SocketConnection;
+import com.hotels.hcommon.ssh.harness.SshServerHarness;
+import com.hotels.hcommon.ssh.metrics.Histogram;
+import com.hotels.hcommon.ssh.metrics.InMemoryTunnelMetrics;
+
+/**
+ * Opens many tunnels through {@link TunnelableFactory} and reports handshake times, throughput and memory per tunnel.
+ * <p>
+ * The load can be changed with the system properties {@code load.tunnels}, {@code load.hops} and {@code load.bytes}.
+ * The SSH transport is chosen with {@code load.transport}.
+ * </p>
+ */
+@RunWith(Parameterized.class)
+public class TunnelableFactoryLoadIT {
+
+  private static final int TUNNELS = Integer.getInteger("load.tunnels", 200);
+  private static final int HOPS = Integer.getInteger("load.hops", 2);
+  private static final long BYTES = Long.getLong("load.bytes", 256L * 1024 * 1024);
+  private static final String TRANSPORT = System.getProperty("load.transport", SshSettings.DEFAULT_TRANSPORT);
+  private static final byte[] MESSAGE = "ping".getBytes(StandardCharsets.UTF_8);
+
+  @Parameters(name = "sessionSharing={0}")
+  public static List<Object[]> parameters() {
+    return Arrays.asList(new Object[][] { { false }, { true } });
+  }
+
+  public static @ClassRule TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static SshServerHarness harness;
+  private static EchoServer echoServer;
+  private static SinkServer sinkServer;
+
+  @BeforeClass
+  public static void startServers() throws Exception {
+    harness = SshServerHarness.start(temporaryFolder.getRoot(), HOPS);
+    echoServer = new EchoServer();
+    sinkServer = new SinkServer();
+  }
+
+  @AfterClass
+  public static void stopServers() throws Exception {
+    sinkServer.close();
+    echoServer.close();
+    harness.close();
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static String summary(Histogram histogram) {
+    return String.format("n=%d p50=%.2fms p99=%.2fms max=%.2fms", histogram.getCount(),
+        millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+        millis(histogram.getMax()));
+  }
+
+  public @Parameter boolean sessionSharing;
+
+  private final InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+
+  private TunnelableFactory<Connection> newTunnelableFactory() {
+    return new TunnelableFactory<>(
+        harness.sshSettings().withSessionSharing(sessionSharing).withMetrics(metrics).withTransport(TRANSPORT).build());
+  }
+
+  private Connection wrap(TunnelableFactory<Connection> tunnelableFactory, int localPort, String host, int port) {
+    return (Connection) tunnelableFactory.wrap(() -> new SocketConnection("localhost", localPort),
+        MethodChecker.DEFAULT, "localhost", localPort, host, port);
+  }
+
+  @Test
+  public void openManyTunnels() throws Exception {
+    TunnelableFactory<Connection> tunnelableFactory = newTunnelableFactory();
+    int[] localPorts = LocalPorts.free(TUNNELS);
+    List<Connection> connections = new ArrayList<>(TUNNELS);
+    long heapBefore = usedHeap();
+    int threadsBefore = Thread.activeCount();
+    long start = System.nanoTime();
+    try {
+      for (int localPort : localPorts) {
+        Connection connection = wrap(tunnelableFactory, localPort, echoServer.getHost(), echoServer.getPort());
+        connections.add(connection);
+        connection.connect();
+        assertThat(connection.echo(MESSAGE), is(MESSAGE));
+      }
+      long elapsed = System.nanoTime() - start;
+      long heapAfter = usedHeap();
+      int threadsAfter = Thread.activeCount();
+
+      System.out.printf("%d tunnels through %d hops, sessionSharing=%s, transport=%s%n", TUNNELS, HOPS, sessionSharing,
+          TRANSPORT);
+      System.out.printf("  total time:       %.0fms (%.2fms per tunnel)%n", millis(elapsed), millis(elapsed) / TUNNELS);
+      System.out.printf("  tunnel opens:     %s%n", summary(metrics.getTunnelOpens()));
+      for (Map.Entry<String, Histogram> handshakes : metrics.getHandshakes().entrySet()) {
+        System.out.printf("  handshake %-9s %s%n", handshakes.getKey() + ":", summary(handshakes.getValue()));
+      }
+      System.out.printf("  sessions:         %d%n", metrics.getActiveSessions());
+      System.out.printf("  heap per tunnel:  %.1fKiB%n", (heapAfter - heapBefore) / 1024.0 / TUNNELS);
+      System.out.printf("  threads per tunnel: %.2f%n", (threadsAfter - threadsBefore) / (double) TUNNELS);
+
+      assertThat(metrics.getActiveTunnels(), is((long) TUNNELS));
+      assertThat(metrics.getTunnelOpenFailures(), is(0L));
+    } finally {
+      for (Connection connection : connections) {
+        connection.close();
+      }
+    }
+    assertThat(metrics.getActiveTunnels(), is(0L));
+    assertThat(metrics.getActiveSessions(), is(0L));
+  }
+
+  @Test
+  public void throughput() throws Exception {
+    // MINA SSHD 2.4 writes the data of a forwarded connection from its NIO threads, which block while the channel
+    // window is full. Through several hops, the threads that would read the window adjustments end up blocked too and
+    // the transfer stalls until the 30s window timeout resets the connection.
+    assumeFalse("MINA SSHD 2.4 stalls bulk transfers through more than one hop", "mina".equals(TRANSPORT) && HOPS > 1);
+    TunnelableFactory<Connection> tunnelableFactory = newTunnelableFactory();
+    Connection connection = wrap(tunnelableFactory, LocalPorts.free(1)[0], sinkServer.getHost(), sinkServer.getPort());
+    try {
+      connection.connect();
+      long start = System.nanoTime();
+      long received = connection.send(BYTES);
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%dMiB through %d hops, sessionSharing=%s: %.1fMiB/s%n", BYTES / 1024 / 1024, HOPS,
+          sessionSharing, BYTES / 1024.0 / 1024.0 / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)));
+      assertThat(received, is(BYTES));
+    } finally {
+      connection.close();
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.IOException;
+
+import com.hotels.hcommon.ssh.MethodChecker;
+import com.hotels.hcommon.ssh.Tunnelable;
+
+/**
+ * A client of a {@link TargetServer}. Its method names follow {@link MethodChecker#DEFAULT} so {@link #connect()}
+ * opens the tunnel and {@link #close()} releases it.
+ */
+public interface Connection extends Tunnelable {
+
+  void connect() throws IOException;
+
+  /**
+   * Sends a message to an {@link EchoServer} and reads it back.
+   */
+  byte[] echo(byte[] message) throws IOException;
+
+  /**
+   * Sends the given number of bytes to a {@link SinkServer}, preceded by that number.
+   *
+   * @return the number of bytes received by the server.
+   */
+  long send(long bytes) throws IOException;
+
+  void close() throws IOException;
+
+}
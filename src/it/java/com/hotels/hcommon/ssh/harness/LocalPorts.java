@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ThreadLocalRandom;
+
+public final class LocalPorts {
+
+  private LocalPorts() {}
+
+  // Below the ephemeral range of Linux, Windows and macOS, so that ports bound to 0 or used by outgoing connections
+  // meanwhile can't take them
+  private static final int FIRST_PORT = 20000;
+  private static final int LAST_PORT = 32767;
+
+  /**
+   * @return distinct local ports which were free when this method returned.
+   */
+  public static int[] free(int count) throws IOException {
+    ServerSocket[] serverSockets = new ServerSocket[count];
+    int[] ports = new int[count];
+    int range = LAST_PORT - FIRST_PORT + 1;
+    int offset = ThreadLocalRandom.current().nextInt(range);
+    try {
+      int found = 0;
+      for (int i = 0; i < range && found < count; i++) {
+        int port = FIRST_PORT + (offset + i) % range;
+        try {
+          serverSockets[found] = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+        } catch (BindException e) {
+          continue;
+        }
+        ports[found++] = port;
+      }
+      if (found < count) {
+        throw new IOException("Only " + found + " free local ports out of " + count);
+      }
+    } finally {
+      for (ServerSocket serverSocket : serverSockets) {
+        if (serverSocket != null) {
+          serverSocket.close();
+        }
+      }
+    }
+    return ports;
+  }
+
+}
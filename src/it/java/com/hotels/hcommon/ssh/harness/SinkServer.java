@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Reads the number of bytes the client is about to send as a {@code long}, discards that many bytes and replies with
+ * the number of bytes received as a {@code long}.
+ * <p>
+ * The client doesn't signal the end of the data by shutting down its output: the port forwarding of JSch closes the
+ * whole channel when the local connection is half-closed, so the reply would never reach it.
+ * </p>
+ */
+public class SinkServer extends TargetServer {
+
+  public SinkServer() throws IOException {
+    super();
+  }
+
+  @Override
+  protected void handle(Socket socket) throws IOException {
+    DataInputStream input = new DataInputStream(socket.getInputStream());
+    long expected = input.readLong();
+    byte[] buffer = new byte[65536];
+    long total = 0;
+    int read;
+    while (total < expected && (read = input.read(buffer, 0, (int) Math.min(buffer.length, expected - total))) != -1) {
+      total += read;
+    }
+    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+    output.writeLong(total);
+    output.flush();
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * {@link Connection} over a socket, e.g. to the local port of a tunnel, created by a {@link SocketFactory} or through
+ * a SOCKS {@link Proxy}.
+ */
+public class SocketConnection implements Connection {
+
+  private final SocketFactory socketFactory;
+  private final Proxy proxy;
+  private final String host;
+  private final int port;
+  private Socket socket;
+
+  public SocketConnection(String host, int port) {
+    this(SocketFactory.getDefault(), host, port);
+  }
+
+  public SocketConnection(SocketFactory socketFactory, String host, int port) {
+    this(socketFactory, null, host, port);
+  }
+
+  public SocketConnection(Proxy proxy, String host, int port) {
+    this(null, proxy, host, port);
+  }
+
+  private SocketConnection(SocketFactory socketFactory, Proxy proxy, String host, int port) {
+    this.socketFactory = socketFactory;
+    this.proxy = proxy;
+    this.host = host;
+    this.port = port;
+  }
+
+  @Override
+  public void connect() throws IOException {
+    if (proxy == null) {
+      socket = socketFactory.createSocket(host, port);
+    } else {
+      socket = new Socket(proxy);
+      socket.connect(InetSocketAddress.createUnresolved(host, port));
+    }
+    socket.setTcpNoDelay(true);
+  }
+
+  @Override
+  public byte[] echo(byte[] message) throws IOException {
+    socket.getOutputStream().write(message);
+    socket.getOutputStream().flush();
+    byte[] reply = new byte[message.length];
+    new DataInputStream(socket.getInputStream()).readFully(reply);
+    return reply;
+  }
+
+  @Override
+  public long send(long bytes) throws IOException {
+    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+    output.writeLong(bytes);
+    byte[] buffer = new byte[65536];
+    long remaining = bytes;
+    while (remaining > 0) {
+      int length = (int) Math.min(buffer.length, remaining);
+      output.write(buffer, 0, length);
+      remaining -= length;
+    }
+    output.flush();
+    return new DataInputStream(socket.getInputStream()).readLong();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+import com.hotels.hcommon.ssh.SshSettings;
+
+/**
+ * Starts in-process SSH servers on loopback which are chained into a route, e.g. {@code 127.0.0.1 -> 127.0.0.2 ->
+ * 127.0.0.3}.
+ * <p>
+ * Each hop listens on its own loopback address so all of them share the same SSH port, as {@link SshSettings} expects.
+ * This relies on the whole {@code 127.0.0.0/8} block being routed to the loopback interface, as it is on Linux. The
+ * servers accept any public key and any port forwarding. A RSA key pair for the client is generated in the given
+ * directory together with an empty known hosts file, so {@link #sshSettings()} disables strict host key checking.
+ * </p>
+ */
+public class SshServerHarness implements Closeable {
+
+  private static final int BIND_ATTEMPTS = 10;
+
+  public static SshServerHarness start(File directory, int hops) throws IOException, JSchException {
+    if (hops < 1) {
+      throw new IllegalArgumentException("Invalid number of hops: " + hops);
+    }
+    File privateKey = new File(directory, "id_rsa");
+    KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+    keyPair.writePrivateKey(privateKey.getAbsolutePath());
+    keyPair.dispose();
+    File knownHosts = new File(directory, "known_hosts");
+    knownHosts.createNewFile();
+
+    SimpleGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider();
+    hostKeyProvider.setAlgorithm("RSA");
+    for (int attempt = 1;; attempt++) {
+      List<SshServer> sshServers = new ArrayList<>();
+      try {
+        int sshPort = 0;
+        for (int hop = 0; hop < hops; hop++) {
+          SshServer sshServer = newSshServer(hopAddress(hop), sshPort, hostKeyProvider);
+          sshServers.add(sshServer);
+          sshServer.start();
+          sshPort = sshServer.getPort();
+        }
+        return new SshServerHarness(sshServers, sshPort, privateKey, knownHosts);
+      } catch (BindException e) {
+        // The port of the first hop is already taken on the address of another hop
+        stop(sshServers);
+        if (attempt == BIND_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static String hopAddress(int hop) {
+    return "127.0.0." + (hop + 1);
+  }
+
+  private static SshServer newSshServer(String host, int port, SimpleGeneratorHostKeyProvider hostKeyProvider) {
+    SshServer sshServer = SshServer.setUpDefaultServer();
+    sshServer.setHost(host);
+    sshServer.setPort(port);
+    sshServer.setKeyPairProvider(hostKeyProvider);
+    sshServer.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+    sshServer.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+    return sshServer;
+  }
+
+  private static void stop(List<SshServer> sshServers) throws IOException {
+    for (SshServer sshServer : sshServers) {
+      sshServer.stop(true);
+    }
+  }
+
+  private final List<SshServer> sshServers;
+  private final int sshPort;
+  private final File privateKey;
+  private final File knownHosts;
+
+  private SshServerHarness(List<SshServer> sshServers, int sshPort, File privateKey, File knownHosts) {
+    this.sshServers = sshServers;
+    this.sshPort = sshPort;
+    this.privateKey = privateKey;
+    this.knownHosts = knownHosts;
+  }
+
+  public int getSshPort() {
+    return sshPort;
+  }
+
+  /**
+   * @return the route through all the hops, e.g. {@code 127.0.0.1 -> 127.0.0.2}.
+   */
+  public String getRoute() {
+    StringBuilder route = new StringBuilder();
+    for (int hop = 0; hop < sshServers.size(); hop++) {
+      if (hop > 0) {
+        route.append(" -> ");
+      }
+      route.append(hopAddress(hop));
+    }
+    return route.toString();
+  }
+
+  public File getPrivateKey() {
+    return privateKey;
+  }
+
+  public File getKnownHosts() {
+    return knownHosts;
+  }
+
+  /**
+   * @return a builder of settings for tunnels through all the hops which can be further customised.
+   */
+  public SshSettings.Builder sshSettings() {
+    return SshSettings
+        .builder()
+        .withSshPort(sshPort)
+        .withRoute(getRoute())
+        .withPrivateKeys(privateKey.getAbsolutePath())
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withStrictHostKeyChecking(false);
+  }
+
+  /**
+   * Closes the sessions of every client of the first hop, as a dropped connection would.
+   */
+  public void dropSessions() {
+    for (Session session : sshServers.get(0).getActiveSessions()) {
+      session.close(true);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stop(sshServers);
+  }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.harness;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A TCP server on loopback used as the target of the tunnels. Each connection is handled on its own thread.
+ */
+public abstract class TargetServer implements Closeable {
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, getClass().getSimpleName());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  protected TargetServer() throws IOException {
+    serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    executor.execute(this::accept);
+  }
+
+  public String getHost() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        executor.execute(() -> {
+          try (Socket connection = socket) {
+            handle(connection);
+          } catch (IOException e) {
+            // The client went away
+          }
+        });
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+  }
+
+  protected abstract void handle(Socket socket) throws IOException;
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+/**
+ * {@link Client} which does no I/O so the benchmarks only measure the cost of the proxy around it.
+ */
+public class DirectClient implements Client {
+
+  private int total;
+
+  @Override
+  public void open() {}
+
+  @Override
+  public int call(int value) {
+    total += value;
+    return total;
+  }
+
+  @Override
+  public void close() {}
+
+}
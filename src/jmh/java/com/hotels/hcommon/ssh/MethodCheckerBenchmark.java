@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of classifying a proxied method with {@link MethodChecker#DEFAULT}, either every time or through the
+ * {@link DispatchTable} the proxies use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MethodCheckerBenchmark {
+
+  private Method[] methods;
+  private DispatchTable dispatchTable;
+
+  @Setup
+  public void setUp() throws Exception {
+    methods = new Method[] {
+        Client.class.getMethod("open"),
+        Client.class.getMethod("call", int.class),
+        Client.class.getMethod("close"),
+        Object.class.getMethod("toString") };
+    dispatchTable = DispatchTable.of(DirectClient.class, MethodChecker.DEFAULT);
+  }
+
+  @Benchmark
+  public int methodChecker() {
+    int tunnelled = 0;
+    for (Method method : methods) {
+      if (MethodChecker.DEFAULT.isTunnelled(method) || MethodChecker.DEFAULT.isShutdown(method)) {
+        tunnelled++;
+      }
+    }
+    return tunnelled;
+  }
+
+  @Benchmark
+  public int dispatchTable() {
+    int tunnelled = 0;
+    for (Method method : methods) {
+      if (dispatchTable.get(method) != DispatchTable.Dispatch.PASS_THROUGH) {
+        tunnelled++;
+      }
+    }
+    return tunnelled;
+  }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+/**
+ * Per-call overhead of the proxies created by {@link TunnelableFactory} compared to calling the delegate directly.
+ * <p>
+ * The tunnel is always open so the benchmark measures the invocation handler and the open-tunnel fast path only.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyBenchmark {
+
+  private static class OpenTunnelConnectionManager extends TunnelConnectionManager {
+    private final Tunnel tunnel;
+
+    private OpenTunnelConnectionManager(Tunnel tunnel) throws JSchException {
+      super(null);
+      this.tunnel = tunnel;
+    }
+
+    @Override
+    public void open() {}
+
+    @Override
+    public void ensureOpen() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public Tunnel getTunnel(String destinationHostname, int destinationPort) {
+      return tunnel;
+    }
+  }
+
+  private static class OpenTunnelConnectionManagerFactory implements TunnelConnectionManagerFactory {
+    private final SshSettings sshSettings = SshSettings
+        .builder()
+        .withRoute("bastion")
+        .withPrivateKeys("id_rsa")
+        .build();
+
+    @Override
+    public SshSettings getSshSettings() {
+      return sshSettings;
+    }
+
+    @Override
+    public TunnelConnectionManager create(String remoteHost, int remotePort) {
+      return create("localhost", 0, remoteHost, remotePort);
+    }
+
+    @Override
+    public TunnelConnectionManager create(String localHost, int localPort, String remoteHost, int remotePort) {
+      try {
+        return new OpenTunnelConnectionManager(new Tunnel(localHost, localPort, remoteHost, remotePort));
+      } catch (JSchException e) {
+        throw new SshException("Unable to create tunnel", e);
+      }
+    }
+  }
+
+  private Client direct;
+  private Client proxy;
+  private int value;
+
+  @Setup
+  public void setUp() {
+    direct = new DirectClient();
+    TunnelableFactory<Client> tunnelableFactory = new TunnelableFactory<>(new OpenTunnelConnectionManagerFactory());
+    proxy = (Client) tunnelableFactory.wrap(DirectClient::new, MethodChecker.DEFAULT, "localhost", 10000, "remote",
+        9083);
+  }
+
+  @TearDown
+  public void tearDown() {
+    proxy.close();
+  }
+
+  @Benchmark
+  public int directCall() {
+    return direct.call(value++);
+  }
+
+  @Benchmark
+  public int passThroughCall() {
+    return proxy.call(value++);
+  }
+
+  @Benchmark
+  public void tunnelledCall() {
+    proxy.open();
+  }
+
+}
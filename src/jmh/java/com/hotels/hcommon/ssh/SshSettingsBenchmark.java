@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotels.hcommon.ssh.route.Route;
+import com.hotels.hcommon.ssh.validation.validator.TunnelRouteValidator;
+
+/**
+ * Cost of validating and parsing tunnel routes of increasing length and of building {@link SshSettings}, which
+ * parses its route.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SshSettingsBenchmark {
+
+  @Param({ "1", "4", "16" })
+  public int hops;
+
+  private final TunnelRouteValidator tunnelRouteValidator = new TunnelRouteValidator();
+  private String route;
+
+  @Setup
+  public void setUp() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < hops; i++) {
+      if (i > 0) {
+        builder.append(" -> ");
+      }
+      builder.append("user-").append(i).append("@hop-").append(i).append(".region-").append(i).append(".example.com");
+    }
+    route = builder.toString();
+  }
+
+  @Benchmark
+  public boolean validateRoute() {
+    return tunnelRouteValidator.isValid(route, null);
+  }
+
+  @Benchmark
+  public Route parseRoute() {
+    return Route.parse(route);
+  }
+
+  @Benchmark
+  public SshSettings build() {
+    return SshSettings
+        .builder()
+        .withRoute(route)
+        .withKnownHosts("known_hosts")
+        .withPrivateKeys("id_rsa, id_ecdsa")
+        .build();
+  }
+
+}
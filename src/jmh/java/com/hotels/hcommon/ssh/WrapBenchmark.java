@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jcraft.jsch.JSchException;
+
+import com.hotels.hcommon.ssh.harness.SshServerHarness;
+
+/**
+ * Throughput of {@link TunnelableFactory#wrap(TunnelableSupplier, MethodChecker, String, int, String, int)} followed
+ * by a shutdown against an in-process SSH server, i.e. the full cost of opening and closing a tunnel.
+ * <p>
+ * Another tunnel of the same route is kept open for the whole benchmark so the effect of {@code sessionSharing} can
+ * be compared.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WrapBenchmark {
+
+  @Param({ "false", "true" })
+  public boolean sessionSharing;
+
+  private SshServerHarness harness;
+  private File directory;
+  private TunnelableFactory<Client> tunnelableFactory;
+  private Client openClient;
+  private int sshPort;
+
+  @Setup
+  public void setUp() throws IOException, JSchException {
+    directory = Files.createTempDirectory("wrap-benchmark").toFile();
+    harness = SshServerHarness.start(directory, 1);
+    sshPort = harness.getSshPort();
+    SshSettings sshSettings = harness.sshSettings().withSessionSharing(sessionSharing).build();
+    tunnelableFactory = new TunnelableFactory<>(sshSettings);
+    openClient = wrap(1);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    openClient.close();
+    harness.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private Client wrap(int remotePortOffset) {
+    // The tunnel is never used so its remote end only needs to be a reachable address
+    return (Client) tunnelableFactory.wrap(DirectClient::new, MethodChecker.DEFAULT, "localhost", 0, "localhost",
+        sshPort + remotePortOffset);
+  }
+
+  @Benchmark
+  public void wrapAndClose() {
+    Client client = wrap(0);
+    client.close();
+  }
+
+}
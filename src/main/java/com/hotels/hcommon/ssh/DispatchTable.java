@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable classification of every method a proxy of a given delegate class can receive.
+ * <p>
+ * The {@link MethodChecker} is consulted once per method when the table is built so proxied calls don't have to run
+ * the checker again. Tables are cached per delegate class and {@link MethodChecker}.
+ * </p>
+ * <p>
+ * The cache of a class only holds weak references to its tables, as they refer to methods of the class and a value
+ * of a {@link ClassValue} strongly referring to its class would keep it from being unloaded. Tables live as long as the
+ * proxies using them. Lookups don't lock: the list of tables of a class is replaced as a whole when a table is added.
+ * </p>
+ */
+final class DispatchTable {
+
+  enum Dispatch {
+    TUNNELLED,
+    SHUTDOWN,
+    PASS_THROUGH;
+  }
+
+  private static final ClassValue<AtomicReference<List<Reference<DispatchTable>>>> TABLES = new ClassValue<
+      AtomicReference<List<Reference<DispatchTable>>>>() {
+    @Override
+    protected AtomicReference<List<Reference<DispatchTable>>> computeValue(Class<?> type) {
+      return new AtomicReference<>(Collections.<Reference<DispatchTable>> emptyList());
+    }
+  };
+
+  private static final String[] OBJECT_METHODS = { "hashCode", "equals", "toString" };
+
+  /**
+   * @return the interfaces implemented by proxies of the given delegate type: the type itself if it's an interface,
+   *         the interfaces it directly implements otherwise.
+   */
+  static Class<?>[] interfacesOf(Class<?> delegateType) {
+    if (delegateType.isInterface()) {
+      return new Class<?>[] { delegateType };
+    }
+    return delegateType.getInterfaces();
+  }
+
+  static DispatchTable of(Class<?> delegateClass, MethodChecker methodChecker) {
+    AtomicReference<List<Reference<DispatchTable>>> tables = TABLES.get(delegateClass);
+    DispatchTable newTable = null;
+    while (true) {
+      List<Reference<DispatchTable>> current = tables.get();
+      DispatchTable table = find(current, methodChecker);
+      if (table != null) {
+        return table;
+      }
+      if (newTable == null) {
+        newTable = new DispatchTable(interfacesOf(delegateClass), methodChecker);
+      }
+      List<Reference<DispatchTable>> updated = new ArrayList<>(current.size() + 1);
+      for (Reference<DispatchTable> reference : current) {
+        // Tables no longer used by any proxy are dropped
+        if (reference.get() != null) {
+          updated.add(reference);
+        }
+      }
+      updated.add(new WeakReference<>(newTable));
+      if (tables.compareAndSet(current, Collections.unmodifiableList(updated))) {
+        return newTable;
+      }
+    }
+  }
+
+  private static DispatchTable find(List<Reference<DispatchTable>> tables, MethodChecker methodChecker) {
+    for (Reference<DispatchTable> reference : tables) {
+      DispatchTable table = reference.get();
+      if (table != null && table.methodChecker.equals(methodChecker)) {
+        return table;
+      }
+    }
+    return null;
+  }
+
+  static Dispatch classify(Method method, MethodChecker methodChecker) {
+    if (methodChecker.isTunnelled(method)) {
+      return Dispatch.TUNNELLED;
+    }
+    if (methodChecker.isShutdown(method)) {
+      return Dispatch.SHUTDOWN;
+    }
+    return Dispatch.PASS_THROUGH;
+  }
+
+  private final MethodChecker methodChecker;
+  private final Map<Method, Dispatch> dispatches;
+
+  private DispatchTable(Class<?>[] interfaces, MethodChecker methodChecker) {
+    this.methodChecker = methodChecker;
+    Map<Method, Dispatch> dispatches = new HashMap<>();
+    for (Class<?> type : interfaces) {
+      for (Method method : type.getMethods()) {
+        dispatches.put(method, classify(method, methodChecker));
+      }
+    }
+    for (Method method : Object.class.getMethods()) {
+      for (String name : OBJECT_METHODS) {
+        if (name.equals(method.getName())) {
+          dispatches.put(method, classify(method, methodChecker));
+        }
+      }
+    }
+    this.dispatches = Collections.unmodifiableMap(dispatches);
+  }
+
+  Dispatch get(Method method) {
+    Dispatch dispatch = dispatches.get(method);
+    if (dispatch == null) {
+      return classify(method, methodChecker);
+    }
+    return dispatch;
+  }
+
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import javax.net.SocketFactory;
+
+/**
+ * Provides means for creating a delegate object which connects through SSH channels rather than a local port. All the
+ * connections of the delegate must be made with the given {@link SocketFactory}.
+ *
+ * @param <T> Delegate type
+ * @see TunnelableFactory#wrapWithSocketFactory(SocketFactoryTunnelableSupplier, MethodChecker, String, int)
+ */
+public interface SocketFactoryTunnelableSupplier<T extends Tunnelable> {
+
+  T get(SocketFactory socketFactory);
+
+}
@@ -20,13 +20,17 @@ import static com.hotels.hcommon.ssh.validation.Preconditions.checkArgument;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+import com.hotels.hcommon.ssh.transport.JschTransport;
 import com.hotels.hcommon.ssh.validation.constraint.TunnelRoute;
-import com.hotels.hcommon.ssh.validation.validator.TunnelRouteValidator;
 
 public class SshSettings {
 
@@ -34,6 +38,23 @@ public class SshSettings {
   public static final int DEFAULT_SSH_PORT = 22;
   public static final int DEFAULT_SESSION_TIMEOUT = 0; // never time out
   public static final boolean DEFAULT_STRICT_HOST_KEY_CHECKING = true;
+  public static final boolean DEFAULT_SESSION_SHARING = false;
+  public static final int DEFAULT_IDLE_TIMEOUT = 0; // never close idle tunnels
+  public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 0; // no keepalives
+  public static final int DEFAULT_KEEP_ALIVE_COUNT_MAX = 3;
+  public static final int DEFAULT_OPEN_BACKOFF = 0; // attempts are never blocked
+  public static final int DEFAULT_MAX_OPEN_BACKOFF = 60000;
+  public static final int DEFAULT_OPEN_FAILURE_THRESHOLD = 1;
+  public static final int DEFAULT_FIRST_LOCAL_PORT = 0; // any free port
+  public static final int DEFAULT_LAST_LOCAL_PORT = 0; // any free port
+  public static final String DEFAULT_TRANSPORT = JschTransport.NAME;
+  public static final int DEFAULT_SHARDS = 1;
+  public static final int DEFAULT_MAX_CHANNELS_PER_SESSION = 0; // no limit
+  public static final int DEFAULT_MAX_EXTRA_SESSIONS = 4;
+  public static final int DEFAULT_CHANNEL_QUEUE_TIMEOUT = 10000;
+  public static final int DEFAULT_MAX_CONCURRENT_HANDSHAKES = 0; // no limit
+  public static final int DEFAULT_MIN_IDLE_CHANNELS = 0; // no channel pool
+  public static final int DEFAULT_MAX_IDLE_CHANNELS = 0; // no channel pool
 
   public static class Builder {
     private int sshPort = DEFAULT_SSH_PORT;
@@ -43,6 +64,24 @@ public class SshSettings {
     private String localhost = DEFAULT_LOCALHOST;
     private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
     private boolean strictHostKeyChecking = DEFAULT_STRICT_HOST_KEY_CHECKING;
+    private boolean sessionSharing = DEFAULT_SESSION_SHARING;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    private int keepAliveCountMax = DEFAULT_KEEP_ALIVE_COUNT_MAX;
+    private int openBackoff = DEFAULT_OPEN_BACKOFF;
+    private int maxOpenBackoff = DEFAULT_MAX_OPEN_BACKOFF;
+    private int openFailureThreshold = DEFAULT_OPEN_FAILURE_THRESHOLD;
+    private int firstLocalPort = DEFAULT_FIRST_LOCAL_PORT;
+    private int lastLocalPort = DEFAULT_LAST_LOCAL_PORT;
+    private TunnelMetrics metrics = NoOpTunnelMetrics.INSTANCE;
+    private String transport = DEFAULT_TRANSPORT;
+    private int shards = DEFAULT_SHARDS;
+    private int maxChannelsPerSession = DEFAULT_MAX_CHANNELS_PER_SESSION;
+    private int maxExtraSessions = DEFAULT_MAX_EXTRA_SESSIONS;
+    private int channelQueueTimeout = DEFAULT_CHANNEL_QUEUE_TIMEOUT;
+    private int maxConcurrentHandshakes = DEFAULT_MAX_CONCURRENT_HANDSHAKES;
+    private int minIdleChannels = DEFAULT_MIN_IDLE_CHANNELS;
+    private int maxIdleChannels = DEFAULT_MAX_IDLE_CHANNELS;
 
     private Builder() {}
 
@@ -81,13 +120,164 @@ public class SshSettings {
       return this;
     }
 
+    public Builder withSessionSharing(boolean sessionSharing) {
+      this.sessionSharing = sessionSharing;
+      return this;
+    }
+
+    public Builder withIdleTimeout(@Min(0) int idleTimeout) {
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
+    public Builder withKeepAliveInterval(@Min(0) int keepAliveInterval) {
+      this.keepAliveInterval = keepAliveInterval;
+      return this;
+    }
+
+    public Builder withKeepAliveCountMax(@Min(1) int keepAliveCountMax) {
+      this.keepAliveCountMax = keepAliveCountMax;
+      return this;
+    }
+
+    /**
+     * Blocks attempts to open the SSH sessions of a route for that many milliseconds after it has failed
+     * {@link #withOpenFailureThreshold(int) openFailureThreshold} times in a row. Disabled by default.
+     */
+    public Builder withOpenBackoff(@Min(0) int openBackoff) {
+      this.openBackoff = openBackoff;
+      return this;
+    }
+
+    public Builder withMaxOpenBackoff(@Min(0) int maxOpenBackoff) {
+      this.maxOpenBackoff = maxOpenBackoff;
+      return this;
+    }
+
+    public Builder withOpenFailureThreshold(@Min(1) int openFailureThreshold) {
+      this.openFailureThreshold = openFailureThreshold;
+      return this;
+    }
+
+    /**
+     * Local ports of tunnels which don't ask for a specific local port are taken from the range between the two given
+     * ports, inclusive.
+     */
+    public Builder withLocalPortRange(@Min(1) @Max(65535) int firstLocalPort, @Min(1) @Max(65535) int lastLocalPort) {
+      this.firstLocalPort = firstLocalPort;
+      this.lastLocalPort = lastLocalPort;
+      return this;
+    }
+
+    public Builder withMetrics(@NotNull TunnelMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Selects the SSH implementation by its name, e.g. {@code jsch} or {@code mina}.
+     *
+     * @see com.hotels.hcommon.ssh.transport.SshTransport
+     */
+    public Builder withTransport(@NotNull String transport) {
+      this.transport = transport;
+      return this;
+    }
+
+    /**
+     * Spreads the connections of each tunnel over the given number of independent SSH session chains, so the throughput
+     * of a tunnel isn't limited by a single session.
+     */
+    public Builder withShards(@Min(1) int shards) {
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * Limits the number of connections forwarded at the same time on each SSH session, e.g. to the {@code MaxSessions}
+     * of the bastion. Tunnels open extra sessions once all of theirs are full. 0 means no limit.
+     */
+    public Builder withMaxChannelsPerSession(@Min(0) int maxChannelsPerSession) {
+      this.maxChannelsPerSession = maxChannelsPerSession;
+      return this;
+    }
+
+    /**
+     * Number of sessions a tunnel can open on top of its shards when the channels of all its sessions are in use.
+     * Extra sessions are closed as soon as they don't carry any connection.
+     */
+    public Builder withMaxExtraSessions(@Min(0) int maxExtraSessions) {
+      this.maxExtraSessions = maxExtraSessions;
+      return this;
+    }
+
+    /**
+     * Maximum time in milliseconds a new connection waits for a channel when every session is full and no extra
+     * session can be opened. The connection is closed afterwards.
+     */
+    public Builder withChannelQueueTimeout(@Min(0) int channelQueueTimeout) {
+      this.channelQueueTimeout = channelQueueTimeout;
+      return this;
+    }
+
+    /**
+     * Limits the number of SSH handshakes in flight at the same time with each hop of the route, across all the
+     * factories of the JVM, e.g. below the {@code MaxStartups} of the bastion. When factories set different limits for
+     * the same hop the smallest one applies. Other handshakes wait in FIFO order, for at most the session timeout. 0
+     * means no limit.
+     */
+    public Builder withMaxConcurrentHandshakes(@Min(0) int maxConcurrentHandshakes) {
+      this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+      return this;
+    }
+
+    /**
+     * Keeps between the given numbers of channels to the remote host and port of each tunnel opened ahead of time, so
+     * new connections don't wait for a channel to be opened through every hop. The pool grows with the number of
+     * connections made every second. Idle channels count against the {@linkplain #withMaxChannelsPerSession(int) max
+     * channels per session}, so when that is set the max idle channels must be below it. A pooled channel on which the
+     * remote host sends more than 128 KB before it's handed to a connection is discarded.
+     */
+    public Builder withChannelPool(@Min(0) int minIdleChannels, @Min(1) int maxIdleChannels) {
+      this.minIdleChannels = minIdleChannels;
+      this.maxIdleChannels = maxIdleChannels;
+      return this;
+    }
+
     public SshSettings build() {
       checkArgument(1 <= sshPort && sshPort <= 65535, "Invalid SSH port number: " + sshPort);
-      checkArgument(new TunnelRouteValidator().isValid(route, null), "Invalid SSH tunnel route: '" + route + "'");
+      Route tunnelRoute;
+      try {
+        tunnelRoute = Route.parse(route);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid SSH tunnel route: '" + route + "'", e);
+      }
       checkArgument(privateKeys != null && !privateKeys.trim().isEmpty(),
           "Invalid SSH private keys: '" + privateKeys + "'");
       checkArgument(sessionTimeout >= 0, "Invalid SSH session timeout: " + sessionTimeout);
-      return new SshSettings(this);
+      checkArgument(idleTimeout >= 0, "Invalid SSH tunnel idle timeout: " + idleTimeout);
+      checkArgument(keepAliveInterval >= 0, "Invalid SSH keepalive interval: " + keepAliveInterval);
+      checkArgument(keepAliveCountMax >= 1, "Invalid SSH keepalive count max: " + keepAliveCountMax);
+      checkArgument(openBackoff >= 0, "Invalid SSH open backoff: " + openBackoff);
+      checkArgument(maxOpenBackoff >= openBackoff, "Invalid SSH max open backoff: " + maxOpenBackoff);
+      checkArgument(openFailureThreshold >= 1, "Invalid SSH open failure threshold: " + openFailureThreshold);
+      checkArgument(
+          (firstLocalPort == 0 && lastLocalPort == 0)
+              || (1 <= firstLocalPort && firstLocalPort <= lastLocalPort && lastLocalPort <= 65535),
+          "Invalid local port range: " + firstLocalPort + "-" + lastLocalPort);
+      checkArgument(metrics != null, "Invalid SSH tunnel metrics: null");
+      checkArgument(shards >= 1, "Invalid number of SSH tunnel shards: " + shards);
+      checkArgument(maxChannelsPerSession >= 0, "Invalid max SSH channels per session: " + maxChannelsPerSession);
+      checkArgument(maxExtraSessions >= 0, "Invalid max extra SSH sessions: " + maxExtraSessions);
+      checkArgument(channelQueueTimeout >= 0, "Invalid SSH channel queue timeout: " + channelQueueTimeout);
+      checkArgument(maxConcurrentHandshakes >= 0, "Invalid max concurrent SSH handshakes: " + maxConcurrentHandshakes);
+      checkArgument(0 <= minIdleChannels && minIdleChannels <= maxIdleChannels,
+          "Invalid SSH channel pool size: " + minIdleChannels + "-" + maxIdleChannels);
+      checkArgument(maxChannelsPerSession == 0 || maxIdleChannels < maxChannelsPerSession,
+          "Invalid SSH channel pool size: " + maxIdleChannels + " idle channels leave no channel for connections when "
+              + "sessions carry at most " + maxChannelsPerSession);
+      checkArgument(transport != null && !transport.trim().isEmpty(), "Invalid SSH transport: '" + transport + "'");
+      return new SshSettings(this, tunnelRoute);
     }
   }
 
@@ -97,20 +287,58 @@ public class SshSettings {
 
   private final int sshPort;
   private final String route;
+  private final Route tunnelRoute;
   private final List<String> privateKeys;
   private final String knownHosts;
   private final String localhost;
   private final int sessionTimeout;
   private final boolean strictHostKeyChecking;
+  private final boolean sessionSharing;
+  private final int idleTimeout;
+  private final int keepAliveInterval;
+  private final int keepAliveCountMax;
+  private final int openBackoff;
+  private final int maxOpenBackoff;
+  private final int openFailureThreshold;
+  private final int firstLocalPort;
+  private final int lastLocalPort;
+  private final TunnelMetrics metrics;
+  private final String transport;
+  private final int shards;
+  private final int maxChannelsPerSession;
+  private final int maxExtraSessions;
+  private final int channelQueueTimeout;
+  private final int maxConcurrentHandshakes;
+  private final int minIdleChannels;
+  private final int maxIdleChannels;
 
-  private SshSettings(Builder builder) {
+  private SshSettings(Builder builder, Route tunnelRoute) {
     sshPort = builder.sshPort;
     route = builder.route;
+    this.tunnelRoute = tunnelRoute;
     privateKeys = Collections.unmodifiableList(Arrays.asList(builder.privateKeys.split(",")));
     knownHosts = builder.knownHosts;
     localhost = builder.localhost;
     sessionTimeout = builder.sessionTimeout;
     strictHostKeyChecking = builder.strictHostKeyChecking;
+    sessionSharing = builder.sessionSharing;
+    idleTimeout = builder.idleTimeout;
+    keepAliveInterval = builder.keepAliveInterval;
+    keepAliveCountMax = builder.keepAliveCountMax;
+    openBackoff = builder.openBackoff;
+    maxOpenBackoff = builder.maxOpenBackoff;
+    openFailureThreshold = builder.openFailureThreshold;
+    firstLocalPort = builder.firstLocalPort;
+    lastLocalPort = builder.lastLocalPort;
+    metrics = builder.metrics;
+    transport = builder.transport;
+    shards = builder.shards;
+    maxChannelsPerSession = builder.maxChannelsPerSession;
+    maxExtraSessions = builder.maxExtraSessions;
+    channelQueueTimeout = builder.channelQueueTimeout;
+    maxConcurrentHandshakes = builder.maxConcurrentHandshakes;
+    minIdleChannels = builder.minIdleChannels;
+    maxIdleChannels = builder.maxIdleChannels;
   }
 
   public int getSshPort() {
@@ -121,6 +349,13 @@ public class SshSettings {
     return route;
   }
 
+  /**
+   * @return the parsed {@link #getRoute() route}, {@link Route#EMPTY} if none was given.
+   */
+  public Route getTunnelRoute() {
+    return tunnelRoute;
+  }
+
   public List<String> getPrivateKeys() {
     return privateKeys;
   }
@@ -141,4 +376,147 @@ public class SshSettings {
     return strictHostKeyChecking;
   }
 
+  public boolean isSessionSharing() {
+    return sessionSharing;
+  }
+
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public int getKeepAliveInterval() {
+    return keepAliveInterval;
+  }
+
+  public int getKeepAliveCountMax() {
+    return keepAliveCountMax;
+  }
+
+  /**
+   * @return the time in milliseconds during which attempts to open the SSH sessions of the route fail fast after the
+   *         route has failed {@link #getOpenFailureThreshold()} times in a row, 0 if attempts are never blocked. The
+   *         backoff doubles after each failure, up to {@link #getMaxOpenBackoff()}.
+   */
+  public int getOpenBackoff() {
+    return openBackoff;
+  }
+
+  public int getMaxOpenBackoff() {
+    return maxOpenBackoff;
+  }
+
+  public int getOpenFailureThreshold() {
+    return openFailureThreshold;
+  }
+
+  /**
+   * @return the first port of the local port range, 0 if tunnels can use any free local port.
+   */
+  public int getFirstLocalPort() {
+    return firstLocalPort;
+  }
+
+  /**
+   * @return the last port of the local port range, 0 if tunnels can use any free local port.
+   */
+  public int getLastLocalPort() {
+    return lastLocalPort;
+  }
+
+  public TunnelMetrics getMetrics() {
+    return metrics;
+  }
+
+  public String getTransport() {
+    return transport;
+  }
+
+  /**
+   * @return the number of SSH session chains the connections of each tunnel are spread over.
+   */
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * @return the maximum number of connections forwarded at the same time on each SSH session, 0 if there's no limit.
+   */
+  public int getMaxChannelsPerSession() {
+    return maxChannelsPerSession;
+  }
+
+  public int getMaxExtraSessions() {
+    return maxExtraSessions;
+  }
+
+  public int getChannelQueueTimeout() {
+    return channelQueueTimeout;
+  }
+
+  /**
+   * @return the maximum number of SSH handshakes in flight at the same time with each host in the JVM, 0 if there's no
+   *         limit.
+   */
+  public int getMaxConcurrentHandshakes() {
+    return maxConcurrentHandshakes;
+  }
+
+  public int getMinIdleChannels() {
+    return minIdleChannels;
+  }
+
+  /**
+   * @return the maximum number of channels of each tunnel opened ahead of time, 0 if there's no channel pool.
+   */
+  public int getMaxIdleChannels() {
+    return maxIdleChannels;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(sshPort, route, privateKeys, knownHosts, localhost, sessionTimeout, strictHostKeyChecking,
+        sessionSharing, idleTimeout, keepAliveInterval, keepAliveCountMax, openBackoff, maxOpenBackoff,
+        openFailureThreshold, firstLocalPort, lastLocalPort, metrics, transport, shards, maxChannelsPerSession,
+        maxExtraSessions, channelQueueTimeout, maxConcurrentHandshakes, minIdleChannels, maxIdleChannels);
+  }
+
+  /**
+   * Settings are equal if all their values are equal and they report to the same {@link TunnelMetrics} instance.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    SshSettings other = (SshSettings) obj;
+    return sshPort == other.sshPort
+        && Objects.equals(route, other.route)
+        && Objects.equals(privateKeys, other.privateKeys)
+        && Objects.equals(knownHosts, other.knownHosts)
+        && Objects.equals(localhost, other.localhost)
+        && sessionTimeout == other.sessionTimeout
+        && strictHostKeyChecking == other.strictHostKeyChecking
+        && sessionSharing == other.sessionSharing
+        && idleTimeout == other.idleTimeout
+        && keepAliveInterval == other.keepAliveInterval
+        && keepAliveCountMax == other.keepAliveCountMax
+        && openBackoff == other.openBackoff
+        && maxOpenBackoff == other.maxOpenBackoff
+        && openFailureThreshold == other.openFailureThreshold
+        && firstLocalPort == other.firstLocalPort
+        && lastLocalPort == other.lastLocalPort
+        && metrics == other.metrics
+        && Objects.equals(transport, other.transport)
+        && shards == other.shards
+        && maxChannelsPerSession == other.maxChannelsPerSession
+        && maxExtraSessions == other.maxExtraSessions
+        && channelQueueTimeout == other.channelQueueTimeout
+        && maxConcurrentHandshakes == other.maxConcurrentHandshakes
+        && minIdleChannels == other.minIdleChannels
+        && maxIdleChannels == other.maxIdleChannels;
+  }
+
 }
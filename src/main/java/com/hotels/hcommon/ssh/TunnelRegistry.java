@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+/**
+ * Keeps track of the open tunnels so identical tunnels are only opened once.
+ * <p>
+ * Tunnels are reference counted: the tunnel is closed when the last {@link Reference} to it is released.
+ * </p>
+ */
+class TunnelRegistry {
+  private static final Logger log = LoggerFactory.getLogger(TunnelRegistry.class);
+
+  interface TunnelOpener {
+    /**
+     * @param localPort the local port of the tunnel, 0 for the first available one.
+     * @return a new {@link TunnelConnectionManager} whose tunnel hasn't been opened yet.
+     */
+    TunnelConnectionManager create(int localPort);
+
+    /**
+     * Opens the tunnel of a {@link TunnelConnectionManager} returned by {@link #create()}.
+     */
+    void open(TunnelConnectionManager tunnelConnectionManager);
+  }
+
+  /**
+   * Identifies a tunnel by the {@link SshSettings} it's opened with, which include its route, and its local and remote
+   * details. Factories configured differently never share a tunnel.
+   */
+  static final class Key {
+    private final SshSettings sshSettings;
+    private final String localHost;
+    private final int localPort;
+    private final String remoteHost;
+    private final int remotePort;
+
+    Key(SshSettings sshSettings, String localHost, int localPort, String remoteHost, int remotePort) {
+      this.sshSettings = sshSettings;
+      this.localHost = localHost;
+      this.localPort = localPort;
+      this.remoteHost = remoteHost;
+      this.remotePort = remotePort;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sshSettings, localHost, localPort, remoteHost, remotePort);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return Objects.equals(sshSettings, other.sshSettings)
+          && Objects.equals(localHost, other.localHost)
+          && localPort == other.localPort
+          && Objects.equals(remoteHost, other.remoteHost)
+          && remotePort == other.remotePort;
+    }
+
+    private Key withLocalPort(int localPort) {
+      return new Key(sshSettings, localHost, localPort, remoteHost, remotePort);
+    }
+
+    @Override
+    public String toString() {
+      return localHost + ":" + localPort + " -> " + sshSettings.getRoute() + " -> " + remoteHost + ":" + remotePort;
+    }
+  }
+
+  private static final class SharedTunnel {
+    private final Key key;
+    private TunnelConnectionManager tunnelConnectionManager;
+    private int localPort;
+    private int references;
+    private boolean registered = true;
+    private volatile boolean opened;
+
+    private SharedTunnel(Key key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A handle to a shared tunnel. Each handle holds at most one reference to the tunnel.
+   */
+  final class Reference implements TunnelReference {
+    private final TunnelOpener opener;
+    private volatile SharedTunnel sharedTunnel;
+    private volatile boolean held = true;
+
+    private Reference(SharedTunnel sharedTunnel, TunnelOpener opener) {
+      this.sharedTunnel = sharedTunnel;
+      this.opener = opener;
+    }
+
+    TunnelConnectionManager getTunnelConnectionManager() {
+      return sharedTunnel.tunnelConnectionManager;
+    }
+
+    int getLocalPort() {
+      return sharedTunnel.localPort;
+    }
+
+    /**
+     * Ensures the tunnel is open, acquiring it again if this handle has already been released. A tunnel closed since
+     * then is replaced by a new one on the same local port.
+     */
+    @Override
+    public void ensureOpen() throws JSchException {
+      if (!held) {
+        synchronized (this) {
+          if (!held) {
+            SharedTunnel released = sharedTunnel;
+            Key key = released.key;
+            if (key.localPort == 0) {
+              // The delegate connects to the port the tunnel was given
+              key = key.withLocalPort(released.localPort);
+            }
+            sharedTunnel = acquireTunnel(key, opener, true);
+            held = true;
+          }
+        }
+      }
+      SharedTunnel current = sharedTunnel;
+      current.tunnelConnectionManager.ensureOpen();
+      if (!current.opened) {
+        current.opened = true;
+      }
+    }
+
+    /**
+     * Releases the reference held by this handle. The tunnel is closed if this was its last reference.
+     */
+    @Override
+    public synchronized void release() {
+      if (held) {
+        held = false;
+        TunnelRegistry.this.release(sharedTunnel);
+      }
+    }
+  }
+
+  private final ConcurrentMap<Key, SharedTunnel> tunnels = new ConcurrentHashMap<>();
+
+  /**
+   * Returns a reference to the tunnel registered under the given key, creating a new one with the given opener if there
+   * is none.
+   *
+   * @param lazy if <code>false</code> the tunnel is opened before this method returns, otherwise it's opened by the
+   *          first call to {@link Reference#ensureOpen()}.
+   */
+  Reference acquire(Key key, TunnelOpener opener, boolean lazy) {
+    return new Reference(acquireTunnel(key, opener, lazy), opener);
+  }
+
+  private SharedTunnel acquireTunnel(Key key, TunnelOpener opener, boolean lazy) {
+    while (true) {
+      SharedTunnel sharedTunnel = tunnels.get(key);
+      if (sharedTunnel == null) {
+        SharedTunnel newTunnel = new SharedTunnel(key);
+        sharedTunnel = tunnels.putIfAbsent(key, newTunnel);
+        if (sharedTunnel == null) {
+          sharedTunnel = newTunnel;
+        }
+      }
+      synchronized (sharedTunnel) {
+        if (!sharedTunnel.registered) {
+          // Released concurrently, try again with a new one
+          continue;
+        }
+        if (sharedTunnel.tunnelConnectionManager == null) {
+          try {
+            sharedTunnel.tunnelConnectionManager = opener.create(key.localPort);
+          } catch (RuntimeException e) {
+            unregister(sharedTunnel);
+            throw e;
+          }
+          sharedTunnel.localPort = sharedTunnel.tunnelConnectionManager
+              .getTunnel(key.remoteHost, key.remotePort)
+              .getAssignedLocalPort();
+        } else {
+          log.debug("Reusing tunnel {} on local port {}", key, sharedTunnel.localPort);
+        }
+        if (!lazy && !sharedTunnel.opened) {
+          try {
+            opener.open(sharedTunnel.tunnelConnectionManager);
+          } catch (RuntimeException e) {
+            if (sharedTunnel.references == 0) {
+              unregister(sharedTunnel);
+              sharedTunnel.tunnelConnectionManager.close();
+            }
+            throw e;
+          }
+          sharedTunnel.opened = true;
+        }
+        sharedTunnel.references++;
+        return sharedTunnel;
+      }
+    }
+  }
+
+  private void unregister(SharedTunnel sharedTunnel) {
+    sharedTunnel.registered = false;
+    tunnels.remove(sharedTunnel.key, sharedTunnel);
+  }
+
+  private void release(SharedTunnel sharedTunnel) {
+    synchronized (sharedTunnel) {
+      if (--sharedTunnel.references == 0) {
+        if (sharedTunnel.registered) {
+          unregister(sharedTunnel);
+        }
+        sharedTunnel.opened = false;
+        log.debug("Closing tunnel {}: no references left", sharedTunnel.key);
+        sharedTunnel.tunnelConnectionManager.close();
+      }
+    }
+  }
+
+  /* VisibleForTesting */
+  int size() {
+    return tunnels.size();
+  }
+
+}
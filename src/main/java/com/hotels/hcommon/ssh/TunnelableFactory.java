@@ -16,11 +16,19 @@
 package com.hotels.hcommon.ssh;
 
 import static com.hotels.hcommon.ssh.tunnel.DefaultTunnelConnectionManagerFactory.LOCALHOST;
+import static com.hotels.hcommon.ssh.validation.Preconditions.checkArgument;
+import static com.hotels.hcommon.ssh.validation.Preconditions.checkNotNull;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.net.SocketFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,47 +36,88 @@ import org.slf4j.LoggerFactory;
 import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.tunnel.TunnelConnectionManager;
 
-import com.hotels.hcommon.ssh.session.DefaultSessionFactorySupplier;
-import com.hotels.hcommon.ssh.tunnel.DefaultTunnelConnectionManagerFactory;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.transport.SshTransports;
+import com.hotels.hcommon.ssh.tunnel.ChannelSocketFactory;
 import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
 
 public class TunnelableFactory<T extends Tunnelable> {
   private static final Logger log = LoggerFactory.getLogger(TunnelableFactory.class);
 
-  private static class TunnelingConnectableInvocationHandler<T> implements InvocationHandler {
-    private final TunnelConnectionManager tunnelConnectionManager;
-    private final T delegate;
-    private final MethodChecker methodChecker;
+  private static final TunnelRegistry TUNNEL_REGISTRY = new TunnelRegistry();
+  private static final String ANY_REMOTE_HOST = "*";
+  private static final int ANY_REMOTE_PORT = 0;
+
+  private static Object defaultValue(Class<?> type) {
+    if (type.isPrimitive() && type != void.class) {
+      return Array.get(Array.newInstance(type, 1), 0);
+    }
+    return null;
+  }
+
+  private static class TunnelingConnectableInvocationHandler<T extends Tunnelable> implements InvocationHandler {
+    private final TunnelReference tunnelReference;
+    private final TunnelableSupplier<T> delegateSupplier;
+    private final DispatchTable dispatchTable;
+    private volatile T delegate;
+
+    private TunnelingConnectableInvocationHandler(
+        TunnelReference tunnelReference,
+        T delegate,
+        MethodChecker methodChecker) {
+      this(tunnelReference, null, delegate, delegate.getClass(), methodChecker);
+    }
 
     private TunnelingConnectableInvocationHandler(
-        TunnelConnectionManager tunnelConnectionManager,
+        TunnelReference tunnelReference,
+        TunnelableSupplier<T> delegateSupplier,
         T delegate,
+        Class<?> delegateType,
         MethodChecker methodChecker) {
-      this.tunnelConnectionManager = tunnelConnectionManager;
+      this.tunnelReference = tunnelReference;
+      this.delegateSupplier = delegateSupplier;
       this.delegate = delegate;
-      this.methodChecker = methodChecker;
+      dispatchTable = DispatchTable.of(delegateType, methodChecker);
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-      if (methodChecker.isTunnelled(method)) {
-        tunnelConnectionManager.ensureOpen();
+      switch (dispatchTable.get(method)) {
+      case TUNNELLED:
+        tunnelReference.ensureOpen();
         return invoke(method, args);
-      }
-      if (methodChecker.isShutdown(method)) {
+      case SHUTDOWN:
         try {
-          Object result = invoke(method, args);
-          return result;
+          if (delegate == null) {
+            // Lazy delegate which has never been used: there's nothing to shut down
+            return defaultValue(method.getReturnType());
+          }
+          return invoke(method, args);
         } finally {
-          tunnelConnectionManager.close();
+          tunnelReference.release();
         }
+      default:
+        return invoke(method, args);
       }
-      return invoke(method, args);
+    }
+
+    private T getDelegate() {
+      T current = delegate;
+      if (current == null) {
+        synchronized (this) {
+          current = delegate;
+          if (current == null) {
+            current = delegateSupplier.get();
+            delegate = current;
+          }
+        }
+      }
+      return current;
     }
 
     private Object invoke(Method method, Object[] args) throws Throwable {
       try {
-        return method.invoke(delegate, args);
+        return method.invoke(getDelegate(), args);
       } catch (InvocationTargetException e) {
         Throwable cause = e.getCause();
         if (cause != null) {
@@ -81,16 +130,32 @@ public class TunnelableFactory<T extends Tunnelable> {
   }
 
   private final TunnelConnectionManagerFactory tunnelConnectionManagerFactory;
+  private final TunnelRegistry tunnelRegistry;
 
   public TunnelableFactory(SshSettings sshSettings) {
-    this(new DefaultTunnelConnectionManagerFactory(sshSettings, new DefaultSessionFactorySupplier(sshSettings)));
+    this(SshTransports.get(sshSettings.getTransport()).newTunnelConnectionManagerFactory(sshSettings),
+        TUNNEL_REGISTRY);
   }
 
   /* VisibleForTesting */
   TunnelableFactory(TunnelConnectionManagerFactory tunnelConnectionManagerFactory) {
+    this(tunnelConnectionManagerFactory, new TunnelRegistry());
+  }
+
+  /* VisibleForTesting */
+  TunnelableFactory(TunnelConnectionManagerFactory tunnelConnectionManagerFactory, TunnelRegistry tunnelRegistry) {
     this.tunnelConnectionManagerFactory = tunnelConnectionManagerFactory;
+    this.tunnelRegistry = tunnelRegistry;
   }
 
+  /**
+   * Wraps the delegate created by the supplier in a proxy which routes its traffic through a SSH tunnel.
+   * <p>
+   * Tunnels are shared: if a tunnel with the same local and remote details is already open in this JVM with equal
+   * {@link SshSettings} then it will be reused. The tunnel is closed when the shutdown method of the last proxy using
+   * it is invoked.
+   * </p>
+   */
   public Tunnelable wrap(
       TunnelableSupplier<T> delegateSupplier,
       MethodChecker methodChecker,
@@ -98,40 +163,214 @@ public class TunnelableFactory<T extends Tunnelable> {
       int localPort,
       String remoteHost,
       int remotePort) {
-    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create(localHost, localPort,
-        remoteHost, remotePort);
-    return wrap(delegateSupplier, methodChecker, tunnelConnectionManager, remoteHost, remotePort);
+    TunnelRegistry.Key key = new TunnelRegistry.Key(tunnelConnectionManagerFactory.getSshSettings(),
+        localHost, localPort, remoteHost, remotePort);
+    TunnelRegistry.Reference tunnelReference = tunnelRegistry.acquire(key,
+        newTunnelOpener(localHost, remoteHost, remotePort), false);
+    try {
+      return wrap(delegateSupplier, methodChecker, tunnelReference);
+    } catch (RuntimeException e) {
+      tunnelReference.release();
+      throw e;
+    }
   }
 
-  private Tunnelable wrap(
+  /**
+   * Wraps a delegate in a proxy which routes its traffic through a SSH tunnel that is only established when it's first
+   * needed.
+   * <p>
+   * The local port of the tunnel is reserved straight away but the SSH connection isn't established until the first
+   * tunnelled method is invoked on the proxy. The delegate is then created with the given supplier. Methods which are
+   * neither tunnelled nor shutdown methods create the delegate without establishing the tunnel. Invoking a shutdown
+   * method before the delegate has been created only releases the tunnel.
+   * </p>
+   *
+   * @param delegateType Type of the delegates created by the supplier or one of their interfaces. The proxy implements
+   *          the interfaces of this type, or the type itself if it's an interface.
+   */
+  public Tunnelable wrapLazily(
+      TunnelableSupplier<T> delegateSupplier,
+      Class<? super T> delegateType,
+      MethodChecker methodChecker,
+      String localHost,
+      int localPort,
+      String remoteHost,
+      int remotePort) {
+    checkNotNull(delegateType, "delegateType is required");
+    checkArgument(Tunnelable.class.isAssignableFrom(delegateType), "delegateType must be Tunnelable");
+    TunnelRegistry.Key key = new TunnelRegistry.Key(tunnelConnectionManagerFactory.getSshSettings(),
+        localHost, localPort, remoteHost, remotePort);
+    TunnelRegistry.Reference tunnelReference = tunnelRegistry.acquire(key,
+        newTunnelOpener(localHost, remoteHost, remotePort), true);
+    TunnelingConnectableInvocationHandler<T> tunneledHandler = new TunnelingConnectableInvocationHandler<>(
+        tunnelReference, delegateSupplier, null, delegateType, methodChecker);
+    return (Tunnelable) Proxy.newProxyInstance(getClass().getClassLoader(), DispatchTable.interfacesOf(delegateType),
+        tunneledHandler);
+  }
+
+  /**
+   * Asynchronous version of {@link #wrap(TunnelableSupplier, MethodChecker, String, int, String, int)}.
+   * <p>
+   * The SSH tunnel is established and the delegate is created by the given executor so the calling thread doesn't
+   * block on SSH I/O. The returned future completes exceptionally with a {@link SshException} if the tunnel cannot be
+   * established, or with the exception thrown by the supplier if the delegate cannot be created.
+   * </p>
+   */
+  public CompletableFuture<Tunnelable> wrapAsync(
       TunnelableSupplier<T> delegateSupplier,
       MethodChecker methodChecker,
-      TunnelConnectionManager tunnelConnectionManager,
+      String localHost,
+      int localPort,
+      String remoteHost,
+      int remotePort,
+      Executor executor) {
+    checkNotNull(executor, "executor is required");
+    return CompletableFuture.supplyAsync(
+        () -> wrap(delegateSupplier, methodChecker, localHost, localPort, remoteHost, remotePort), executor);
+  }
+
+  /**
+   * Wraps the delegate created by the supplier in a proxy whose connections are SSH channels instead of connections to
+   * the local port of a tunnel.
+   * <p>
+   * The supplier is given a {@link SocketFactory} and the delegate must make all its connections with it. Every socket
+   * created by the factory is a {@code direct-tcpip} channel to the remote host and port opened on the SSH session of
+   * the route, whatever address the socket is connected to. No local port is used and the data doesn't go through an
+   * extra thread. The SSH session is established before this method returns and, like a tunnel, it's released when
+   * the shutdown method of the proxy is invoked.
+   * </p>
+   */
+  public Tunnelable wrapWithSocketFactory(
+      SocketFactoryTunnelableSupplier<T> delegateSupplier,
+      MethodChecker methodChecker,
       String remoteHost,
       int remotePort) {
-    openTunnel(remoteHost, remotePort, tunnelConnectionManager);
+    checkNotNull(delegateSupplier, "delegateSupplier is required");
+    ChannelSocketFactory socketFactory = tunnelConnectionManagerFactory.createSocketFactory(remoteHost, remotePort);
+    TunnelReference tunnelReference = new TunnelReference() {
+      @Override
+      public void ensureOpen() throws JSchException {
+        socketFactory.ensureOpen();
+      }
+
+      @Override
+      public void release() {
+        socketFactory.close();
+      }
+    };
+    try {
+      openSocketFactory(remoteHost, remotePort, socketFactory);
+      return wrap(() -> delegateSupplier.get(socketFactory), methodChecker, tunnelReference);
+    } catch (RuntimeException e) {
+      socketFactory.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Wraps the delegate created by the supplier in a proxy whose connections go through a local SOCKS5 proxy, which is
+   * the equivalent of {@code ssh -D}.
+   * <p>
+   * The supplier is given the {@link java.net.Proxy} to connect through. Each connection made through it is forwarded
+   * as a {@code direct-tcpip} channel to the destination it asks for, on the SSH session of the route, so a single
+   * local port serves any number of remote hosts and ports. The SOCKS proxy is shared by all the delegates wrapped
+   * with the same route and local host and port, and it's closed when the shutdown method of the last proxy using it
+   * is invoked. A route is required.
+   * </p>
+   */
+  public Tunnelable wrapWithSocksProxy(
+      SocksTunnelableSupplier<T> delegateSupplier,
+      MethodChecker methodChecker,
+      String localHost,
+      int localPort) {
+    checkNotNull(delegateSupplier, "delegateSupplier is required");
+    TunnelRegistry.Key key = new TunnelRegistry.Key(tunnelConnectionManagerFactory.getSshSettings(),
+        localHost, localPort, ANY_REMOTE_HOST, ANY_REMOTE_PORT);
+    TunnelRegistry.Reference tunnelReference = tunnelRegistry.acquire(key, newSocksProxyOpener(localHost), false);
+    try {
+      java.net.Proxy socksProxy = new java.net.Proxy(java.net.Proxy.Type.SOCKS,
+          new InetSocketAddress(localHost, tunnelReference.getLocalPort()));
+      return wrap(() -> delegateSupplier.get(socksProxy), methodChecker, tunnelReference);
+    } catch (RuntimeException e) {
+      tunnelReference.release();
+      throw e;
+    }
+  }
+
+  private Tunnelable wrap(
+      TunnelableSupplier<T> delegateSupplier,
+      MethodChecker methodChecker,
+      TunnelReference tunnelReference) {
     T delegate = delegateSupplier.get();
     TunnelingConnectableInvocationHandler<T> tunneledHandler = new TunnelingConnectableInvocationHandler<>(
-        tunnelConnectionManager, delegate, methodChecker);
+        tunnelReference, delegate, methodChecker);
 
-    return (Tunnelable) Proxy.newProxyInstance(getClass().getClassLoader(), delegate.getClass().getInterfaces(),
-        tunneledHandler);
+    return (Tunnelable) Proxy.newProxyInstance(getClass().getClassLoader(),
+        DispatchTable.interfacesOf(delegate.getClass()), tunneledHandler);
+  }
+
+  private TunnelRegistry.TunnelOpener newTunnelOpener(String localHost, String remoteHost, int remotePort) {
+    return new TunnelRegistry.TunnelOpener() {
+      @Override
+      public TunnelConnectionManager create(int localPort) {
+        return tunnelConnectionManagerFactory.create(localHost, localPort, remoteHost, remotePort);
+      }
+
+      @Override
+      public void open(TunnelConnectionManager tunnelConnectionManager) {
+        openTunnel(remoteHost, remotePort, tunnelConnectionManager);
+      }
+    };
+  }
+
+  private TunnelRegistry.TunnelOpener newSocksProxyOpener(String localHost) {
+    return new TunnelRegistry.TunnelOpener() {
+      @Override
+      public TunnelConnectionManager create(int localPort) {
+        return tunnelConnectionManagerFactory.createDynamic(localHost, localPort);
+      }
+
+      @Override
+      public void open(TunnelConnectionManager tunnelConnectionManager) {
+        openTunnel(ANY_REMOTE_HOST, ANY_REMOTE_PORT, tunnelConnectionManager);
+      }
+    };
   }
 
   private int openTunnel(String remoteHost, int remotePort, TunnelConnectionManager tunnelConnectionManager) {
     SshSettings sshSettings = tunnelConnectionManagerFactory.getSshSettings();
+    TunnelMetrics metrics = sshSettings.getMetrics();
+    long start = System.nanoTime();
     try {
       log.debug("Creating tunnel: {}:? -> {} -> {}:{}", LOCALHOST, sshSettings.getRoute(), remoteHost, remotePort);
       int localPort = tunnelConnectionManager.getTunnel(remoteHost, remotePort).getAssignedLocalPort();
       tunnelConnectionManager.open();
+      metrics.tunnelOpened(System.nanoTime() - start);
       log.debug("Tunnel created: {}:{} -> {} -> {}:{}", LOCALHOST, localPort, sshSettings.getRoute(), remoteHost,
           remotePort);
       return localPort;
     } catch (JSchException | RuntimeException e) {
+      metrics.tunnelOpenFailed();
       String message = String.format("Unable to establish SSH tunnel: '%s:?' -> '%s' -> '%s:%s'", LOCALHOST,
           sshSettings.getRoute(), remoteHost, remotePort);
       throw new SshException(message, e);
     }
   }
 
+  private void openSocketFactory(String remoteHost, int remotePort, ChannelSocketFactory socketFactory) {
+    SshSettings sshSettings = tunnelConnectionManagerFactory.getSshSettings();
+    TunnelMetrics metrics = sshSettings.getMetrics();
+    long start = System.nanoTime();
+    try {
+      socketFactory.ensureOpen();
+      metrics.tunnelOpened(System.nanoTime() - start);
+      log.debug("SSH channels ready: {} -> {}:{}", sshSettings.getRoute(), remoteHost, remotePort);
+    } catch (JSchException | RuntimeException e) {
+      metrics.tunnelOpenFailed();
+      String message = String.format("Unable to establish SSH session: '%s' -> '%s:%s'", sshSettings.getRoute(),
+          remoteHost, remotePort);
+      throw new SshException(message, e);
+    }
+  }
+
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link TunnelMetrics} which keeps the measurements in memory so they can be read and exported to any metrics
+ * system.
+ * <p>
+ * Counters are {@link LongAdder LongAdders} and durations are recorded in {@link Histogram histograms} so recording
+ * doesn't lock nor allocate, except the first time a hop is seen.
+ * </p>
+ */
+public class InMemoryTunnelMetrics implements TunnelMetrics {
+
+  private final Histogram sessionFactoryCreation = new Histogram();
+  private final ConcurrentMap<String, Histogram> handshakes = new ConcurrentHashMap<>();
+  private final LongAdder activeSessions = new LongAdder();
+  private final Histogram tunnelOpens = new Histogram();
+  private final LongAdder tunnelOpenFailures = new LongAdder();
+  private final Histogram tunnelReopens = new Histogram();
+  private final LongAdder tunnelCloses = new LongAdder();
+  private final LongAdder activeTunnels = new LongAdder();
+  private final Histogram ensureOpenWaits = new Histogram();
+
+  @Override
+  public void sessionFactoryCreated(long nanos) {
+    sessionFactoryCreation.record(nanos);
+  }
+
+  @Override
+  public void handshake(String hop, long nanos) {
+    Histogram histogram = handshakes.get(hop);
+    if (histogram == null) {
+      histogram = handshakes.computeIfAbsent(hop, key -> new Histogram());
+    }
+    histogram.record(nanos);
+  }
+
+  @Override
+  public void sessionConnected() {
+    activeSessions.increment();
+  }
+
+  @Override
+  public void sessionDisconnected() {
+    activeSessions.decrement();
+  }
+
+  @Override
+  public void tunnelOpened(long nanos) {
+    tunnelOpens.record(nanos);
+  }
+
+  @Override
+  public void tunnelOpenFailed() {
+    tunnelOpenFailures.increment();
+  }
+
+  @Override
+  public void tunnelReopened(long nanos) {
+    tunnelReopens.record(nanos);
+  }
+
+  @Override
+  public void tunnelClosed() {
+    tunnelCloses.increment();
+  }
+
+  @Override
+  public void tunnelUp() {
+    activeTunnels.increment();
+  }
+
+  @Override
+  public void tunnelDown() {
+    activeTunnels.decrement();
+  }
+
+  @Override
+  public void ensureOpenWaited(long nanos) {
+    ensureOpenWaits.record(nanos);
+  }
+
+  public Histogram getSessionFactoryCreation() {
+    return sessionFactoryCreation;
+  }
+
+  /**
+   * @return the handshake durations of each hop.
+   */
+  public Map<String, Histogram> getHandshakes() {
+    return Collections.unmodifiableMap(handshakes);
+  }
+
+  public long getActiveSessions() {
+    return activeSessions.sum();
+  }
+
+  /**
+   * @return the durations of the tunnel opens, their count being the number of tunnels opened.
+   */
+  public Histogram getTunnelOpens() {
+    return tunnelOpens;
+  }
+
+  public long getTunnelOpenFailures() {
+    return tunnelOpenFailures.sum();
+  }
+
+  /**
+   * @return the durations of the tunnel reopens, their count being the number of tunnels reopened.
+   */
+  public Histogram getTunnelReopens() {
+    return tunnelReopens;
+  }
+
+  public long getTunnelCloses() {
+    return tunnelCloses.sum();
+  }
+
+  public long getActiveTunnels() {
+    return activeTunnels.sum();
+  }
+
+  public Histogram getEnsureOpenWaits() {
+    return ensureOpenWaits;
+  }
+
+}
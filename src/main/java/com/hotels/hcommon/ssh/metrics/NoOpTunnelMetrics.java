@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.metrics;
+
+/**
+ * {@link TunnelMetrics} which discards all the measurements.
+ */
+public final class NoOpTunnelMetrics implements TunnelMetrics {
+
+  public static final NoOpTunnelMetrics INSTANCE = new NoOpTunnelMetrics();
+
+  private NoOpTunnelMetrics() {}
+
+  @Override
+  public void sessionFactoryCreated(long nanos) {}
+
+  @Override
+  public void handshake(String hop, long nanos) {}
+
+  @Override
+  public void sessionConnected() {}
+
+  @Override
+  public void sessionDisconnected() {}
+
+  @Override
+  public void tunnelOpened(long nanos) {}
+
+  @Override
+  public void tunnelOpenFailed() {}
+
+  @Override
+  public void tunnelReopened(long nanos) {}
+
+  @Override
+  public void tunnelClosed() {}
+
+  @Override
+  public void tunnelUp() {}
+
+  @Override
+  public void tunnelDown() {}
+
+  @Override
+  public void ensureOpenWaited(long nanos) {}
+
+}
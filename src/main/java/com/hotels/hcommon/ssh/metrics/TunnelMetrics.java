@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.metrics;
+
+/**
+ * Receives the measurements of the SSH tunnels.
+ * <p>
+ * Implementations are called on the threads using the tunnels, possibly concurrently, so they must be thread safe and
+ * should not block. Durations are in nanoseconds.
+ * </p>
+ *
+ * @see InMemoryTunnelMetrics
+ * @see NoOpTunnelMetrics
+ */
+public interface TunnelMetrics {
+
+  /**
+   * A session factory has been created, i.e. the private keys and known hosts have been loaded.
+   */
+  void sessionFactoryCreated(long nanos);
+
+  /**
+   * The SSH handshake with a hop of a route has completed.
+   *
+   * @param hop Host name of the hop.
+   */
+  void handshake(String hop, long nanos);
+
+  /**
+   * A SSH session has been connected. Each hop of a route has its own session.
+   */
+  void sessionConnected();
+
+  /**
+   * A SSH session previously reported by {@link #sessionConnected()} has been disconnected.
+   */
+  void sessionDisconnected();
+
+  /**
+   * A tunnel has been opened by {@code TunnelableFactory}.
+   */
+  void tunnelOpened(long nanos);
+
+  /**
+   * A tunnel could not be opened.
+   */
+  void tunnelOpenFailed();
+
+  /**
+   * A tunnel whose session was lost, or which was closed because it was idle, has been reopened.
+   */
+  void tunnelReopened(long nanos);
+
+  /**
+   * A tunnel has been closed.
+   */
+  void tunnelClosed();
+
+  /**
+   * A tunnel has become usable. Together with {@link #tunnelDown()} it tracks the number of active tunnels.
+   */
+  void tunnelUp();
+
+  /**
+   * A tunnel reported by {@link #tunnelUp()} is no longer usable.
+   */
+  void tunnelDown();
+
+  /**
+   * A tunnelled call had to wait for the tunnel to be reopened.
+   */
+  void ensureOpenWaited(long nanos);
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.route;
+
+/**
+ * A hop of a {@link Route}: a host name or IP address, optionally preceded by a user name.
+ */
+public final class Hop {
+
+  private final String user;
+  private final String hostname;
+
+  Hop(String user, String hostname) {
+    this.user = user;
+    this.hostname = hostname;
+  }
+
+  /**
+   * @return the user name, <code>null</code> if none was given.
+   */
+  public String getUser() {
+    return user;
+  }
+
+  public String getHostname() {
+    return hostname;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (user == null ? 0 : user.hashCode()) + hostname.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    Hop other = (Hop) obj;
+    return (user == null ? other.user == null : user.equals(other.user)) && hostname.equals(other.hostname);
+  }
+
+  @Override
+  public String toString() {
+    return user == null ? hostname : user + "@" + hostname;
+  }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.route;
+
+import java.net.IDN;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, parsed tunnel route such as {@code user1@host1 -> host2}.
+ * <p>
+ * Routes are parsed in a single pass without regular expressions. Host names and user names made of ASCII characters
+ * only, which is what's expected in practice, are checked character by character. Other names are converted with
+ * {@link IDN#toASCII(String)} first. The route is rendered once without whitespace, e.g. {@code user1@host1->host2},
+ * so it can be reused by every tunnel.
+ * </p>
+ */
+public final class Route {
+
+  public static final Route EMPTY = new Route(Collections.<Hop> emptyList(), "");
+
+  private static final String HOP_SEPARATOR = "->";
+  private static final int MAX_USER_LENGTH = 64;
+  private static final int MAX_HOSTNAME_LENGTH = 255;
+  private static final int MAX_IDN_LABEL_LENGTH = 63;
+  private static final String USER_SYMBOLS = "!#$%&'*+/=?^_`{|}~-";
+
+  /**
+   * Parses a route expression. Hops are separated by {@code ->} and surrounded by optional whitespace.
+   *
+   * @param expression Route expression, <code>null</code> or blank for a route without hops.
+   * @throws IllegalArgumentException if the expression isn't a valid route.
+   */
+  public static Route parse(CharSequence expression) {
+    if (expression == null) {
+      return EMPTY;
+    }
+    String value = expression.toString();
+    if (value.trim().isEmpty()) {
+      return EMPTY;
+    }
+    List<Hop> hops = new ArrayList<>(4);
+    StringBuilder path = new StringBuilder(value.length());
+    int start = 0;
+    while (true) {
+      int end = value.indexOf(HOP_SEPARATOR, start);
+      if (end < 0) {
+        end = value.length();
+      }
+      Hop hop = parseHop(value, start, end);
+      if (hop == null) {
+        throw new IllegalArgumentException("Invalid SSH tunnel route: '" + value + "'");
+      }
+      if (!hops.isEmpty()) {
+        path.append(HOP_SEPARATOR);
+      }
+      hops.add(hop);
+      path.append(hop);
+      if (end == value.length()) {
+        break;
+      }
+      start = end + HOP_SEPARATOR.length();
+    }
+    return new Route(Collections.unmodifiableList(hops), path.toString());
+  }
+
+  /**
+   * @return <code>true</code> if the expression can be {@link #parse(CharSequence) parsed}, <code>false</code>
+   *         otherwise.
+   */
+  public static boolean isValid(CharSequence expression) {
+    try {
+      parse(expression);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static Hop parseHop(String value, int start, int end) {
+    start = skipWhitespace(value, start, end);
+    end = trimWhitespace(value, start, end);
+    int separator = value.indexOf('@', start);
+    if (separator >= end) {
+      separator = -1;
+    }
+    String user = null;
+    int hostnameStart = start;
+    if (separator >= 0) {
+      int secondSeparator = value.indexOf('@', separator + 1);
+      if (secondSeparator >= 0 && secondSeparator < end) {
+        return null;
+      }
+      user = value.substring(start, trimWhitespace(value, start, separator));
+      hostnameStart = skipWhitespace(value, separator + 1, end);
+      if (!isValidUser(user)) {
+        return null;
+      }
+    }
+    String hostname = value.substring(hostnameStart, end);
+    if (!isValidHostname(hostname)) {
+      return null;
+    }
+    return new Hop(user, hostname);
+  }
+
+  private static int skipWhitespace(String value, int start, int end) {
+    while (start < end && Character.isWhitespace(value.charAt(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimWhitespace(String value, int start, int end) {
+    while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isValidUser(String user) {
+    String ascii = toAscii(user);
+    if (ascii == null || ascii.isEmpty() || ascii.length() > MAX_USER_LENGTH) {
+      return false;
+    }
+    boolean dotAllowed = false;
+    for (int i = 0; i < ascii.length(); i++) {
+      char c = ascii.charAt(i);
+      if (c == '.') {
+        if (!dotAllowed) {
+          return false;
+        }
+        dotAllowed = false;
+      } else if (isAlphanumeric(c) || USER_SYMBOLS.indexOf(c) >= 0) {
+        dotAllowed = true;
+      } else {
+        return false;
+      }
+    }
+    // IDN.toASCII drops a trailing dot so it's checked on the original user name too
+    return dotAllowed && !user.endsWith(".");
+  }
+
+  private static boolean isValidHostname(String hostname) {
+    String ascii = toAscii(hostname);
+    if (ascii == null || ascii.isEmpty() || ascii.length() > MAX_HOSTNAME_LENGTH || hostname.endsWith(".")) {
+      return false;
+    }
+    int labelStart = 0;
+    for (int i = 0; i <= ascii.length(); i++) {
+      char c = i == ascii.length() ? '.' : ascii.charAt(i);
+      if (c == '.') {
+        // Labels are made of letters, digits and hyphens, and don't start nor end with a hyphen
+        if (i == labelStart || ascii.charAt(labelStart) == '-' || ascii.charAt(i - 1) == '-') {
+          return false;
+        }
+        labelStart = i + 1;
+      } else if (!isAlphanumeric(c) && c != '-') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAlphanumeric(char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+  }
+
+  /**
+   * @return the value itself if it's made of ASCII characters, its IDN ASCII form otherwise or <code>null</code> if it
+   *         cannot be converted.
+   */
+  private static String toAscii(String value) {
+    boolean ascii = true;
+    for (int i = 0; i < value.length() && ascii; i++) {
+      ascii = value.charAt(i) < 0x80;
+    }
+    if (ascii) {
+      return value;
+    }
+    try {
+      // IDN.toASCII only supports labels of up to 63 characters so the value is converted in chunks of that size
+      StringBuilder builder = new StringBuilder(value.length() * 2);
+      for (int start = 0; start < value.length(); start += MAX_IDN_LABEL_LENGTH) {
+        builder.append(IDN.toASCII(value.substring(start, Math.min(value.length(), start + MAX_IDN_LABEL_LENGTH))));
+      }
+      return builder.toString();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private final List<Hop> hops;
+  private final String path;
+
+  private Route(List<Hop> hops, String path) {
+    this.hops = hops;
+    this.path = path;
+  }
+
+  public List<Hop> getHops() {
+    return hops;
+  }
+
+  public boolean isEmpty() {
+    return hops.isEmpty();
+  }
+
+  /**
+   * @return the route without whitespace, e.g. {@code user1@host1->host2}, or an empty string if it has no hops.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public int hashCode() {
+    return path.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return path.equals(((Route) obj).path);
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+}
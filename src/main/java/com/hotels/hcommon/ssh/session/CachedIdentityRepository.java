@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.IdentityRepository;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * A read-only {@link IdentityRepository} whose identities are looked up in an {@link IdentityCache} every time a
+ * session authenticates, so sessions pick up key files changed on disk without parsing unchanged ones again.
+ */
+class CachedIdentityRepository implements IdentityRepository {
+  private static final Logger log = LoggerFactory.getLogger(CachedIdentityRepository.class);
+
+  private final IdentityCache identityCache;
+  private final List<String> privateKeys;
+
+  CachedIdentityRepository(IdentityCache identityCache, List<String> privateKeys) {
+    this.identityCache = identityCache;
+    this.privateKeys = privateKeys;
+  }
+
+  /**
+   * Loads all the private keys into the cache.
+   *
+   * @throws JSchException if any of the keys cannot be loaded.
+   */
+  void load() throws JSchException {
+    identityCache.get(privateKeys);
+  }
+
+  @Override
+  public String getName() {
+    return CachedIdentityRepository.class.getSimpleName();
+  }
+
+  @Override
+  public int getStatus() {
+    return RUNNING;
+  }
+
+  @Override
+  public Vector<Identity> getIdentities() {
+    Vector<Identity> identities = new Vector<>(privateKeys.size());
+    for (String privateKey : privateKeys) {
+      try {
+        identities.add(identityCache.get(privateKey));
+      } catch (JSchException e) {
+        log.warn("Unable to load private key {}", privateKey, e);
+      }
+    }
+    return identities;
+  }
+
+  @Override
+  public boolean add(byte[] identity) {
+    return false;
+  }
+
+  @Override
+  public boolean remove(byte[] blob) {
+    return false;
+  }
+
+  @Override
+  public void removeAll() {}
+
+}
@@ -15,6 +15,10 @@
  */
 package com.hotels.hcommon.ssh.session;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,34 +35,91 @@ public class DefaultSessionFactorySupplier implements SessionFactorySupplier {
   private static final String PROPERTY_JSCH_STRICT_HOST_KEY_CHECKING = "StrictHostKeyChecking";
 
   private final SshSettings sshSettings;
-  private SessionFactory sessionFactory = null;
+  private final AtomicReference<CompletableFuture<SessionFactory>> sessionFactory = new AtomicReference<>();
 
   public DefaultSessionFactorySupplier(SshSettings sshSettings) {
     this.sshSettings = sshSettings;
   }
 
+  /**
+   * Returns the session factory, creating it on the first call.
+   * <p>
+   * Only one thread creates the factory and any other thread calling this method meanwhile waits for the outcome of
+   * that same attempt. If the attempt fails the next call tries again.
+   * </p>
+   */
   @Override
   public SessionFactory get() {
-    if (sessionFactory == null) {
-      try {
-        synchronized (this) {
-          System.setProperty(DefaultSessionFactory.PROPERTY_JSCH_KNOWN_HOSTS_FILE, sshSettings.getKnownHosts());
-          DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory();
-          defaultSessionFactory.setIdentitiesFromPrivateKeys(sshSettings.getPrivateKeys());
-          defaultSessionFactory.setPort(sshSettings.getSshPort());
-          defaultSessionFactory.setConfig(PROPERTY_JSCH_STRICT_HOST_KEY_CHECKING, strictHostKeyChecking());
-          sessionFactory = new DelegatingSessionFactory(defaultSessionFactory, sshSettings.getSessionTimeout());
-          log.debug("Session factory created for {}@{}:{}", sessionFactory.getUsername(), sessionFactory.getHostname(),
-              sessionFactory.getPort());
+    while (true) {
+      CompletableFuture<SessionFactory> current = sessionFactory.get();
+      if (current != null) {
+        return await(current);
+      }
+      CompletableFuture<SessionFactory> attempt = new CompletableFuture<>();
+      if (sessionFactory.compareAndSet(null, attempt)) {
+        SessionFactory newSessionFactory;
+        try {
+          newSessionFactory = newSessionFactory();
+        } catch (RuntimeException e) {
+          sessionFactory.compareAndSet(attempt, null);
+          attempt.completeExceptionally(e);
+          throw e;
         }
-      } catch (JSchException | RuntimeException e) {
-        throw new SshException("Unable to create factory with knownHosts="
-            + sshSettings.getKnownHosts()
-            + " and identityKeys="
-            + sshSettings.getPrivateKeys(), e);
+        attempt.complete(newSessionFactory);
+        return newSessionFactory;
+      }
+    }
+  }
+
+  /**
+   * Discards the session factory so the next call to {@link #get()} creates a new one. Sessions already opened by the
+   * discarded factory are not affected.
+   * <p>
+   * Changes to the private key and known hosts files are picked up by the existing factory, there is no need to
+   * invalidate it for them.
+   * </p>
+   */
+  public void invalidate() {
+    if (sessionFactory.getAndSet(null) != null) {
+      log.debug("Session factory invalidated");
+    }
+  }
+
+  private static SessionFactory await(CompletableFuture<SessionFactory> attempt) {
+    try {
+      return attempt.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SshException) {
+        throw (SshException) cause;
       }
+      throw new SshException("Unable to create session factory", cause);
+    }
+  }
+
+  private SessionFactory newSessionFactory() {
+    try {
+      long start = System.nanoTime();
+      KnownHostsRepository knownHostsRepository = KnownHostsRepository.forFile(sshSettings.getKnownHosts());
+      DefaultSessionFactory defaultSessionFactory = new DefaultSessionFactory();
+      CachedIdentityRepository identityRepository = new CachedIdentityRepository(IdentityCache.INSTANCE,
+          sshSettings.getPrivateKeys());
+      identityRepository.load();
+      defaultSessionFactory.setIdentityRepository(identityRepository);
+      defaultSessionFactory.setPort(sshSettings.getSshPort());
+      defaultSessionFactory.setConfig(PROPERTY_JSCH_STRICT_HOST_KEY_CHECKING, strictHostKeyChecking());
+      SessionFactory sessionFactory = new DelegatingSessionFactory(defaultSessionFactory,
+          sshSettings.getSessionTimeout(), knownHostsRepository);
+      sshSettings.getMetrics().sessionFactoryCreated(System.nanoTime() - start);
+      log.debug("Session factory created for {}@{}:{}", sessionFactory.getUsername(), sessionFactory.getHostname(),
+          sessionFactory.getPort());
+      return sessionFactory;
+    } catch (JSchException | RuntimeException e) {
+      throw new SshException("Unable to create factory with knownHosts="
+          + sshSettings.getKnownHosts()
+          + " and identityKeys="
+          + sshSettings.getPrivateKeys(), e);
     }
-    return sessionFactory;
   }
 
   private String strictHostKeyChecking() {
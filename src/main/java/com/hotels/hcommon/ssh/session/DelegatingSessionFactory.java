@@ -18,6 +18,7 @@ package com.hotels.hcommon.ssh.session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jcraft.jsch.HostKeyRepository;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Proxy;
 import com.jcraft.jsch.Session;
@@ -30,10 +31,21 @@ class DelegatingSessionFactory implements SessionFactory {
   final SessionFactory delegate;
   /* VisibleForTesting */
   final int sshTimeout;
+  /* VisibleForTesting */
+  final HostKeyRepository hostKeyRepository;
 
   DelegatingSessionFactory(SessionFactory delegate, int sshTimeout) {
+    this(delegate, sshTimeout, null);
+  }
+
+  /**
+   * @param hostKeyRepository repository set on every new session, if not <code>null</code>, instead of the one of the
+   *          delegate's JSch instance.
+   */
+  DelegatingSessionFactory(SessionFactory delegate, int sshTimeout, HostKeyRepository hostKeyRepository) {
     this.delegate = delegate;
     this.sshTimeout = sshTimeout;
+    this.hostKeyRepository = hostKeyRepository;
   }
 
   @Override
@@ -61,13 +73,16 @@ class DelegatingSessionFactory implements SessionFactory {
     Session session = delegate.newSession();
     log.info("Setting SSH session timeout to {}", sshTimeout);
     session.setTimeout(sshTimeout);
+    if (hostKeyRepository != null) {
+      session.setHostKeyRepository(hostKeyRepository);
+    }
     return session;
   }
 
   @Override
   public SessionFactoryBuilder newSessionFactoryBuilder() {
     SessionFactoryBuilder builder = delegate.newSessionFactoryBuilder();
-    return new DelegatingSessionFactoryBuilder(builder, sshTimeout);
+    return new DelegatingSessionFactoryBuilder(builder, sshTimeout, hostKeyRepository);
   }
 
 }
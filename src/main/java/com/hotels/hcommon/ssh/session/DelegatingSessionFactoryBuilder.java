@@ -17,6 +17,7 @@ package com.hotels.hcommon.ssh.session;
 
 import java.util.Map;
 
+import com.jcraft.jsch.HostKeyRepository;
 import com.jcraft.jsch.Proxy;
 import com.pastdev.jsch.SessionFactory;
 import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
@@ -25,11 +26,20 @@ class DelegatingSessionFactoryBuilder extends SessionFactoryBuilder {
   /* VisibleForTesting */
   final SessionFactoryBuilder delegate;
   private final int sshTimeout;
+  private final HostKeyRepository hostKeyRepository;
 
   DelegatingSessionFactoryBuilder(SessionFactoryBuilder delegate, int sshTimeout) {
+    this(delegate, sshTimeout, null);
+  }
+
+  DelegatingSessionFactoryBuilder(
+      SessionFactoryBuilder delegate,
+      int sshTimeout,
+      HostKeyRepository hostKeyRepository) {
     super(null, null, null, -1, null, null);
     this.delegate = delegate;
     this.sshTimeout = sshTimeout;
+    this.hostKeyRepository = hostKeyRepository;
   }
 
   @Override
@@ -64,6 +74,6 @@ class DelegatingSessionFactoryBuilder extends SessionFactoryBuilder {
 
   @Override
   public SessionFactory build() {
-    return new DelegatingSessionFactory(delegate.build(), sshTimeout);
+    return new DelegatingSessionFactory(delegate.build(), sshTimeout, hostKeyRepository);
   }
 }
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+/**
+ * Process-wide cache of the private keys used to authenticate SSH sessions.
+ * <p>
+ * Keys are parsed once and shared by every session factory. A key is keyed by its path and is only parsed again when
+ * the modification time or the size of its file changes. A key whose file has been deleted or can no longer be loaded
+ * is dropped from the cache, so sessions stop authenticating with it.
+ * </p>
+ */
+final class IdentityCache {
+  private static final Logger log = LoggerFactory.getLogger(IdentityCache.class);
+
+  static final IdentityCache INSTANCE = new IdentityCache();
+
+  private static final class Entry {
+    private final FileTime lastModified;
+    private final long size;
+    private final Identity identity;
+
+    private Entry(BasicFileAttributes attributes, Identity identity) {
+      lastModified = attributes.lastModifiedTime();
+      size = attributes.size();
+      this.identity = identity;
+    }
+
+    private boolean isCurrent(BasicFileAttributes attributes) {
+      return lastModified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+    }
+  }
+
+  private final JSch jsch = new JSch();
+  private final ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+  /* VisibleForTesting */
+  IdentityCache() {}
+
+  /**
+   * @return the identities of the given private keys, in the same order.
+   * @throws JSchException if any of the keys cannot be loaded.
+   */
+  List<Identity> get(List<String> privateKeys) throws JSchException {
+    List<Identity> identities = new ArrayList<>(privateKeys.size());
+    for (String privateKey : privateKeys) {
+      identities.add(get(privateKey));
+    }
+    return identities;
+  }
+
+  /**
+   * @return the identity of the given private key, parsing the key file only if it has changed since it was last
+   *         loaded.
+   * @throws JSchException if the key cannot be loaded.
+   */
+  Identity get(String privateKey) throws JSchException {
+    Path path = Paths.get(privateKey).toAbsolutePath().normalize();
+    Entry entry = entries.get(path);
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      if (entries.remove(path) != null) {
+        log.warn("Unable to read private key {}, dropping the one loaded before", path);
+      }
+      throw new JSchException("Unable to read private key " + path, e);
+    }
+    if (entry != null && entry.isCurrent(attributes)) {
+      return entry.identity;
+    }
+    synchronized (this) {
+      entry = entries.get(path);
+      if (entry != null && entry.isCurrent(attributes)) {
+        return entry.identity;
+      }
+      Identity identity;
+      try {
+        identity = new KeyPairIdentity(path.toString(), KeyPair.load(jsch, path.toString()));
+      } catch (JSchException | RuntimeException e) {
+        if (entries.remove(path) != null) {
+          log.warn("Unable to load private key {}, dropping the one loaded before", path);
+        }
+        throw e;
+      }
+      log.debug("Loaded private key {}", path);
+      entries.put(path, new Entry(attributes, identity));
+      return identity;
+    }
+  }
+
+  /* VisibleForTesting */
+  int size() {
+    return entries.size();
+  }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+/**
+ * An {@link Identity} backed by a {@link KeyPair} which can be shared by several JSch instances.
+ * <p>
+ * Once an encrypted key has been decrypted it stays decrypted for every session using it. {@link #clear()} doesn't
+ * dispose the key since other sessions may still need it.
+ * </p>
+ */
+final class KeyPairIdentity implements Identity {
+
+  private final String name;
+  private final KeyPair keyPair;
+
+  KeyPairIdentity(String name, KeyPair keyPair) {
+    this.name = name;
+    this.keyPair = keyPair;
+  }
+
+  @Override
+  public synchronized boolean setPassphrase(byte[] passphrase) throws JSchException {
+    return !keyPair.isEncrypted() || keyPair.decrypt(passphrase);
+  }
+
+  @Override
+  public synchronized byte[] getPublicKeyBlob() {
+    return keyPair.getPublicKeyBlob();
+  }
+
+  @Override
+  public synchronized byte[] getSignature(byte[] data) {
+    return keyPair.getSignature(data);
+  }
+
+  @Override
+  public boolean decrypt() {
+    return !isEncrypted();
+  }
+
+  @Override
+  public synchronized String getAlgName() {
+    String algName = PublicKeys.keyType(keyPair.getPublicKeyBlob());
+    if (algName != null) {
+      return algName;
+    }
+    // The public key of an encrypted private key without a public key file is only known once it's decrypted
+    switch (keyPair.getKeyType()) {
+      case KeyPair.DSA:
+        return "ssh-dss";
+      case KeyPair.RSA:
+        return "ssh-rsa";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public synchronized boolean isEncrypted() {
+    return keyPair.isEncrypted();
+  }
+
+  @Override
+  public void clear() {}
+
+}
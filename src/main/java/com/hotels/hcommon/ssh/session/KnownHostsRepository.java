@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.UserInfo;
+
+/**
+ * A {@link HostKeyRepository} holding a known_hosts file in memory, shared by every session checking host keys against
+ * the same file.
+ * <p>
+ * Plain host names are indexed in a hash map. Hashed host names ({@code |1|salt|hash}) cannot be indexed until the
+ * host name is known, so the first check of a host computes its HMAC against every hashed entry once and the
+ * resolved entries of the host are then cached. Checking a host which has been seen before costs a single lookup.
+ * </p>
+ * <p>
+ * The file is checked for changes before every lookup. When lines have only been appended to the file they are parsed
+ * and added to the index without parsing the rest of the file again, any other change reloads the whole file. Host
+ * keys added by JSch, for instance when strict host key checking is off, are kept in memory only. Lines with a marker
+ * such as {@code @revoked} or {@code @cert-authority} are ignored.
+ * </p>
+ */
+final class KnownHostsRepository implements HostKeyRepository {
+  private static final Logger log = LoggerFactory.getLogger(KnownHostsRepository.class);
+
+  private static final ConcurrentMap<Path, KnownHostsRepository> REPOSITORIES = new ConcurrentHashMap<>();
+
+  private static final String HASH_MAGIC = "|1|";
+  private static final String HASH_DELIMITER = "|";
+  private static final String HMAC_SHA1 = "HmacSHA1";
+
+  /**
+   * @return the repository of the given known_hosts file, shared by every caller in the JVM. The file is loaded the
+   *         first time it's asked for.
+   * @throws JSchException if the file exists but cannot be read.
+   */
+  static KnownHostsRepository forFile(String knownHosts) throws JSchException {
+    Path path = Paths.get(knownHosts).toAbsolutePath().normalize();
+    KnownHostsRepository repository = REPOSITORIES.computeIfAbsent(path, KnownHostsRepository::new);
+    try {
+      repository.refresh();
+    } catch (IOException e) {
+      throw new JSchException("Unable to read known hosts " + path, e);
+    }
+    return repository;
+  }
+
+  private static final class Entry {
+    private final String host;
+    private final String type;
+    private final byte[] key;
+
+    private Entry(String host, String type, byte[] key) {
+      this.host = host;
+      this.type = type;
+      this.key = key;
+    }
+
+    private HostKey toHostKey() {
+      try {
+        return new HostKey(host, key);
+      } catch (JSchException e) {
+        // Key type unknown to JSch
+        return null;
+      }
+    }
+  }
+
+  private static final class HashedEntry {
+    private final byte[] salt;
+    private final byte[] hash;
+    private final Entry entry;
+
+    private HashedEntry(byte[] salt, byte[] hash, Entry entry) {
+      this.salt = salt;
+      this.hash = hash;
+      this.entry = entry;
+    }
+
+    private boolean matches(String host) {
+      try {
+        Mac mac = Mac.getInstance(HMAC_SHA1);
+        mac.init(new SecretKeySpec(salt, HMAC_SHA1));
+        return MessageDigest.isEqual(hash, mac.doFinal(host.getBytes(StandardCharsets.UTF_8)));
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Unable to compute " + HMAC_SHA1 + " of host " + host, e);
+      }
+    }
+  }
+
+  private final Path path;
+  private final Map<String, List<Entry>> plainEntries = new HashMap<>();
+  private final List<HashedEntry> hashedEntries = new ArrayList<>();
+  private final List<Entry> addedEntries = new ArrayList<>();
+  private final ConcurrentMap<String, List<Entry>> resolvedEntries = new ConcurrentHashMap<>();
+  private FileTime lastModified;
+  private long size = -1;
+  private long checksum;
+
+  /* VisibleForTesting */
+  KnownHostsRepository(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Brings the in-memory entries up to date with the file, parsing only the appended lines if the file has only grown.
+   */
+  /* VisibleForTesting */
+  synchronized void refresh() throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      if (size != 0) {
+        clear();
+        size = 0;
+        lastModified = null;
+      }
+      return;
+    }
+    if (attributes.size() == size && attributes.lastModifiedTime().equals(lastModified)) {
+      return;
+    }
+    byte[] content = Files.readAllBytes(path);
+    int offset = appendOffset(content);
+    if (offset < 0) {
+      clear();
+      offset = 0;
+      log.debug("Loading known hosts {}", path);
+    } else {
+      log.debug("Loading hosts appended to known hosts {}", path);
+    }
+    parse(new String(content, offset, content.length - offset, StandardCharsets.UTF_8));
+    size = content.length;
+    checksum = checksum(content, content.length);
+    lastModified = attributes.lastModifiedTime();
+  }
+
+  /**
+   * @return the offset from which the content only has lines appended since it was last loaded, or -1 if it has to be
+   *         loaded again.
+   */
+  private int appendOffset(byte[] content) {
+    if (size <= 0 || content.length <= size || content[(int) size - 1] != '\n') {
+      return -1;
+    }
+    return checksum(content, (int) size) == checksum ? (int) size : -1;
+  }
+
+  private static long checksum(byte[] content, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, length);
+    return crc.getValue();
+  }
+
+  private void clear() {
+    plainEntries.clear();
+    hashedEntries.clear();
+    resolvedEntries.clear();
+    for (Entry entry : addedEntries) {
+      index(entry);
+    }
+  }
+
+  private void parse(String content) {
+    for (String line : content.split("\n")) {
+      Entry entry = parseLine(line.trim());
+      if (entry != null) {
+        index(entry);
+      }
+    }
+  }
+
+  private Entry parseLine(String line) {
+    if (line.isEmpty() || line.startsWith("#") || line.startsWith("@")) {
+      return null;
+    }
+    String[] fields = line.split("[ \t]+", 4);
+    if (fields.length < 3) {
+      return null;
+    }
+    byte[] key;
+    try {
+      key = Base64.getDecoder().decode(fields[2]);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    String type = PublicKeys.keyType(key);
+    if (type == null) {
+      return null;
+    }
+    return new Entry(fields[0], type, key);
+  }
+
+  private void index(Entry entry) {
+    if (entry.host.startsWith(HASH_MAGIC)) {
+      String[] parts = entry.host.substring(HASH_MAGIC.length()).split("\\" + HASH_DELIMITER);
+      if (parts.length != 2) {
+        return;
+      }
+      HashedEntry hashedEntry;
+      try {
+        hashedEntry = new HashedEntry(Base64.getDecoder().decode(parts[0]), Base64.getDecoder().decode(parts[1]),
+            entry);
+      } catch (IllegalArgumentException e) {
+        return;
+      }
+      hashedEntries.add(hashedEntry);
+      for (Iterator<String> hosts = resolvedEntries.keySet().iterator(); hosts.hasNext();) {
+        if (hashedEntry.matches(hosts.next())) {
+          hosts.remove();
+        }
+      }
+    } else {
+      for (String host : entry.host.split(",")) {
+        plainEntries.computeIfAbsent(host, h -> new ArrayList<>()).add(entry);
+        resolvedEntries.remove(host);
+      }
+    }
+  }
+
+  /**
+   * @return the entries matching the given host name, resolved once per host name.
+   */
+  private List<Entry> entries(String host) {
+    List<Entry> entries = resolvedEntries.get(host);
+    if (entries != null) {
+      return entries;
+    }
+    synchronized (this) {
+      entries = resolvedEntries.get(host);
+      if (entries == null) {
+        entries = new ArrayList<>();
+        List<Entry> plain = plainEntries.get(host);
+        if (plain != null) {
+          entries.addAll(plain);
+        }
+        for (HashedEntry hashedEntry : hashedEntries) {
+          if (hashedEntry.matches(host)) {
+            entries.add(hashedEntry.entry);
+          }
+        }
+        entries = Collections.unmodifiableList(entries);
+        resolvedEntries.put(host, entries);
+      }
+      return entries;
+    }
+  }
+
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (IOException | RuntimeException e) {
+      log.warn("Unable to reload known hosts {}, using the hosts already loaded", path, e);
+    }
+  }
+
+  @Override
+  public int check(String host, byte[] key) {
+    if (host == null) {
+      return NOT_INCLUDED;
+    }
+    String type = PublicKeys.keyType(key);
+    if (type == null) {
+      return NOT_INCLUDED;
+    }
+    refreshQuietly();
+    int result = NOT_INCLUDED;
+    for (Entry entry : entries(host)) {
+      if (entry.type.equals(type)) {
+        if (Arrays.equals(entry.key, key)) {
+          return OK;
+        }
+        result = CHANGED;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void add(HostKey hostKey, UserInfo userInfo) {
+    byte[] key = Base64.getDecoder().decode(hostKey.getKey());
+    String type = PublicKeys.keyType(key);
+    if (type == null) {
+      return;
+    }
+    Entry entry = new Entry(hostKey.getHost(), type, key);
+    addedEntries.add(entry);
+    index(entry);
+  }
+
+  @Override
+  public void remove(String host, String type) {
+    remove(host, type, null);
+  }
+
+  @Override
+  public synchronized void remove(String host, String type, byte[] key) {
+    refreshQuietly();
+    List<Entry> removed = new ArrayList<>();
+    for (Entry entry : entries(host)) {
+      if ((type == null || entry.type.equals(type)) && (key == null || Arrays.equals(entry.key, key))) {
+        removed.add(entry);
+      }
+    }
+    if (removed.isEmpty()) {
+      return;
+    }
+    addedEntries.removeAll(removed);
+    for (List<Entry> entries : plainEntries.values()) {
+      entries.removeAll(removed);
+    }
+    for (Iterator<HashedEntry> hashed = hashedEntries.iterator(); hashed.hasNext();) {
+      if (removed.contains(hashed.next().entry)) {
+        hashed.remove();
+      }
+    }
+    resolvedEntries.clear();
+  }
+
+  @Override
+  public String getKnownHostsRepositoryID() {
+    return path.toString();
+  }
+
+  @Override
+  public synchronized HostKey[] getHostKey() {
+    refreshQuietly();
+    // An entry is indexed once per host name it lists
+    Set<Entry> entries = new LinkedHashSet<>();
+    for (List<Entry> plain : plainEntries.values()) {
+      entries.addAll(plain);
+    }
+    for (HashedEntry hashedEntry : hashedEntries) {
+      entries.add(hashedEntry.entry);
+    }
+    return toHostKeys(entries, null);
+  }
+
+  @Override
+  public HostKey[] getHostKey(String host, String type) {
+    if (host == null) {
+      return getHostKey();
+    }
+    refreshQuietly();
+    return toHostKeys(entries(host), type);
+  }
+
+  private static HostKey[] toHostKeys(Collection<Entry> entries, String type) {
+    List<HostKey> hostKeys = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      if (type == null || entry.type.equals(type)) {
+        HostKey hostKey = entry.toHostKey();
+        if (hostKey != null) {
+          hostKeys.add(hostKey);
+        }
+      }
+    }
+    return hostKeys.toArray(new HostKey[hostKeys.size()]);
+  }
+
+}
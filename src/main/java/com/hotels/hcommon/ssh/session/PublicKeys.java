@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for SSH public key blobs.
+ */
+final class PublicKeys {
+
+  private PublicKeys() {}
+
+  /**
+   * @return the key type, e.g. {@code ssh-rsa}, which is the first string of the public key blob, or
+   *         <code>null</code> if the blob is missing or invalid.
+   */
+  static String keyType(byte[] publicKeyBlob) {
+    if (publicKeyBlob == null || publicKeyBlob.length < 4) {
+      return null;
+    }
+    int length = (publicKeyBlob[0] & 0xff) << 24
+        | (publicKeyBlob[1] & 0xff) << 16
+        | (publicKeyBlob[2] & 0xff) << 8
+        | publicKeyBlob[3] & 0xff;
+    if (length <= 0 || length > publicKeyBlob.length - 4) {
+      return null;
+    }
+    return new String(publicKeyBlob, 4, length, StandardCharsets.UTF_8);
+  }
+
+}
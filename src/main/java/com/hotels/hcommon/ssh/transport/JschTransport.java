@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport;
+
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.session.DefaultSessionFactorySupplier;
+import com.hotels.hcommon.ssh.tunnel.DefaultTunnelConnectionManagerFactory;
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+/**
+ * The default {@link SshTransport}, built on JSch. Each SSH session has its own reader thread.
+ */
+public final class JschTransport implements SshTransport {
+
+  public static final String NAME = "jsch";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public TunnelConnectionManagerFactory newTunnelConnectionManagerFactory(SshSettings sshSettings) {
+    return new DefaultTunnelConnectionManagerFactory(sshSettings, new DefaultSessionFactorySupplier(sshSettings));
+  }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport;
+
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+/**
+ * An SSH implementation the tunnels can be built on.
+ * <p>
+ * Transports are looked up by {@link #getName() name} with {@link SshTransports#get(String)}. The {@link JschTransport
+ * JSch transport} is always available and is the default. Other transports are discovered with
+ * {@link java.util.ServiceLoader}: they must be listed in a {@code META-INF/services/}{@code
+ * com.hotels.hcommon.ssh.transport.SshTransport} file and have a public no-argument constructor.
+ * </p>
+ */
+public interface SshTransport {
+
+  /**
+   * @return the name used to select this transport with {@link SshSettings.Builder#withTransport(String)}.
+   */
+  String getName();
+
+  /**
+   * @return a factory of tunnels to the hosts reached through the route of the given settings.
+   */
+  TunnelConnectionManagerFactory newTunnelConnectionManagerFactory(SshSettings sshSettings);
+
+}
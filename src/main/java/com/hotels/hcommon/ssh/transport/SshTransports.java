@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hotels.hcommon.ssh.SshException;
+
+/**
+ * Looks up the available {@link SshTransport}s by name.
+ * <p>
+ * The class path is scanned once, the first time a transport other than the {@link JschTransport JSch transport} is
+ * asked for.
+ * </p>
+ */
+public final class SshTransports {
+  private static final Logger log = LoggerFactory.getLogger(SshTransports.class);
+
+  private static final SshTransport JSCH = new JschTransport();
+
+  private static class Discovered {
+    private static final Map<String, SshTransport> TRANSPORTS = discover(SshTransports.class.getClassLoader());
+  }
+
+  private SshTransports() {}
+
+  /**
+   * @throws SshException if there is no transport with the given name on the class path.
+   */
+  public static SshTransport get(String name) {
+    if (JschTransport.NAME.equals(name)) {
+      return JSCH;
+    }
+    SshTransport transport = Discovered.TRANSPORTS.get(name);
+    if (transport == null) {
+      throw new SshException("No SSH transport named '" + name + "' found, available transports are "
+          + Discovered.TRANSPORTS.keySet());
+    }
+    return transport;
+  }
+
+  /* VisibleForTesting */
+  static Map<String, SshTransport> discover(ClassLoader classLoader) {
+    Map<String, SshTransport> transports = new HashMap<>();
+    transports.put(JSCH.getName(), JSCH);
+    try {
+      for (SshTransport transport : ServiceLoader.load(SshTransport.class, classLoader)) {
+        if (transports.containsKey(transport.getName())) {
+          log.warn("Ignoring SSH transport {}: another transport is named '{}'", transport.getClass().getName(),
+              transport.getName());
+        } else {
+          transports.put(transport.getName(), transport);
+        }
+      }
+    } catch (ServiceConfigurationError e) {
+      log.warn("Unable to load SSH transports", e);
+    }
+    return Collections.unmodifiableMap(transports);
+  }
+
+}
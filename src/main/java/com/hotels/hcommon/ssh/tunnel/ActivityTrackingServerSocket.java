@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A {@link ServerSocket} for the local port of a tunnel which records in a {@link TunnelActivity} every connection it
+ * accepts and every read and write on those connections.
+ */
+class ActivityTrackingServerSocket extends ServerSocket {
+
+  private final TunnelActivity activity;
+
+  ActivityTrackingServerSocket(int port, int backlog, InetAddress bindAddress, TunnelActivity activity)
+    throws IOException {
+    this.activity = activity;
+    bind(new InetSocketAddress(bindAddress, port), backlog);
+  }
+
+  @Override
+  public Socket accept() throws IOException {
+    Socket socket = new ActivityTrackingSocket(activity);
+    implAccept(socket);
+    activity.touch();
+    return socket;
+  }
+
+  private static class ActivityTrackingSocket extends Socket {
+    private final TunnelActivity activity;
+
+    private ActivityTrackingSocket(TunnelActivity activity) {
+      this.activity = activity;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new FilterInputStream(super.getInputStream()) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          activity.touch();
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int read = super.read(b, off, len);
+          activity.touch();
+          return read;
+        }
+      };
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return new FilterOutputStream(super.getOutputStream()) {
+        @Override
+        public void write(int b) throws IOException {
+          activity.touch();
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          activity.touch();
+          out.write(b, off, len);
+        }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,822 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A {@link TunnelConnectionManager} which accepts the connections to its local port itself and forwards each of them
+ * as a {@code direct-tcpip} channel, instead of relying on the port forwarding of JSch.
+ * <p>
+ * The channels are spread over one or more shards, each with its own {@link SessionChain} for the path. A new
+ * connection goes to the shard carrying the fewest connections, ties being broken round-robin, so bulk transfers are
+ * not limited by the window and the cipher thread of a single session. The data received from the destination is
+ * written to the client by the JSch session thread of the shard and the data sent by the client is forwarded by one
+ * thread per connection.
+ * </p>
+ * <p>
+ * When the number of channels per session is limited by {@link ChannelLimits}, shards whose session is full are
+ * skipped. Once they are all full, extra shards are opened and each of them is retired as soon as it carries no more
+ * connections. When no extra shard can be opened either, new connections wait for a channel to be released, for at
+ * most the queue timeout.
+ * </p>
+ * <p>
+ * If a channel pool is set, connections are handed a channel to the destination of the tunnel opened ahead of time
+ * by a {@link ChannelPool}. Pooled channels count as connections of their shard.
+ * </p>
+ * <p>
+ * Like the port forwarding of JSch, a connection and its channel are closed as soon as either end closes its side.
+ * </p>
+ * <p>
+ * As for a {@link SessionChainTunnelConnectionManager}, {@link #ensureOpen()} doesn't lock while the tunnel is
+ * {@link TunnelState#OPEN open} and the sessions of its shards are connected, a single thread reopens the tunnel
+ * otherwise, and the tunnel is reopened in the background when one of these sessions stops answering keepalives.
+ * </p>
+ * <p>
+ * If an idle timeout is set the sessions of the shards are released once the tunnel has no connections left and no
+ * data has gone through its local port for that long. The tunnel keeps listening on its local port and is reopened by
+ * the next call to {@link #ensureOpen()} or the next connection.
+ * </p>
+ */
+abstract class ChannelForwardingTunnelConnectionManager extends TunnelConnectionManager {
+  private static final Logger log = LoggerFactory.getLogger(ChannelForwardingTunnelConnectionManager.class);
+
+  private static final String DIRECT_TCPIP = "direct-tcpip";
+  private static final int BACKLOG = 50;
+  private static final int BUFFER_SIZE = 32768;
+
+  private static final class Shard {
+    private final int index;
+    private final SessionChain sessionChain;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile Session session;
+
+    private Shard(int index, SessionChain sessionChain) {
+      this.index = index;
+      this.sessionChain = sessionChain;
+    }
+  }
+
+  /** Shard of the connections which don't have a channel yet. */
+  private static final Shard UNASSIGNED = new Shard(-1, null);
+
+  /**
+   * Keeps the data received on a pooled channel until the channel is handed to a connection. At most
+   * {@link ChannelPipe#MAX_CAPACITY} bytes are kept: the stream is closed and the write fails beyond that, so that the
+   * channel is disconnected and discarded by the pool rather than buffering without bound.
+   */
+  private static final class PendingOutputStream extends OutputStream {
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private OutputStream output;
+    private boolean closed;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (output != null) {
+        output.write(b, off, len);
+        return;
+      }
+      if (closed) {
+        throw new IOException("Pooled channel is closed");
+      }
+      if (pending.size() + len > ChannelPipe.MAX_CAPACITY) {
+        closed = true;
+        pending.reset();
+        throw new IOException("More than " + ChannelPipe.MAX_CAPACITY + " bytes received on a pooled channel");
+      }
+      pending.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (output != null) {
+        output.flush();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      closed = true;
+      if (output != null) {
+        output.close();
+      }
+    }
+
+    synchronized boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Writes the data received so far to the given output stream, which then receives everything written to this one.
+     */
+    synchronized void attach(OutputStream output) throws IOException {
+      pending.writeTo(output);
+      output.flush();
+      pending = null;
+      this.output = output;
+      if (closed) {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * The output stream of a client connection, which closes the connection with {@link #close(Socket)} when it's closed.
+   */
+  final class ClientOutputStream extends OutputStream {
+    private final Socket client;
+    private final OutputStream output;
+
+    ClientOutputStream(Socket client) throws IOException {
+      this.client = client;
+      output = client.getOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      output.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      output.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      output.flush();
+    }
+
+    @Override
+    public void close() {
+      ChannelForwardingTunnelConnectionManager.this.close(client);
+    }
+  }
+
+  private final class PooledChannel {
+    private final Shard shard;
+    private final ChannelDirectTCPIP channel;
+    private final PendingOutputStream output;
+
+    private PooledChannel(Shard shard, ChannelDirectTCPIP channel, PendingOutputStream output) {
+      this.shard = shard;
+      this.channel = channel;
+      this.output = output;
+    }
+  }
+
+  private final SessionFactory sessionFactory;
+  private final SessionChainRegistry sessionChainRegistry;
+  private final Route route;
+  private final Tunnel tunnel;
+  private final LocalPortReservation localPortReservation;
+  private final int shardCount;
+  private final int connectTimeout;
+  private final ChannelLimits channelLimits;
+  private final long idleTimeoutNanos;
+  private final TunnelMetrics metrics;
+  /** Guards the changes to the list of shards and is notified whenever a channel is released. */
+  private final Object admission = new Object();
+  private final List<Shard> shards = new CopyOnWriteArrayList<>();
+  private final AtomicInteger nextShard = new AtomicInteger();
+  private final ConcurrentMap<Socket, Shard> clients = new ConcurrentHashMap<>();
+  private final ChannelPool<PooledChannel> channelPool;
+  private final AtomicReference<TunnelState> state = new AtomicReference<>(TunnelState.CLOSED);
+  private final TunnelReopener reopener;
+  private final Runnable disconnectListener = this::onSessionChainDisconnected;
+  private final Runnable channelReleaseListener = this::onChannelReleased;
+  private ServerSocket serverSocket;
+  private ScheduledFuture<?> idleCheck;
+  private boolean opened;
+  /** Whether the shards have been released by the idle check while the local port is still listening. */
+  private volatile boolean idle;
+
+  ChannelForwardingTunnelConnectionManager(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      Tunnel tunnel,
+      LocalPortReservation localPortReservation,
+      int shards,
+      int connectTimeout,
+      ChannelLimits channelLimits,
+      int minIdleChannels,
+      int maxIdleChannels,
+      int idleTimeout) throws JSchException {
+    super(sessionFactory);
+    this.sessionFactory = sessionFactory;
+    this.sessionChainRegistry = sessionChainRegistry;
+    this.route = route;
+    this.tunnel = tunnel;
+    this.localPortReservation = localPortReservation;
+    shardCount = shards;
+    this.connectTimeout = connectTimeout;
+    this.channelLimits = channelLimits;
+    idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    metrics = sessionChainRegistry.getMetrics();
+    reopener = new TunnelReopener(tunnel.toString());
+    if (maxIdleChannels > 0) {
+      channelPool = new ChannelPool<>(tunnel.toString(), minIdleChannels, maxIdleChannels,
+          new ChannelPool.Factory<PooledChannel>() {
+            @Override
+            public PooledChannel create() throws IOException, JSchException {
+              return openPooledChannel();
+            }
+
+            @Override
+            public boolean isUsable(PooledChannel pooled) {
+              return !pooled.output.isClosed() && pooled.channel.isConnected() && !pooled.channel.isEOF();
+            }
+
+            @Override
+            public void destroy(PooledChannel pooled) {
+              pooled.channel.disconnect();
+              release(pooled.shard);
+            }
+          });
+    } else {
+      channelPool = null;
+    }
+  }
+
+  Route getRoute() {
+    return route;
+  }
+
+  Tunnel getTunnel() {
+    return tunnel;
+  }
+
+  @Override
+  public synchronized void open() throws JSchException {
+    synchronized (admission) {
+      if (shards.isEmpty()) {
+        for (int i = 0; i < shardCount; i++) {
+          SessionChain sessionChain = sessionChainRegistry.acquire(sessionFactory, route, i);
+          sessionChain.addDisconnectListener(disconnectListener);
+          sessionChain.addChannelReleaseListener(channelReleaseListener);
+          shards.add(new Shard(i, sessionChain));
+        }
+      }
+    }
+    try {
+      for (Shard shard : shards) {
+        shard.session = shard.sessionChain.open();
+      }
+      if (serverSocket == null) {
+        try {
+          serverSocket = localPortReservation.createServerSocket(tunnel.getLocalPort(), BACKLOG,
+              InetAddress.getByName(tunnel.getLocalAlias()));
+        } catch (IOException e) {
+          throw new JSchException("Unable to listen on " + tunnel.getLocalAlias() + ":" + tunnel.getLocalPort(), e);
+        }
+        ServerSocket listening = serverSocket;
+        TunnelScheduler.executor().execute(() -> accept(listening));
+        log.info("Forwarding {}:{} through {} on {} session chain(s)", tunnel.getLocalAlias(), tunnel.getLocalPort(),
+            route, shardCount);
+      }
+      if (channelPool != null) {
+        channelPool.start();
+      }
+    } catch (JSchException | RuntimeException e) {
+      setState(TunnelState.DEGRADED);
+      throw e;
+    }
+    setState(TunnelState.OPEN);
+    opened = true;
+    idle = false;
+    scheduleIdleCheck();
+  }
+
+  /**
+   * Sets the state of the tunnel, reporting to the metrics whether it has become usable or not.
+   */
+  private void setState(TunnelState newState) {
+    TunnelState oldState = state.getAndSet(newState);
+    if (newState == TunnelState.OPEN && oldState != TunnelState.OPEN) {
+      metrics.tunnelUp();
+    } else if (newState != TunnelState.OPEN && oldState == TunnelState.OPEN) {
+      metrics.tunnelDown();
+    }
+  }
+
+  private boolean degrade() {
+    if (state.compareAndSet(TunnelState.OPEN, TunnelState.DEGRADED)) {
+      metrics.tunnelDown();
+      return true;
+    }
+    return false;
+  }
+
+  private void scheduleIdleCheck() {
+    if (idleTimeoutNanos > 0 && idleCheck == null) {
+      long period = Math.max(1, idleTimeoutNanos / 2);
+      idleCheck = TunnelScheduler.get().scheduleWithFixedDelay(() -> {
+        try {
+          closeIfIdle();
+        } catch (RuntimeException e) {
+          log.warn("Unable to check whether tunnel {} through {} is idle", tunnel, route, e);
+        }
+      }, period, period, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void cancelIdleCheck() {
+    if (idleCheck != null) {
+      idleCheck.cancel(false);
+      idleCheck = null;
+    }
+  }
+
+  /**
+   * Releases the shards if the tunnel has no connections and no data has gone through it for longer than the idle
+   * timeout. The tunnel keeps listening on its local port.
+   *
+   * @return <code>true</code> if the shards have been released, <code>false</code> otherwise.
+   */
+  synchronized boolean closeIfIdle() {
+    if (state.get() != TunnelState.OPEN || localPortReservation.getActivity().getIdleNanos() < idleTimeoutNanos) {
+      return false;
+    }
+    List<Shard> closed;
+    synchronized (admission) {
+      // Connections are accepted while holding the admission lock so none of them can find the shards released
+      // without finding the tunnel idle
+      if (!clients.isEmpty()) {
+        return false;
+      }
+      idle = true;
+      setState(TunnelState.CLOSED);
+      closed = new ArrayList<>(shards);
+      shards.clear();
+    }
+    log.info("Closing tunnel {} through {}: idle for more than {}ms", tunnel, route,
+        TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+    cancelIdleCheck();
+    if (channelPool != null) {
+      channelPool.close();
+    }
+    releaseShards(closed);
+    return true;
+  }
+
+  @Override
+  public void ensureOpen() throws JSchException {
+    // Recorded before checking the state so the tunnel isn't considered idle while it's about to be used
+    localPortReservation.getActivity().touch();
+    if (state.get() == TunnelState.OPEN) {
+      if (isConnected()) {
+        return;
+      }
+      log.debug("SSH session of tunnel {} through {} is disconnected", tunnel, route);
+      degrade();
+    }
+    long start = System.nanoTime();
+    try {
+      reopen();
+    } finally {
+      metrics.ensureOpenWaited(System.nanoTime() - start);
+    }
+  }
+
+  private void onSessionChainDisconnected() {
+    if (degrade()) {
+      log.info("Reopening tunnel {} through {} in the background: SSH session chain is not responding", tunnel, route);
+      TunnelScheduler.executor().execute(() -> {
+        try {
+          if (state.get() == TunnelState.DEGRADED) {
+            reopen();
+          }
+        } catch (JSchException | RuntimeException e) {
+          log.warn("Unable to reopen tunnel {} through {}", tunnel, route, e);
+        }
+      });
+    }
+  }
+
+  private void reopen() throws JSchException {
+    reopener.reopen(() -> {
+      if (state.get() != TunnelState.OPEN || !isConnected()) {
+        reopenNow();
+      }
+    });
+  }
+
+  private void reopenNow() throws JSchException {
+    long start = System.nanoTime();
+    boolean firstOpen;
+    synchronized (this) {
+      firstOpen = !opened;
+      setState(TunnelState.REOPENING);
+    }
+    try {
+      open();
+    } catch (JSchException | RuntimeException e) {
+      metrics.tunnelOpenFailed();
+      throw e;
+    }
+    if (firstOpen) {
+      metrics.tunnelOpened(System.nanoTime() - start);
+    } else {
+      metrics.tunnelReopened(System.nanoTime() - start);
+    }
+  }
+
+  private boolean isConnected() {
+    if (shards.isEmpty()) {
+      return false;
+    }
+    for (Shard shard : shards) {
+      Session session = shard.session;
+      if (session == null || !session.isConnected()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void accept(ServerSocket listening) {
+    while (!listening.isClosed()) {
+      try {
+        Socket client = listening.accept();
+        synchronized (admission) {
+          clients.put(client, UNASSIGNED);
+        }
+        TunnelScheduler.executor().execute(() -> serve(client));
+      } catch (IOException | RuntimeException e) {
+        if (!listening.isClosed()) {
+          log.warn("Unable to accept connection on {}:{}", tunnel.getLocalAlias(), tunnel.getLocalPort(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Serves a connection accepted on the local port. The connection must be closed with {@link #close(Socket)} and its
+   * channel, if any, disconnected once the client stops sending data.
+   */
+  abstract void serve(Socket client);
+
+  /**
+   * Opens a channel to the given destination on the least loaded shard. The data received on the channel is written to
+   * the given output stream, which must close the client connection with {@link #close(Socket)} when it's closed.
+   */
+  ChannelDirectTCPIP openChannel(Socket client, String host, int port, OutputStream output)
+    throws IOException, JSchException {
+    if (idle) {
+      ensureOpen();
+    }
+    if (channelPool != null && tunnel.getDestinationHostname().equals(host) && tunnel.getDestinationPort() == port) {
+      PooledChannel pooled = channelPool.poll();
+      if (pooled != null) {
+        if (!clients.replace(client, UNASSIGNED, pooled.shard)) {
+          pooled.channel.disconnect();
+          release(pooled.shard);
+          throw new SocketException("Connection from " + client.getRemoteSocketAddress() + " is closed");
+        }
+        pooled.output.attach(output);
+        return pooled.channel;
+      }
+    }
+    Shard shard = admit(true);
+    if (!clients.replace(client, UNASSIGNED, shard)) {
+      release(shard);
+      throw new SocketException("Connection from " + client.getRemoteSocketAddress() + " is closed");
+    }
+    ChannelDirectTCPIP channel = newChannel(shard, host, port, output);
+    channel.setOrgIPAddress(client.getInetAddress().getHostAddress());
+    channel.setOrgPort(client.getPort());
+    connect(channel);
+    return channel;
+  }
+
+  private ChannelDirectTCPIP newChannel(Shard shard, String host, int port, OutputStream output) throws JSchException {
+    Session session = shard.sessionChain.open();
+    shard.session = session;
+    ChannelDirectTCPIP channel = (ChannelDirectTCPIP) session.openChannel(DIRECT_TCPIP);
+    channel.setHost(host);
+    channel.setPort(port);
+    channel.setOutputStream(output);
+    return channel;
+  }
+
+  private void connect(ChannelDirectTCPIP channel) throws JSchException {
+    try {
+      channel.connect(connectTimeout);
+    } catch (JSchException e) {
+      channel.disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * @return a channel to the destination of the tunnel on a shard whose session isn't full, <code>null</code> if they
+   *         are all full.
+   */
+  private PooledChannel openPooledChannel() throws IOException, JSchException {
+    Shard shard = admit(false);
+    if (shard == null) {
+      return null;
+    }
+    try {
+      PendingOutputStream output = new PendingOutputStream();
+      ChannelDirectTCPIP channel = newChannel(shard, tunnel.getDestinationHostname(), tunnel.getDestinationPort(),
+          output);
+      connect(channel);
+      return new PooledChannel(shard, channel, output);
+    } catch (JSchException | RuntimeException e) {
+      release(shard);
+      throw e;
+    }
+  }
+
+  /**
+   * Reserves a channel on the least loaded shard whose session isn't full. If they are all full, an extra shard is
+   * opened or the channel waits to be released, unless it shouldn't wait.
+   *
+   * @return the shard the channel has been reserved on, <code>null</code> if it shouldn't wait and they are all full.
+   */
+  private Shard admit(boolean wait) throws IOException {
+    long deadline = System.nanoTime() + channelLimits.getQueueTimeoutNanos();
+    synchronized (admission) {
+      boolean spill = true;
+      while (true) {
+        if (shards.isEmpty()) {
+          throw new SocketException("Tunnel " + tunnel.getLocalAlias() + ":" + tunnel.getLocalPort() + " is closed");
+        }
+        Shard shard = leastLoadedShard();
+        if (shard != null) {
+          if (shard.sessionChain.reserveChannel(channelLimits.getMaxChannelsPerSession())) {
+            shard.connections.incrementAndGet();
+            return shard;
+          }
+          // Filled up meanwhile by another tunnel sharing the session
+          continue;
+        }
+        if (!wait) {
+          return null;
+        }
+        if (spill && shards.size() - shardCount < channelLimits.getMaxExtraSessions()) {
+          shard = addExtraShard();
+          if (shard != null) {
+            shard.connections.incrementAndGet();
+            return shard;
+          }
+          // Full already, shared with other tunnels
+          spill = false;
+          continue;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new SocketException("No SSH channel available through " + route + ": "
+              + shards.size() + " session(s) carrying " + channelLimits.getMaxChannelsPerSession() + " channels each");
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(admission, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for an SSH channel through " + route);
+        }
+        spill = true;
+      }
+    }
+  }
+
+  /**
+   * @return the shard carrying the fewest connections among the ones whose session isn't full, <code>null</code> if
+   *         they are all full.
+   */
+  private Shard leastLoadedShard() {
+    int size = shards.size();
+    int start = Math.floorMod(nextShard.getAndIncrement(), size);
+    Shard leastLoaded = null;
+    for (int i = 0; i < size; i++) {
+      Shard shard = shards.get((start + i) % size);
+      if (isFull(shard)) {
+        continue;
+      }
+      if (leastLoaded == null || shard.connections.get() < leastLoaded.connections.get()) {
+        leastLoaded = shard;
+      }
+    }
+    return leastLoaded;
+  }
+
+  private boolean isFull(Shard shard) {
+    return channelLimits.isLimited() && shard.sessionChain.getChannels() >= channelLimits.getMaxChannelsPerSession();
+  }
+
+  /**
+   * @return a new shard with a channel reserved on its session, <code>null</code> if its session is already full.
+   */
+  private Shard addExtraShard() {
+    int index = shardCount;
+    while (hasShard(index)) {
+      index++;
+    }
+    SessionChain sessionChain = sessionChainRegistry.acquire(sessionFactory, route, index);
+    if (!sessionChain.reserveChannel(channelLimits.getMaxChannelsPerSession())) {
+      sessionChainRegistry.release(sessionChain);
+      return null;
+    }
+    sessionChain.addChannelReleaseListener(channelReleaseListener);
+    Shard shard = new Shard(index, sessionChain);
+    shards.add(shard);
+    log.info("Opening extra SSH session #{} through {} for {}:{}: {} session(s) carrying {} channels each", index,
+        route, tunnel.getLocalAlias(), tunnel.getLocalPort(), shards.size() - 1,
+        channelLimits.getMaxChannelsPerSession());
+    return shard;
+  }
+
+  private boolean hasShard(int index) {
+    for (Shard shard : shards) {
+      if (shard.index == index) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gives back the channel reserved on the given shard, retiring the shard if it's an extra one and it carries no more
+   * connections.
+   */
+  private void release(Shard shard) {
+    // Released without holding the admission lock as it wakes up the connections waiting on every tunnel sharing the
+    // session, which take their own lock
+    shard.sessionChain.releaseChannel();
+    synchronized (admission) {
+      if (shard.connections.decrementAndGet() == 0 && shard.index >= shardCount && shards.remove(shard)) {
+        log.info("Closing extra SSH session #{} through {} for {}:{}: no connections left", shard.index, route,
+            tunnel.getLocalAlias(), tunnel.getLocalPort());
+        shard.sessionChain.removeChannelReleaseListener(channelReleaseListener);
+        sessionChainRegistry.release(shard.sessionChain);
+      }
+    }
+  }
+
+  /**
+   * Wakes up the connections waiting for a channel, as one has been given back on one of the sessions of the tunnel.
+   */
+  private void onChannelReleased() {
+    synchronized (admission) {
+      admission.notifyAll();
+    }
+  }
+
+  /**
+   * Forwards the data sent by the client to the channel until the client closes its side of the connection.
+   */
+  static void forward(InputStream input, OutputStream channelOutput) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = input.read(buffer)) >= 0) {
+      channelOutput.write(buffer, 0, read);
+      channelOutput.flush();
+    }
+    // Sends EOF before the channel is disconnected
+    channelOutput.close();
+  }
+
+  void close(Socket client) {
+    Shard shard = clients.remove(client);
+    if (shard != null && shard != UNASSIGNED) {
+      release(shard);
+    }
+    try {
+      client.close();
+    } catch (IOException e) {
+      log.debug("Unable to close connection from {}", client.getRemoteSocketAddress(), e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    idle = false;
+    cancelIdleCheck();
+    if (channelPool != null) {
+      channelPool.close();
+    }
+    if (serverSocket != null) {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        log.debug("Unable to stop listening on port {}", tunnel.getLocalPort(), e);
+      }
+      serverSocket = null;
+    }
+    localPortReservation.release();
+    for (Socket client : clients.keySet()) {
+      close(client);
+    }
+    List<Shard> closed;
+    synchronized (admission) {
+      closed = new ArrayList<>(shards);
+      shards.clear();
+      admission.notifyAll();
+    }
+    releaseShards(closed);
+    setState(TunnelState.CLOSED);
+  }
+
+  private void releaseShards(List<Shard> closed) {
+    for (Shard shard : closed) {
+      shard.session = null;
+      shard.sessionChain.removeDisconnectListener(disconnectListener);
+      shard.sessionChain.removeChannelReleaseListener(channelReleaseListener);
+      sessionChainRegistry.release(shard.sessionChain);
+    }
+    if (!closed.isEmpty()) {
+      metrics.tunnelClosed();
+    }
+  }
+
+  TunnelState getState() {
+    return state.get();
+  }
+
+  /* VisibleForTesting */
+  int getConnections() {
+    return clients.size();
+  }
+
+  /* VisibleForTesting */
+  int getConnections(int shard) {
+    for (Shard candidate : shards) {
+      if (candidate.index == shard) {
+        return candidate.connections.get();
+      }
+    }
+    return 0;
+  }
+
+  /* VisibleForTesting */
+  int getSessions() {
+    return shards.size();
+  }
+
+  /* VisibleForTesting */
+  int getIdleChannels() {
+    return channelPool == null ? 0 : channelPool.size();
+  }
+
+  @Override
+  public void setTunnelConnectionsFromFile(File tunnelsConfig) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+  @Override
+  public void setTunnelConnections(Iterable<String> pathAndSpecList) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import com.hotels.hcommon.ssh.SshSettings;
+
+/**
+ * Limits on the {@code direct-tcpip} channels a tunnel forwarding connections itself opens on its SSH sessions.
+ * <p>
+ * Bastions usually refuse more than {@code MaxSessions} channels per session, 10 by default with OpenSSH. Once every
+ * session of a tunnel carries the maximum number of channels, the tunnel opens up to a given number of extra sessions
+ * to the same route. When it cannot open any more, a new connection waits for a channel to be released for at most
+ * the queue timeout.
+ * </p>
+ */
+final class ChannelLimits {
+
+  static final ChannelLimits NONE = new ChannelLimits(0, 0, 0);
+
+  static ChannelLimits of(SshSettings sshSettings) {
+    return new ChannelLimits(sshSettings.getMaxChannelsPerSession(), sshSettings.getMaxExtraSessions(),
+        sshSettings.getChannelQueueTimeout());
+  }
+
+  private final int maxChannelsPerSession;
+  private final int maxExtraSessions;
+  private final long queueTimeoutNanos;
+
+  ChannelLimits(int maxChannelsPerSession, int maxExtraSessions, int queueTimeout) {
+    this.maxChannelsPerSession = maxChannelsPerSession;
+    this.maxExtraSessions = maxExtraSessions;
+    queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+  }
+
+  /**
+   * @return <code>true</code> if the number of channels per session is limited.
+   */
+  boolean isLimited() {
+    return maxChannelsPerSession > 0;
+  }
+
+  /**
+   * @return the maximum number of channels open at the same time on a session, 0 for no limit.
+   */
+  int getMaxChannelsPerSession() {
+    return maxChannelsPerSession;
+  }
+
+  int getMaxExtraSessions() {
+    return maxExtraSessions;
+  }
+
+  long getQueueTimeoutNanos() {
+    return queueTimeoutNanos;
+  }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffer between the session thread of JSch, which writes the data received on a channel to {@link #getSink()}, and
+ * the thread reading from a {@link ChannelSocket}.
+ * <p>
+ * Unlike the pipe of {@link com.jcraft.jsch.Channel#getInputStream()} the reader is woken up as soon as data arrives
+ * and reads can time out.
+ * <p>
+ * The buffer grows up to the local window of a {@code direct-tcpip} channel. Once it's full the session thread is
+ * blocked until the reader catches up: JSch only adjusts the window of the channel after the data has been written
+ * here, so the remote end stops sending instead of filling the heap. As with the pipes of JSch, this also holds back
+ * the other channels of the session while the reader is slow, so the session thread only waits for the
+ * {@link #setWriteTimeout(int) write timeout}. The pipe is then closed and the write fails, which makes JSch disconnect
+ * the channel, and the reader gets an error instead of a truncated stream.
+ * </p>
+ */
+final class ChannelPipe {
+
+  private static final int INITIAL_CAPACITY = 8192;
+  /**
+   * Local window size of the {@code direct-tcpip} channels of JSch.
+   */
+  static final int MAX_CAPACITY = 128 * 1024;
+
+  private final OutputStream sink = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      ChannelPipe.this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ChannelPipe.this.write(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      finish();
+    }
+  };
+
+  private final int maxCapacity;
+  private byte[] buffer;
+  private int start;
+  private int end;
+  private boolean finished;
+  private boolean closed;
+  private volatile int writeTimeout;
+
+  ChannelPipe() {
+    this(MAX_CAPACITY);
+  }
+
+  /* VisibleForTesting */
+  ChannelPipe(int maxCapacity) {
+    this.maxCapacity = maxCapacity;
+    buffer = new byte[Math.min(INITIAL_CAPACITY, maxCapacity)];
+  }
+
+  /**
+   * @return the stream the data received on the channel is written to. Closing it signals the end of the stream.
+   */
+  OutputStream getSink() {
+    return sink;
+  }
+
+  /**
+   * @param writeTimeout how long the session thread waits for the reader to make room in milliseconds, 0 to wait
+   *          forever.
+   */
+  void setWriteTimeout(int writeTimeout) {
+    this.writeTimeout = writeTimeout;
+  }
+
+  /**
+   * Buffers the data, waiting for the reader to make room for it once {@link #MAX_CAPACITY} bytes are buffered. The
+   * data is discarded if the pipe is {@link #close() closed}, nobody is going to read it.
+   *
+   * @throws SocketTimeoutException if the reader hasn't made room within the write timeout, the pipe being closed.
+   */
+  private synchronized void write(byte[] b, int off, int len) throws IOException {
+    int timeout = writeTimeout;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    while (len > 0 && !closed) {
+      int free = maxCapacity - (end - start);
+      if (free == 0) {
+        try {
+          if (timeout > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              close();
+              throw new SocketTimeoutException("Timed out after " + timeout + "ms waiting for the reader");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          } else {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the reader");
+        }
+        continue;
+      }
+      int chunk = Math.min(len, free);
+      makeRoom(chunk);
+      System.arraycopy(b, off, buffer, end, chunk);
+      end += chunk;
+      off += chunk;
+      len -= chunk;
+      // The reader is keeping up
+      deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+      notifyAll();
+    }
+  }
+
+  private void makeRoom(int len) {
+    if (end + len <= buffer.length) {
+      return;
+    }
+    int size = end - start;
+    if (size + len > buffer.length) {
+      byte[] newBuffer = new byte[Math.min(Math.max(buffer.length * 2, size + len), maxCapacity)];
+      System.arraycopy(buffer, start, newBuffer, 0, size);
+      buffer = newBuffer;
+    } else {
+      System.arraycopy(buffer, start, buffer, 0, size);
+    }
+    start = 0;
+    end = size;
+  }
+
+  private synchronized void finish() {
+    finished = true;
+    notifyAll();
+  }
+
+  /**
+   * Reads at least one byte, waiting for data to arrive if there is none.
+   *
+   * @param timeout how long to wait for data in milliseconds, 0 to wait forever.
+   * @return the number of bytes read, -1 if the end of the stream has been reached.
+   * @throws SocketTimeoutException if no data has arrived within the timeout.
+   */
+  synchronized int read(byte[] b, int off, int len, int timeout) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    while (start == end) {
+      if (closed) {
+        throw new SocketException("Socket closed");
+      }
+      if (finished) {
+        return -1;
+      }
+      try {
+        if (timeout > 0) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new SocketTimeoutException("Read timed out");
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } else {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading");
+      }
+    }
+    int read = Math.min(len, end - start);
+    System.arraycopy(buffer, start, b, off, read);
+    start += read;
+    if (start == end) {
+      start = 0;
+      end = 0;
+    }
+    // Wakes up the session thread if it's waiting for room
+    notifyAll();
+    return read;
+  }
+
+  synchronized int available() {
+    return end - start;
+  }
+
+  /**
+   * Discards the buffered data and any data received from now on. Pending and subsequent reads fail, pending writes
+   * return.
+   */
+  synchronized void close() {
+    closed = true;
+    buffer = new byte[0];
+    start = 0;
+    end = 0;
+    notifyAll();
+  }
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Idle channels opened ahead of time so a new connection doesn't have to wait for a channel to be opened through every
+ * hop of the path.
+ * <p>
+ * The pool is refilled in the background whenever a channel is taken. It keeps between the min and the max number of
+ * idle channels: as many as were taken during the last maintenance interval, and one more every time a connection
+ * found the pool empty. Idle channels closed by the remote end are discarded.
+ * </p>
+ */
+final class ChannelPool<T> {
+  private static final Logger log = LoggerFactory.getLogger(ChannelPool.class);
+
+  static final long MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+  interface Factory<T> {
+    /**
+     * @return a new connected channel, <code>null</code> if none can be opened without waiting.
+     */
+    T create() throws IOException, JSchException;
+
+    boolean isUsable(T channel);
+
+    void destroy(T channel);
+  }
+
+  private final String name;
+  private final int minIdle;
+  private final int maxIdle;
+  private final Factory<T> factory;
+  private final Deque<T> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger target;
+  private final AtomicInteger taken = new AtomicInteger();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private volatile boolean closed = true;
+  private ScheduledFuture<?> maintenance;
+
+  ChannelPool(String name, int minIdle, int maxIdle, Factory<T> factory) {
+    this.name = name;
+    this.minIdle = minIdle;
+    this.maxIdle = maxIdle;
+    this.factory = factory;
+    target = new AtomicInteger(minIdle);
+  }
+
+  synchronized void start() {
+    if (maintenance != null) {
+      return;
+    }
+    closed = false;
+    maintenance = TunnelScheduler.get().scheduleWithFixedDelay(() -> {
+      try {
+        maintain();
+      } catch (RuntimeException e) {
+        log.warn("Unable to maintain channel pool {}", name, e);
+      }
+    }, MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    refill();
+  }
+
+  /**
+   * @return an idle channel, <code>null</code> if there's none.
+   */
+  T poll() {
+    taken.incrementAndGet();
+    T channel;
+    while ((channel = idle.pollFirst()) != null) {
+      if (factory.isUsable(channel)) {
+        refill();
+        return channel;
+      }
+      factory.destroy(channel);
+    }
+    target.updateAndGet(current -> Math.min(current + 1, maxIdle));
+    refill();
+    return null;
+  }
+
+  private void refill() {
+    if (closed || idle.size() >= target.get() || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+    TunnelScheduler.executor().execute(() -> {
+      boolean filled = false;
+      try {
+        filled = fill();
+      } finally {
+        refilling.set(false);
+      }
+      if (filled) {
+        // Channels taken after the last check
+        refill();
+      }
+    });
+  }
+
+  /**
+   * @return <code>true</code> if the pool has been filled up to its target, <code>false</code> otherwise.
+   */
+  private boolean fill() {
+    while (!closed && idle.size() < target.get()) {
+      T channel;
+      try {
+        channel = factory.create();
+      } catch (IOException | JSchException | RuntimeException e) {
+        log.debug("Unable to open a channel for pool {}", name, e);
+        return false;
+      }
+      if (channel == null) {
+        return false;
+      }
+      idle.addLast(channel);
+      if (closed && idle.remove(channel)) {
+        factory.destroy(channel);
+      }
+    }
+    return !closed;
+  }
+
+  /* VisibleForTesting */
+  void maintain() {
+    for (T channel : idle) {
+      if (!factory.isUsable(channel) && idle.remove(channel)) {
+        factory.destroy(channel);
+      }
+    }
+    int demand = taken.getAndSet(0);
+    int newTarget = Math.max(minIdle, Math.min(demand, maxIdle));
+    target.set(newTarget);
+    while (idle.size() > newTarget) {
+      T channel = idle.pollLast();
+      if (channel == null) {
+        break;
+      }
+      factory.destroy(channel);
+    }
+    refill();
+  }
+
+  synchronized void close() {
+    closed = true;
+    if (maintenance != null) {
+      maintenance.cancel(false);
+      maintenance = null;
+    }
+    T channel;
+    while ((channel = idle.pollFirst()) != null) {
+      factory.destroy(channel);
+    }
+  }
+
+  int size() {
+    return idle.size();
+  }
+
+  /* VisibleForTesting */
+  int getTarget() {
+    return target.get();
+  }
+
+}
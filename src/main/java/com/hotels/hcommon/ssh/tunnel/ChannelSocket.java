@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+
+/**
+ * A {@link Socket} over a {@code direct-tcpip} channel opened by a {@link ChannelSocketFactory}.
+ * <p>
+ * The channel is opened when the socket is connected. It always leads to the remote host and port of the factory, the
+ * address the socket is connected to is only reported back by {@link #getRemoteSocketAddress()}. Socket options which
+ * don't apply to a SSH channel are accepted and ignored, {@link #setSoTimeout(int)} is honoured by reads. It also
+ * bounds how long the session thread waits for a reader which doesn't keep up, the connect timeout of the factory doing
+ * so when reads don't time out.
+ * </p>
+ */
+final class ChannelSocket extends Socket {
+
+  private final ChannelSocketFactory socketFactory;
+  private final ChannelPipe pipe = new ChannelPipe();
+  private final InputStream inputStream = new InputStream() {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (inputShutdown) {
+        return -1;
+      }
+      return pipe.read(b, off, len, soTimeout);
+    }
+
+    @Override
+    public int available() {
+      return pipe.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      ChannelSocket.this.close();
+    }
+  };
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (outputShutdown) {
+        throw new SocketException("Socket output is shutdown");
+      }
+      // Socket streams aren't buffered, the data is sent straight away
+      channelOutputStream.write(b, off, len);
+      channelOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      ChannelSocket.this.close();
+    }
+  };
+
+  private volatile ChannelDirectTCPIP channel;
+  private OutputStream channelOutputStream;
+  private SocketAddress remoteSocketAddress;
+  private volatile int soTimeout;
+  private volatile boolean closed;
+  private volatile boolean inputShutdown;
+  private volatile boolean outputShutdown;
+  private boolean tcpNoDelay;
+  private boolean keepAlive;
+  private int soLinger = -1;
+  private int sendBufferSize;
+  private int receiveBufferSize;
+
+  ChannelSocket(ChannelSocketFactory socketFactory) throws SocketException {
+    super((SocketImpl) null);
+    this.socketFactory = socketFactory;
+    pipe.setWriteTimeout(socketFactory.getConnectTimeout());
+  }
+
+  @Override
+  public void connect(SocketAddress endpoint) throws IOException {
+    connect(endpoint, 0);
+  }
+
+  @Override
+  public synchronized void connect(SocketAddress endpoint, int timeout) throws IOException {
+    if (closed) {
+      throw new SocketException("Socket is closed");
+    }
+    if (channel != null) {
+      throw new SocketException("Already connected");
+    }
+    if (timeout < 0) {
+      throw new IllegalArgumentException("connect: timeout can't be negative");
+    }
+    ChannelDirectTCPIP newChannel = socketFactory.openChannel();
+    try {
+      newChannel.setOutputStream(pipe.getSink());
+      channelOutputStream = newChannel.getOutputStream();
+      newChannel.connect(timeout > 0 ? timeout : socketFactory.getConnectTimeout());
+    } catch (JSchException | IOException e) {
+      newChannel.disconnect();
+      throw new IOException("Unable to open a channel to " + socketFactory, e);
+    }
+    remoteSocketAddress = endpoint;
+    channel = newChannel;
+    if (closed) {
+      // Closed while connecting
+      newChannel.disconnect();
+    }
+  }
+
+  @Override
+  public void bind(SocketAddress bindpoint) throws IOException {
+    // There is no local end to bind
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    checkConnected();
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    checkConnected();
+    return outputStream;
+  }
+
+  private void checkConnected() throws SocketException {
+    if (closed) {
+      throw new SocketException("Socket is closed");
+    }
+    if (channel == null) {
+      throw new SocketException("Socket is not connected");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    pipe.close();
+    ChannelDirectTCPIP current = channel;
+    if (current != null) {
+      current.disconnect();
+    }
+  }
+
+  @Override
+  public void shutdownInput() throws IOException {
+    checkConnected();
+    inputShutdown = true;
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    checkConnected();
+    if (!outputShutdown) {
+      outputShutdown = true;
+      // Sends EOF on the channel
+      channelOutputStream.close();
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel != null;
+  }
+
+  @Override
+  public boolean isBound() {
+    return channel != null;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public boolean isInputShutdown() {
+    return inputShutdown;
+  }
+
+  @Override
+  public boolean isOutputShutdown() {
+    return outputShutdown;
+  }
+
+  @Override
+  public synchronized SocketAddress getRemoteSocketAddress() {
+    return remoteSocketAddress;
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    SocketAddress address = getRemoteSocketAddress();
+    return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+  }
+
+  @Override
+  public int getPort() {
+    SocketAddress address = getRemoteSocketAddress();
+    return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getPort() : 0;
+  }
+
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    return null;
+  }
+
+  @Override
+  public InetAddress getLocalAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+
+  @Override
+  public void setSoTimeout(int timeout) throws SocketException {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout can't be negative");
+    }
+    soTimeout = timeout;
+    pipe.setWriteTimeout(timeout > 0 ? timeout : socketFactory.getConnectTimeout());
+  }
+
+  @Override
+  public int getSoTimeout() {
+    return soTimeout;
+  }
+
+  @Override
+  public synchronized void setTcpNoDelay(boolean on) {
+    tcpNoDelay = on;
+  }
+
+  @Override
+  public synchronized boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  @Override
+  public synchronized void setKeepAlive(boolean on) {
+    keepAlive = on;
+  }
+
+  @Override
+  public synchronized boolean getKeepAlive() {
+    return keepAlive;
+  }
+
+  @Override
+  public synchronized void setSoLinger(boolean on, int linger) {
+    soLinger = on ? linger : -1;
+  }
+
+  @Override
+  public synchronized int getSoLinger() {
+    return soLinger;
+  }
+
+  @Override
+  public synchronized void setSendBufferSize(int size) {
+    sendBufferSize = size;
+  }
+
+  @Override
+  public synchronized int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  @Override
+  public synchronized void setReceiveBufferSize(int size) {
+    receiveBufferSize = size;
+  }
+
+  @Override
+  public synchronized int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  @Override
+  public void setReuseAddress(boolean on) {}
+
+  @Override
+  public boolean getReuseAddress() {
+    return false;
+  }
+
+  @Override
+  public void setTrafficClass(int tc) {}
+
+  @Override
+  public int getTrafficClass() {
+    return 0;
+  }
+
+  @Override
+  public void setOOBInline(boolean on) {}
+
+  @Override
+  public boolean getOOBInline() {
+    return false;
+  }
+
+  @Override
+  public void sendUrgentData(int data) throws IOException {
+    throw new SocketException("Urgent data is not supported over a SSH channel");
+  }
+
+  @Override
+  public String toString() {
+    return "ChannelSocket[" + socketFactory + "]";
+  }
+
+}
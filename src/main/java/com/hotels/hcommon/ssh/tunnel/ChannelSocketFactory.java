@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.SocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A {@link SocketFactory} whose sockets are {@code direct-tcpip} channels opened on the {@link SessionChain} of a
+ * tunnel path, all leading to the same remote host and port.
+ * <p>
+ * The data doesn't go through a local port and the JSch thread forwarding it: it's exchanged with the channel
+ * directly by the thread using the socket. The host and port the sockets are connected to are ignored.
+ * </p>
+ * <p>
+ * The factory holds a reference to its session chain from the first call to {@link #ensureOpen()} until it's closed.
+ * Sockets cannot be created while the factory is closed and the ones already created are left to fail once the chain
+ * is disconnected.
+ * </p>
+ */
+public class ChannelSocketFactory extends SocketFactory implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(ChannelSocketFactory.class);
+
+  private static final String DIRECT_TCPIP = "direct-tcpip";
+
+  private final SessionFactory sessionFactory;
+  private final SessionChainRegistry sessionChainRegistry;
+  private final Route route;
+  private final String remoteHost;
+  private final int remotePort;
+  private final int connectTimeout;
+  private SessionChain sessionChain;
+  private volatile Session session;
+
+  ChannelSocketFactory(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      String remoteHost,
+      int remotePort,
+      int connectTimeout) {
+    this.sessionFactory = sessionFactory;
+    this.sessionChainRegistry = sessionChainRegistry;
+    this.route = route;
+    this.remoteHost = remoteHost;
+    this.remotePort = remotePort;
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Ensures the session chain is connected, connecting it again if it has been dropped or if this factory has been
+   * closed.
+   */
+  public void ensureOpen() throws JSchException {
+    Session current = session;
+    if (current != null && current.isConnected()) {
+      return;
+    }
+    synchronized (this) {
+      if (sessionChain == null) {
+        sessionChain = sessionChainRegistry.acquire(sessionFactory, route);
+        log.info("Opening channels to {}:{} through {}", remoteHost, remotePort, route);
+      }
+      session = sessionChain.open();
+    }
+  }
+
+  /**
+   * @return a new channel to the remote host and port, not connected yet.
+   */
+  ChannelDirectTCPIP openChannel() throws IOException {
+    Session current;
+    synchronized (this) {
+      if (sessionChain == null) {
+        throw new SocketException("Socket factory " + this + " is closed");
+      }
+      try {
+        current = sessionChain.open();
+      } catch (JSchException e) {
+        throw new IOException("Unable to open SSH session through " + route, e);
+      }
+      session = current;
+    }
+    try {
+      ChannelDirectTCPIP channel = (ChannelDirectTCPIP) current.openChannel(DIRECT_TCPIP);
+      channel.setHost(remoteHost);
+      channel.setPort(remotePort);
+      return channel;
+    } catch (JSchException e) {
+      throw new IOException("Unable to open a " + DIRECT_TCPIP + " channel through " + route, e);
+    }
+  }
+
+  int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return new ChannelSocket(this);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return connect(InetSocketAddress.createUnresolved(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return createSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return connect(new InetSocketAddress(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+    throws IOException {
+    return createSocket(address, port);
+  }
+
+  private Socket connect(InetSocketAddress address) throws IOException {
+    Socket socket = createSocket();
+    try {
+      socket.connect(address);
+      return socket;
+    } catch (IOException | RuntimeException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the session chain. It's disconnected if no other tunnel uses it.
+   */
+  @Override
+  public synchronized void close() {
+    if (sessionChain != null) {
+      sessionChainRegistry.release(sessionChain);
+      sessionChain = null;
+      session = null;
+      log.info("Closed channels to {}:{} through {}", remoteHost, remotePort, route);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return remoteHost + ":" + remotePort + " through " + route;
+  }
+
+}
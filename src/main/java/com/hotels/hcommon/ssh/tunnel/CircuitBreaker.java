@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hotels.hcommon.ssh.SshException;
+
+/**
+ * Guards the attempts to open the SSH sessions of a route.
+ * <p>
+ * The circuit opens after a number of consecutive failures. While it's open attempts fail straight away with a
+ * {@link SshException}. Once the backoff has elapsed the circuit is half-open: a single attempt is let through and the
+ * others keep failing fast. If the attempt succeeds the circuit closes, otherwise it opens again for twice as long, up
+ * to a maximum. Each backoff is randomly reduced by up to half so clients don't retry all at once.
+ * </p>
+ */
+class CircuitBreaker {
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private final String name;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final int failureThreshold;
+  private final LongSupplier nanoTime;
+  private volatile State state = State.CLOSED;
+  private int failures;
+  private int trips;
+  private long retryAt;
+  private boolean trialInProgress;
+
+  CircuitBreaker(String name, int initialBackoff, int maxBackoff, int failureThreshold) {
+    this(name, initialBackoff, maxBackoff, failureThreshold, System::nanoTime);
+  }
+
+  /* VisibleForTesting */
+  CircuitBreaker(String name, int initialBackoff, int maxBackoff, int failureThreshold, LongSupplier nanoTime) {
+    this.name = name;
+    initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoff);
+    maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoff);
+    this.failureThreshold = failureThreshold;
+    this.nanoTime = nanoTime;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  /**
+   * Checks whether an attempt can be made. Every successful call must be followed by a call to either
+   * {@link #onSuccess()} or {@link #onFailure()}.
+   *
+   * @throws SshException if the circuit is open.
+   */
+  void acquire() {
+    if (state == State.CLOSED) {
+      return;
+    }
+    synchronized (this) {
+      switch (state) {
+      case CLOSED:
+        return;
+      case OPEN:
+        long now = nanoTime.getAsLong();
+        if (now - retryAt < 0) {
+          throw new SshException(String.format("Circuit breaker for '%s' is open, next attempt allowed in %dms", name,
+              TimeUnit.NANOSECONDS.toMillis(retryAt - now)));
+        }
+        log.debug("Circuit breaker for '{}' is half-open", name);
+        state = State.HALF_OPEN;
+        trialInProgress = true;
+        return;
+      default:
+        if (trialInProgress) {
+          throw new SshException(
+              String.format("Circuit breaker for '%s' is half-open and an attempt is already in progress", name));
+        }
+        trialInProgress = true;
+      }
+    }
+  }
+
+  synchronized void onSuccess() {
+    if (state != State.CLOSED) {
+      log.info("Circuit breaker for '{}' is closed", name);
+    }
+    state = State.CLOSED;
+    failures = 0;
+    trips = 0;
+    trialInProgress = false;
+  }
+
+  synchronized void onFailure() {
+    trialInProgress = false;
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      trips++;
+      long backoff = backoff(trips);
+      retryAt = nanoTime.getAsLong() + backoff;
+      state = State.OPEN;
+      log.warn("Circuit breaker for '{}' is open for {}ms after {} consecutive failures", name,
+          TimeUnit.NANOSECONDS.toMillis(backoff), failures);
+    }
+  }
+
+  private long backoff(int trips) {
+    long backoff = initialBackoffNanos;
+    for (int i = 1; i < trips && backoff < maxBackoffNanos; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, maxBackoffNanos);
+    // Jitter: between half and the whole backoff
+    return backoff - ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+}
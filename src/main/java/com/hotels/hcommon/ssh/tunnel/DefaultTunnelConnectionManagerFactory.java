@@ -18,15 +18,16 @@ package com.hotels.hcommon.ssh.tunnel;
 import static com.hotels.hcommon.ssh.validation.Preconditions.checkArgument;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.pastdev.jsch.tunnel.Tunnel;
 import com.pastdev.jsch.tunnel.TunnelConnectionManager;
 
 import com.hotels.hcommon.ssh.SshException;
 import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.route.Route;
 import com.hotels.hcommon.ssh.session.SessionFactorySupplier;
 
 public class DefaultTunnelConnectionManagerFactory implements TunnelConnectionManagerFactory {
@@ -35,20 +36,22 @@ public class DefaultTunnelConnectionManagerFactory implements TunnelConnectionMa
   public static final String LOCALHOST = "localhost";
   public static final int FIRST_AVAILABLE_PORT = 0;
 
-  private static int getLocalPort() {
-    try (ServerSocket socket = new ServerSocket(FIRST_AVAILABLE_PORT)) {
-      return socket.getLocalPort();
-    } catch (IOException | RuntimeException e) {
-      throw new SshException("Unable to bind to a free localhost port", e);
-    }
-  }
-
   private final SshSettings sshSettings;
   private final SessionFactorySupplier sessionFactorySupplier;
+  private final SessionChainRegistry sessionChainRegistry;
+  private final LocalPortAllocator localPortAllocator;
+  private final ChannelLimits channelLimits;
 
   public DefaultTunnelConnectionManagerFactory(SshSettings sshSettings, SessionFactorySupplier sessionFactorySupplier) {
     this.sshSettings = sshSettings;
     this.sessionFactorySupplier = sessionFactorySupplier;
+    sessionChainRegistry = new SessionChainRegistry(sshSettings);
+    channelLimits = ChannelLimits.of(sshSettings);
+    if (sshSettings.getFirstLocalPort() > 0) {
+      localPortAllocator = new LocalPortAllocator(sshSettings.getFirstLocalPort(), sshSettings.getLastLocalPort());
+    } else {
+      localPortAllocator = null;
+    }
   }
 
   @Override
@@ -56,6 +59,17 @@ public class DefaultTunnelConnectionManagerFactory implements TunnelConnectionMa
     return sshSettings;
   }
 
+  private LocalPortReservation reserveLocalPort(String localHost, int localPort) {
+    try {
+      if (localPort == FIRST_AVAILABLE_PORT && localPortAllocator != null) {
+        return localPortAllocator.reserve(localHost);
+      }
+      return LocalPortReservation.reserve(localHost, localPort);
+    } catch (IOException | RuntimeException e) {
+      throw new SshException("Unable to bind to local port " + localHost + ":" + localPort, e);
+    }
+  }
+
   @Override
   public TunnelConnectionManager create(String remoteHost, int remotePort) {
     return create(LOCALHOST, FIRST_AVAILABLE_PORT, remoteHost, remotePort);
@@ -70,36 +84,65 @@ public class DefaultTunnelConnectionManagerFactory implements TunnelConnectionMa
     checkArgument(0 < remotePort && remotePort <= 65535,
         "remotePort must a valid port number, a value between 1 and 65535");
 
-    if (localPort == FIRST_AVAILABLE_PORT) {
-      localPort = getLocalPort();
-    }
+    // The port is kept bound until the tunnel is opened so it cannot be taken by anyone else in the meantime
+    LocalPortReservation localPortReservation = reserveLocalPort(localHost, localPort);
+    localPort = localPortReservation.getLocalPort();
 
-    StringBuilder tunnelExpressionBuilder = new StringBuilder(100);
-    String route = getSshSettings().getRoute();
-    if (route == null || route.trim().isEmpty()) {
-      tunnelExpressionBuilder.append(localHost).append("->").append(remoteHost);
-    } else {
-      tunnelExpressionBuilder.append(route.trim().replaceAll("\\s", ""));
-    }
-    String tunnelExpression = tunnelExpressionBuilder
-        .append("|")
-        .append(localHost)
-        .append(":")
-        .append(localPort)
-        .append(":")
-        .append(remoteHost)
-        .append(":")
-        .append(remotePort)
-        .toString();
+    Route route = route(localHost, remoteHost);
+    Tunnel tunnel = new Tunnel(localHost, localPort, remoteHost, remotePort);
+    String tunnelExpression = route + "|" + tunnel.getSpec();
 
     try {
       log.debug("Creating SSH tunnel connection manager for expression {}", tunnelExpression);
-      return new TunnelConnectionManager(sessionFactorySupplier.get(), tunnelExpression);
+      if (sshSettings.getShards() > 1 || channelLimits.isLimited() || sshSettings.getMaxIdleChannels() > 0) {
+        // The channels opened by the port forwarding of JSch can neither be counted nor opened ahead of time
+        return new ShardedTunnelConnectionManager(sessionFactorySupplier.get(), sessionChainRegistry, route, tunnel,
+            localPortReservation, sshSettings.getShards(), sshSettings.getSessionTimeout(), channelLimits,
+            sshSettings.getMinIdleChannels(), sshSettings.getMaxIdleChannels(), sshSettings.getIdleTimeout());
+      }
+      return new SessionChainTunnelConnectionManager(sessionFactorySupplier.get(), sessionChainRegistry, route, tunnel,
+          localPortReservation, sshSettings.getIdleTimeout());
     } catch (Exception e) {
+      localPortReservation.release();
       throw new SshException("Unable to create a TunnelConnectionManager: " + tunnelExpression, e);
     } finally {
       log.debug("SSH tunnel connection manager for expression {} has been created", tunnelExpression);
     }
   }
 
+  @Override
+  public ChannelSocketFactory createSocketFactory(String remoteHost, int remotePort) {
+    checkArgument(remoteHost != null && !remoteHost.trim().isEmpty(), "remoteHost is required");
+    checkArgument(0 < remotePort && remotePort <= 65535,
+        "remotePort must a valid port number, a value between 1 and 65535");
+    Route route = route(LOCALHOST, remoteHost);
+    log.debug("Creating SSH channel socket factory to {}:{} through {}", remoteHost, remotePort, route);
+    return new ChannelSocketFactory(sessionFactorySupplier.get(), sessionChainRegistry, route, remoteHost, remotePort,
+        sshSettings.getSessionTimeout());
+  }
+
+  @Override
+  public TunnelConnectionManager createDynamic(String localHost, int localPort) {
+    checkArgument(localHost != null && !localHost.trim().isEmpty(), "localHost is required");
+    checkArgument(0 <= localPort && localPort <= 65535,
+        "localPort must a valid port number, a value between 0 and 65535");
+    Route route = sshSettings.getTunnelRoute();
+    checkArgument(!route.isEmpty(), "A route is required for dynamic port forwarding");
+
+    LocalPortReservation localPortReservation = reserveLocalPort(localHost, localPort);
+    try {
+      log.debug("Creating SSH SOCKS proxy on {}:{} through {}", localHost, localPortReservation.getLocalPort(), route);
+      return new SocksTunnelConnectionManager(sessionFactorySupplier.get(), sessionChainRegistry, route, localHost,
+          localPortReservation, sshSettings.getShards(), sshSettings.getSessionTimeout(), channelLimits);
+    } catch (Exception e) {
+      localPortReservation.release();
+      throw new SshException("Unable to create a SOCKS proxy through " + route, e);
+    }
+  }
+
+  private Route route(String localHost, String remoteHost) {
+    Route route = sshSettings.getTunnelRoute();
+    return route.isEmpty() ? Route.parse(localHost + "->" + remoteHost) : route;
+  }
+
 }
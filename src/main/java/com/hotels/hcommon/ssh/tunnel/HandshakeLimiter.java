@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Caps the number of SSH handshakes in flight at the same time with each SSH server of the JVM.
+ * <p>
+ * OpenSSH starts dropping new connections once {@code MaxStartups} of them are unauthenticated, 10 by default, so a
+ * burst of tunnels opened at startup through the same bastion would mostly fail and retry. Permits are handed out in
+ * FIFO order by a fair semaphore per host and port, shared by every limiter of the JVM. The semaphore is sized by the
+ * smallest limit of the limiters which have used it, since the server allows the same number of handshakes to all of
+ * them.
+ * </p>
+ * <p>
+ * A handshake waits for its permit for at most the connect timeout.
+ * </p>
+ */
+final class HandshakeLimiter {
+  private static final Logger log = LoggerFactory.getLogger(HandshakeLimiter.class);
+
+  static final HandshakeLimiter UNLIMITED = new HandshakeLimiter(0, 0);
+
+  private static final ConcurrentMap<String, Permits> PERMITS = new ConcurrentHashMap<>();
+
+  /**
+   * The permits of a host, whose number can only be lowered.
+   */
+  private static final class Permits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    private volatile int limit;
+
+    private Permits(int limit) {
+      super(limit, true);
+      this.limit = limit;
+    }
+
+    /**
+     * Lowers the number of permits to the given limit if it's smaller than the current one. The permits already handed
+     * out are given back as usual, so the new limit applies once enough of them have been.
+     */
+    void limitTo(int newLimit) {
+      if (newLimit < limit) {
+        synchronized (this) {
+          if (newLimit < limit) {
+            reducePermits(limit - newLimit);
+            limit = newLimit;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The handshakes of a session chain, which are made with its hops one after the other. A sequence holds at most one
+   * permit so chains going through the same hosts in a different order cannot deadlock.
+   */
+  final class Sequence {
+    private Semaphore held;
+
+    private Sequence() {}
+
+    /**
+     * Gives back the permit of the previous handshake, if any, and waits for a permit to shake hands with the given
+     * host.
+     */
+    void next(String host, int port) throws JSchException {
+      done();
+      if (maxHandshakes <= 0) {
+        return;
+      }
+      String key = host + ":" + port;
+      Permits permits = PERMITS.computeIfAbsent(key, k -> new Permits(maxHandshakes));
+      permits.limitTo(maxHandshakes);
+      try {
+        // Unlike tryAcquire(), doesn't barge ahead of the handshakes already waiting
+        if (!permits.tryAcquire(0, TimeUnit.SECONDS)) {
+          log.debug("Waiting for one of the {} SSH handshakes in flight with {} to complete", permits.limit, key);
+          if (timeoutMillis <= 0) {
+            permits.acquire();
+          } else if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new JSchException("Timed out after " + timeoutMillis + "ms waiting for one of the " + permits.limit
+                + " SSH handshakes in flight with " + key + " to complete");
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JSchException("Interrupted while waiting to connect to " + key, e);
+      }
+      held = permits;
+    }
+
+    /**
+     * Gives back the permit of the last handshake, if any.
+     */
+    void done() {
+      if (held != null) {
+        held.release();
+        held = null;
+      }
+    }
+  }
+
+  private final int maxHandshakes;
+  private final int timeoutMillis;
+
+  /**
+   * @param maxHandshakes the maximum number of handshakes in flight with a host, 0 for no limit.
+   * @param timeoutMillis the maximum time to wait for a handshake to be allowed, 0 to wait until it is.
+   */
+  HandshakeLimiter(int maxHandshakes, int timeoutMillis) {
+    this.maxHandshakes = maxHandshakes;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  Sequence newSequence() {
+    return new Sequence();
+  }
+
+  /* VisibleForTesting */
+  int availablePermits(String host, int port) {
+    Semaphore permits = PERMITS.get(host + ":" + port);
+    return permits == null ? -1 : permits.availablePermits();
+  }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import com.pastdev.jsch.SessionFactory;
+
+/**
+ * A {@link Proxy} which reaches the next hop of a path through a {@code direct-tcpip} channel of the session of the
+ * previous hop.
+ * <p>
+ * Unlike {@link com.pastdev.jsch.proxy.SshProxy} it exposes the session of the previous hop so it can be monitored.
+ * </p>
+ */
+class HopProxy implements Proxy {
+
+  private final SessionFactory sessionFactory;
+  private final Session session;
+  private final HopProxy upstream;
+  private final HandshakeLimiter.Sequence handshakes;
+  private long connectNanos;
+  private long handshakeNanos;
+  private Channel channel;
+  private InputStream inputStream;
+  private OutputStream outputStream;
+
+  /**
+   * @param upstream Proxy used by the session of the previous hop, <code>null</code> if it's the first hop.
+   * @param handshakes Handshakes of the chain, the next one being the handshake with the host this proxy connects to.
+   */
+  HopProxy(SessionFactory sessionFactory, HopProxy upstream, HandshakeLimiter.Sequence handshakes)
+    throws JSchException {
+    this.sessionFactory = sessionFactory;
+    this.upstream = upstream;
+    this.handshakes = handshakes;
+    session = sessionFactory.newSession();
+  }
+
+  Session getSession() {
+    return session;
+  }
+
+  /**
+   * @return how long this proxy took to connect, including the hops before it, in nanoseconds.
+   */
+  long getConnectNanos() {
+    return connectNanos;
+  }
+
+  /**
+   * @return how long the SSH handshake with the hop of this proxy's session took, excluding the hops before it, in
+   *         nanoseconds.
+   */
+  long getHandshakeNanos() {
+    return handshakeNanos;
+  }
+
+  @Override
+  public void connect(SocketFactory socketFactory, String host, int port, int timeout) throws Exception {
+    long start = System.nanoTime();
+    session.connect();
+    handshakeNanos = System.nanoTime() - start - (upstream == null ? 0 : upstream.getConnectNanos());
+    handshakes.next(host, port);
+    channel = session.getStreamForwarder(host, port);
+    inputStream = channel.getInputStream();
+    outputStream = channel.getOutputStream();
+    channel.connect(timeout);
+    connectNanos = System.nanoTime() - start;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public Socket getSocket() {
+    return null;
+  }
+
+  @Override
+  public void close() {
+    if (session.isConnected()) {
+      session.disconnect();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "PROXY(" + sessionFactory + ")";
+  }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hotels.hcommon.ssh.SshException;
+
+/**
+ * Hands out the local ports of tunnels from a fixed range.
+ * <p>
+ * Ports in use by this allocator are tracked in a bitmap. Allocation starts after the last port handed out so a port
+ * which has just been released isn't reused straight away. Ports bound by other processes are skipped.
+ * </p>
+ */
+public class LocalPortAllocator {
+  private static final Logger log = LoggerFactory.getLogger(LocalPortAllocator.class);
+
+  private final int firstPort;
+  private final int size;
+  private final BitSet allocated;
+  private int next;
+
+  public LocalPortAllocator(int firstPort, int lastPort) {
+    this.firstPort = firstPort;
+    size = lastPort - firstPort + 1;
+    allocated = new BitSet(size);
+  }
+
+  /**
+   * Reserves the next free port of the range on the given local host.
+   *
+   * @throws SshException if all the ports of the range are in use.
+   */
+  public LocalPortReservation reserve(String localHost) throws IOException {
+    InetAddress bindAddress = InetAddress.getByName(localHost);
+    for (int attempt = 0; attempt < size; attempt++) {
+      int port = allocate();
+      try {
+        return LocalPortReservation.reserve(bindAddress, port, this);
+      } catch (IOException e) {
+        log.debug("Local port {}:{} is in use, trying the next one", localHost, port, e);
+        release(port);
+      }
+    }
+    throw new SshException(
+        String.format("No local port available between %d and %d", firstPort, firstPort + size - 1));
+  }
+
+  private synchronized int allocate() {
+    int index = allocated.nextClearBit(next);
+    if (index >= size) {
+      index = allocated.nextClearBit(0);
+      if (index >= size) {
+        throw new SshException(
+            String.format("All the local ports between %d and %d are in use", firstPort, firstPort + size - 1));
+      }
+    }
+    allocated.set(index);
+    next = index + 1;
+    return firstPort + index;
+  }
+
+  synchronized void release(int port) {
+    allocated.clear(port - firstPort);
+  }
+
+  /* VisibleForTesting */
+  synchronized int allocatedCount() {
+    return allocated.cardinality();
+  }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ServerSocketFactory;
+
+/**
+ * A local port which is kept bound from the moment a tunnel is created until JSch starts listening on it.
+ * <p>
+ * The bound {@link ServerSocket} is handed over to JSch the first time the port is forwarded so no other process can
+ * take the port in between. Later forwards, e.g. after the tunnel is reopened, bind a new socket.
+ * </p>
+ * <p>
+ * All the sockets record the traffic of the tunnel in its {@link TunnelActivity}.
+ * </p>
+ * <p>
+ * Transports whose port forwarding binds the port itself {@link #unbind() unbind} it right before.
+ * </p>
+ */
+public class LocalPortReservation implements ServerSocketFactory {
+  private static final Logger log = LoggerFactory.getLogger(LocalPortReservation.class);
+  private static final int UNBIND_ATTEMPTS = 5;
+  private static final long UNBIND_RETRY_MILLIS = 10;
+
+  public static LocalPortReservation reserve(String localHost, int localPort) throws IOException {
+    return reserve(InetAddress.getByName(localHost), localPort, null);
+  }
+
+  static LocalPortReservation reserve(InetAddress bindAddress, int localPort, LocalPortAllocator allocator)
+    throws IOException {
+    TunnelActivity activity = new TunnelActivity();
+    return new LocalPortReservation(new ActivityTrackingServerSocket(localPort, 0, bindAddress, activity), activity,
+        allocator);
+  }
+
+  private final int localPort;
+  private final InetAddress bindAddress;
+  private final TunnelActivity activity;
+  private final LocalPortAllocator allocator;
+  private ServerSocket serverSocket;
+  private boolean released;
+
+  /* VisibleForTesting */
+  LocalPortReservation(ServerSocket serverSocket, TunnelActivity activity) {
+    this(serverSocket, activity, null);
+  }
+
+  private LocalPortReservation(ServerSocket serverSocket, TunnelActivity activity, LocalPortAllocator allocator) {
+    this.serverSocket = serverSocket;
+    this.activity = activity;
+    this.allocator = allocator;
+    localPort = serverSocket.getLocalPort();
+    bindAddress = serverSocket.getInetAddress();
+  }
+
+  public int getLocalPort() {
+    return localPort;
+  }
+
+  TunnelActivity getActivity() {
+    return activity;
+  }
+
+  synchronized boolean isReserved() {
+    return serverSocket != null;
+  }
+
+  @Override
+  public synchronized ServerSocket createServerSocket(int port, int backlog, InetAddress bindAddress)
+    throws IOException {
+    ServerSocket reserved = serverSocket;
+    serverSocket = null;
+    if (reserved != null && reserved.getLocalPort() == port) {
+      return reserved;
+    }
+    close(reserved);
+    return new ActivityTrackingServerSocket(port, backlog, bindAddress, activity);
+  }
+
+  /**
+   * Binds the port again after it has been released by the port forwarding so it stays reserved while the tunnel is
+   * closed.
+   */
+  public synchronized void rebind() {
+    if (serverSocket == null) {
+      try {
+        serverSocket = new ActivityTrackingServerSocket(localPort, 0, bindAddress, activity);
+      } catch (IOException e) {
+        log.warn("Unable to reserve local port {} again, it may be taken before the tunnel is reopened", localPort, e);
+      }
+    }
+  }
+
+  /**
+   * Unbinds the port so a port forwarding which cannot be handed a bound {@link ServerSocket} can bind it. Another
+   * process could take the port until the forwarding binds it so this must be done right before. The port is reserved
+   * again by {@link #rebind()}.
+   *
+   * @throws IOException if the port cannot be bound once unbound, the forwarding would fail to bind it too.
+   */
+  public synchronized void unbind() throws IOException {
+    close(serverSocket);
+    serverSocket = null;
+    // MINA closes the port forwarding of the whole session when a bind fails so the port is checked here instead. The
+    // kernel sometimes reports the port in use for a few milliseconds after it's been closed.
+    for (int attempt = 1;; attempt++) {
+      try {
+        new ServerSocket(localPort, 1, bindAddress).close();
+        return;
+      } catch (BindException e) {
+        if (attempt == UNBIND_ATTEMPTS) {
+          throw e;
+        }
+        log.debug("Local port {} is still in use, checking again", localPort);
+        try {
+          TimeUnit.MILLISECONDS.sleep(UNBIND_RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Unbinds the port if it hasn't been handed over to JSch and gives it back to the allocator it came from, if any.
+   */
+  public synchronized void release() {
+    close(serverSocket);
+    serverSocket = null;
+    if (allocator != null && !released) {
+      released = true;
+      allocator.release(localPort);
+    }
+  }
+
+  private void close(ServerSocket socket) {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.debug("Unable to release local port {}", localPort, e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,379 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Hop;
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A reference-counted SSH session established through every hop of a tunnel route, e.g. {@code user@hop1->hop2}.
+ * <p>
+ * Tunnels holding a reference to the same chain are multiplexed as {@code direct-tcpip} forwards on the same session.
+ * The session is disconnected once the last reference has been released.
+ * </p>
+ * <p>
+ * If a keepalive interval is set every session of the chain, including the ones of the intermediate hops, is sent a
+ * keepalive message at that interval. The chain is disconnected once the keepalive count max is reached and its
+ * listeners are notified so their tunnels can be reopened in the background.
+ * </p>
+ * <p>
+ * Attempts to connect the chain go through the {@link CircuitBreaker} of its route, if any, so they fail fast while
+ * the route is known to be down.
+ * </p>
+ */
+class SessionChain {
+  private static final Logger log = LoggerFactory.getLogger(SessionChain.class);
+
+  private final SessionFactory sessionFactory;
+  private final Route route;
+  private final int keepAliveInterval;
+  private final int keepAliveCountMax;
+  private final CircuitBreaker circuitBreaker;
+  private final TunnelMetrics metrics;
+  private final HandshakeLimiter handshakeLimiter;
+  private final List<Runnable> disconnectListeners = new CopyOnWriteArrayList<>();
+  private final List<Runnable> channelReleaseListeners = new CopyOnWriteArrayList<>();
+  private final List<Session> hopSessions = new ArrayList<>();
+  private Session session;
+  private int references;
+  private ScheduledFuture<?> keepAlive;
+  private int missedKeepAlives;
+  private volatile long keepAliveNanos = -1;
+  private final AtomicInteger channels = new AtomicInteger();
+
+  SessionChain(SessionFactory sessionFactory, Route route) {
+    this(sessionFactory, route, 0, 0, null, NoOpTunnelMetrics.INSTANCE);
+  }
+
+  SessionChain(
+      SessionFactory sessionFactory,
+      Route route,
+      int keepAliveInterval,
+      int keepAliveCountMax,
+      CircuitBreaker circuitBreaker,
+      TunnelMetrics metrics) {
+    this(sessionFactory, route, keepAliveInterval, keepAliveCountMax, circuitBreaker, metrics,
+        HandshakeLimiter.UNLIMITED);
+  }
+
+  SessionChain(
+      SessionFactory sessionFactory,
+      Route route,
+      int keepAliveInterval,
+      int keepAliveCountMax,
+      CircuitBreaker circuitBreaker,
+      TunnelMetrics metrics,
+      HandshakeLimiter handshakeLimiter) {
+    this.sessionFactory = sessionFactory;
+    this.route = route;
+    this.keepAliveInterval = keepAliveInterval;
+    this.keepAliveCountMax = keepAliveCountMax;
+    this.circuitBreaker = circuitBreaker;
+    this.metrics = metrics;
+    this.handshakeLimiter = handshakeLimiter;
+  }
+
+  Route getRoute() {
+    return route;
+  }
+
+  synchronized int getReferences() {
+    return references;
+  }
+
+  synchronized void retain() {
+    references++;
+  }
+
+  /**
+   * @return <code>true</code> if this was the last reference and the session has been disconnected, <code>false</code>
+   *         otherwise.
+   */
+  synchronized boolean release() {
+    if (references > 0 && --references == 0) {
+      disconnect();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Registers a listener which is notified when the chain is disconnected because it stopped answering keepalives.
+   */
+  void addDisconnectListener(Runnable listener) {
+    disconnectListeners.add(listener);
+  }
+
+  void removeDisconnectListener(Runnable listener) {
+    disconnectListeners.remove(listener);
+  }
+
+  /**
+   * Registers a listener which is notified whenever a channel reserved on the session is given back, by any tunnel
+   * using the chain.
+   */
+  void addChannelReleaseListener(Runnable listener) {
+    channelReleaseListeners.add(listener);
+  }
+
+  void removeChannelReleaseListener(Runnable listener) {
+    channelReleaseListeners.remove(listener);
+  }
+
+  /**
+   * @return the sessions of every hop of the chain, the last one being the session returned by {@link #open()}.
+   */
+  synchronized List<Session> getSessions() {
+    if (session == null) {
+      return Collections.emptyList();
+    }
+    List<Session> sessions = new ArrayList<>(hopSessions);
+    sessions.add(session);
+    return sessions;
+  }
+
+  /**
+   * @return how long the last round of keepalives took to be sent through the whole chain in nanoseconds, -1 if none
+   *         has been sent yet.
+   */
+  long getKeepAliveNanos() {
+    return keepAliveNanos;
+  }
+
+  /**
+   * Reserves one of the {@code direct-tcpip} channels the session can carry. The reservation is shared by every tunnel
+   * using the chain and must be given back with {@link #releaseChannel()}.
+   *
+   * @param maxChannels the maximum number of channels open at the same time on the session, 0 for no limit.
+   * @return <code>true</code> if a channel has been reserved, <code>false</code> if the session is full.
+   */
+  boolean reserveChannel(int maxChannels) {
+    while (true) {
+      int reserved = channels.get();
+      if (maxChannels > 0 && reserved >= maxChannels) {
+        return false;
+      }
+      if (channels.compareAndSet(reserved, reserved + 1)) {
+        return true;
+      }
+    }
+  }
+
+  void releaseChannel() {
+    channels.decrementAndGet();
+    for (Runnable listener : channelReleaseListeners) {
+      listener.run();
+    }
+  }
+
+  int getChannels() {
+    return channels.get();
+  }
+
+  synchronized boolean isOpen() {
+    return session != null && session.isConnected();
+  }
+
+  /**
+   * Returns the connected session of the last hop of the route, (re)connecting the whole chain if required.
+   */
+  synchronized Session open() throws JSchException {
+    if (isOpen()) {
+      return session;
+    }
+    disconnect();
+    if (circuitBreaker != null) {
+      circuitBreaker.acquire();
+    }
+    log.debug("Opening SSH session chain {}", route);
+    boolean connected = false;
+    List<HopProxy> hopProxies = new ArrayList<>();
+    HandshakeLimiter.Sequence handshakes = handshakeLimiter.newSequence();
+    try {
+      // Hop factories are rebuilt on every open as each HopProxy holds on to the session of its own hop
+      Session newSession = newHopSessionFactory(hopProxies, handshakes).newSession();
+      Session firstHopSession = hopProxies.isEmpty() ? newSession : hopProxies.get(0).getSession();
+      handshakes.next(firstHopSession.getHost(), firstHopSession.getPort());
+      long start = System.nanoTime();
+      newSession.connect();
+      long connectNanos = System.nanoTime() - start;
+      session = newSession;
+      connected = true;
+      recordHandshakes(hopProxies, newSession, connectNanos);
+    } finally {
+      handshakes.done();
+      if (circuitBreaker != null) {
+        if (connected) {
+          circuitBreaker.onSuccess();
+        } else {
+          circuitBreaker.onFailure();
+        }
+      }
+    }
+    for (HopProxy hopProxy : hopProxies) {
+      hopSessions.add(hopProxy.getSession());
+    }
+    scheduleKeepAlive();
+    log.debug("SSH session chain {} is open", route);
+    return session;
+  }
+
+  private void recordHandshakes(List<HopProxy> hopProxies, Session lastSession, long connectNanos) {
+    long upstreamNanos = 0;
+    for (HopProxy hopProxy : hopProxies) {
+      metrics.handshake(hopProxy.getSession().getHost(), hopProxy.getHandshakeNanos());
+      metrics.sessionConnected();
+      upstreamNanos = hopProxy.getConnectNanos();
+    }
+    metrics.handshake(lastSession.getHost(), connectNanos - upstreamNanos);
+    metrics.sessionConnected();
+  }
+
+  synchronized void disconnect() {
+    cancelKeepAlive();
+    if (session != null) {
+      for (int i = 0; i <= hopSessions.size(); i++) {
+        metrics.sessionDisconnected();
+      }
+      hopSessions.clear();
+      if (session.isConnected()) {
+        log.debug("Closing SSH session chain {}", route);
+        session.disconnect();
+      }
+      session = null;
+    }
+  }
+
+  private void scheduleKeepAlive() {
+    if (keepAliveInterval <= 0) {
+      return;
+    }
+    missedKeepAlives = 0;
+    for (Session hopSession : getSessions()) {
+      try {
+        // Lets JSch itself detect missing replies on the sessions which have their own socket
+        hopSession.setServerAliveInterval(keepAliveInterval);
+        hopSession.setServerAliveCountMax(keepAliveCountMax);
+      } catch (JSchException e) {
+        log.debug("Unable to set server alive interval on SSH session chain {}", route, e);
+      }
+    }
+    keepAlive = TunnelScheduler.get().scheduleWithFixedDelay(() -> {
+      try {
+        sendKeepAlive();
+      } catch (RuntimeException e) {
+        log.warn("Unable to send keepalive on SSH session chain {}", route, e);
+      }
+    }, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelKeepAlive() {
+    if (keepAlive != null) {
+      keepAlive.cancel(false);
+      keepAlive = null;
+    }
+  }
+
+  /**
+   * Sends a keepalive message on every session of the chain and disconnects the chain if too many keepalives in a row
+   * could not be sent.
+   *
+   * @return <code>true</code> if the keepalives have been sent, <code>false</code> otherwise.
+   */
+  boolean sendKeepAlive() {
+    synchronized (this) {
+      if (session == null) {
+        return false;
+      }
+      long start = System.nanoTime();
+      boolean sent = true;
+      for (Session hopSession : getSessions()) {
+        if (!hopSession.isConnected()) {
+          // Already dropped, e.g. by JSch after too many missing replies
+          missedKeepAlives = keepAliveCountMax;
+          sent = false;
+          break;
+        }
+        try {
+          hopSession.sendKeepAliveMsg();
+        } catch (Exception e) {
+          log.debug("Unable to send keepalive to {} on SSH session chain {}", hopSession.getHost(), route, e);
+          sent = false;
+          break;
+        }
+      }
+      if (sent) {
+        keepAliveNanos = System.nanoTime() - start;
+        missedKeepAlives = 0;
+        log.trace("Keepalive sent through SSH session chain {} in {}ns", route, keepAliveNanos);
+        return true;
+      }
+      if (missedKeepAlives < keepAliveCountMax && ++missedKeepAlives < keepAliveCountMax) {
+        log.debug("Missed keepalive {} of {} on SSH session chain {}", missedKeepAlives, keepAliveCountMax, route);
+        return false;
+      }
+      log.warn("SSH session chain {} missed {} keepalives, disconnecting it", route, missedKeepAlives);
+      disconnect();
+    }
+    // Listeners are notified without holding the lock as they may reopen the chain
+    for (Runnable listener : disconnectListeners) {
+      listener.run();
+    }
+    return false;
+  }
+
+  private SessionFactory newHopSessionFactory(List<HopProxy> hopProxies, HandshakeLimiter.Sequence handshakes)
+    throws JSchException {
+    SessionFactory hopFactory = null;
+    for (Hop hop : route.getHops()) {
+      SessionFactoryBuilder builder;
+      if (hopFactory == null) {
+        builder = sessionFactory.newSessionFactoryBuilder();
+      } else {
+        builder = hopFactory.newSessionFactoryBuilder();
+        HopProxy upstream = hopProxies.isEmpty() ? null : hopProxies.get(hopProxies.size() - 1);
+        HopProxy hopProxy = new HopProxy(hopFactory, upstream, handshakes);
+        hopProxies.add(hopProxy);
+        builder.setProxy(hopProxy);
+      }
+      if (hop.getUser() != null) {
+        builder.setUsername(hop.getUser());
+      }
+      builder.setHostname(hop.getHostname());
+      hopFactory = builder.build();
+    }
+    return hopFactory;
+  }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.pastdev.jsch.SessionFactory;
+
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * Hands out {@link SessionChain session chains} to tunnels, either one per route and shard when sessions are shared or
+ * one per tunnel and shard otherwise.
+ */
+class SessionChainRegistry {
+
+  private final Map<String, SessionChain> sessionChains = new HashMap<>();
+  private final boolean sessionSharing;
+  private final int keepAliveInterval;
+  private final int keepAliveCountMax;
+  private final int openBackoff;
+  private final int maxOpenBackoff;
+  private final int openFailureThreshold;
+  private final TunnelMetrics metrics;
+  private final HandshakeLimiter handshakeLimiter;
+  private final Map<Route, CircuitBreaker> circuitBreakers = new HashMap<>();
+
+  SessionChainRegistry(SshSettings sshSettings) {
+    this(sshSettings.isSessionSharing(), sshSettings.getKeepAliveInterval(), sshSettings.getKeepAliveCountMax(),
+        sshSettings.getOpenBackoff(), sshSettings.getMaxOpenBackoff(), sshSettings.getOpenFailureThreshold(),
+        sshSettings.getMetrics(), new HandshakeLimiter(sshSettings.getMaxConcurrentHandshakes(),
+            sshSettings.getSessionTimeout()));
+  }
+
+  SessionChainRegistry(boolean sessionSharing) {
+    this(sessionSharing, 0, 0);
+  }
+
+  SessionChainRegistry(boolean sessionSharing, int keepAliveInterval, int keepAliveCountMax) {
+    this(sessionSharing, keepAliveInterval, keepAliveCountMax, 0, 0, 1);
+  }
+
+  SessionChainRegistry(
+      boolean sessionSharing,
+      int keepAliveInterval,
+      int keepAliveCountMax,
+      int openBackoff,
+      int maxOpenBackoff,
+      int openFailureThreshold) {
+    this(sessionSharing, keepAliveInterval, keepAliveCountMax, openBackoff, maxOpenBackoff, openFailureThreshold,
+        NoOpTunnelMetrics.INSTANCE);
+  }
+
+  SessionChainRegistry(
+      boolean sessionSharing,
+      int keepAliveInterval,
+      int keepAliveCountMax,
+      int openBackoff,
+      int maxOpenBackoff,
+      int openFailureThreshold,
+      TunnelMetrics metrics) {
+    this(sessionSharing, keepAliveInterval, keepAliveCountMax, openBackoff, maxOpenBackoff, openFailureThreshold,
+        metrics, HandshakeLimiter.UNLIMITED);
+  }
+
+  SessionChainRegistry(
+      boolean sessionSharing,
+      int keepAliveInterval,
+      int keepAliveCountMax,
+      int openBackoff,
+      int maxOpenBackoff,
+      int openFailureThreshold,
+      TunnelMetrics metrics,
+      HandshakeLimiter handshakeLimiter) {
+    this.sessionSharing = sessionSharing;
+    this.keepAliveInterval = keepAliveInterval;
+    this.keepAliveCountMax = keepAliveCountMax;
+    this.openBackoff = openBackoff;
+    this.maxOpenBackoff = maxOpenBackoff;
+    this.openFailureThreshold = openFailureThreshold;
+    this.metrics = metrics;
+    this.handshakeLimiter = handshakeLimiter;
+  }
+
+  TunnelMetrics getMetrics() {
+    return metrics;
+  }
+
+  SessionChain acquire(SessionFactory sessionFactory, Route route) {
+    return acquire(sessionFactory, route, 0);
+  }
+
+  /**
+   * @param shard Index of the chain among the independent chains of a route which a sharded tunnel uses. When sessions
+   *          are shared, the tunnels of a route share their chains shard by shard.
+   */
+  synchronized SessionChain acquire(SessionFactory sessionFactory, Route route, int shard) {
+    SessionChain sessionChain;
+    if (sessionSharing) {
+      String key = shard == 0 ? route.getPath() : route.getPath() + "#" + shard;
+      sessionChain = sessionChains.get(key);
+      if (sessionChain == null) {
+        sessionChain = newSessionChain(sessionFactory, route);
+        sessionChains.put(key, sessionChain);
+      }
+    } else {
+      sessionChain = newSessionChain(sessionFactory, route);
+    }
+    sessionChain.retain();
+    return sessionChain;
+  }
+
+  private SessionChain newSessionChain(SessionFactory sessionFactory, Route route) {
+    return new SessionChain(sessionFactory, route, keepAliveInterval, keepAliveCountMax, getCircuitBreaker(route),
+        metrics, handshakeLimiter);
+  }
+
+  /**
+   * @return the circuit breaker shared by all the chains of the route, <code>null</code> if attempts are never blocked.
+   */
+  private CircuitBreaker getCircuitBreaker(Route route) {
+    if (openBackoff <= 0) {
+      return null;
+    }
+    CircuitBreaker circuitBreaker = circuitBreakers.get(route);
+    if (circuitBreaker == null) {
+      circuitBreaker = new CircuitBreaker(route.getPath(), openBackoff, maxOpenBackoff, openFailureThreshold);
+      circuitBreakers.put(route, circuitBreaker);
+    }
+    return circuitBreaker;
+  }
+
+  synchronized void release(SessionChain sessionChain) {
+    if (sessionChain.release()) {
+      sessionChains.values().remove(sessionChain);
+    }
+  }
+
+  /* VisibleForTesting */
+  synchronized int size() {
+    return sessionChains.size();
+  }
+
+}
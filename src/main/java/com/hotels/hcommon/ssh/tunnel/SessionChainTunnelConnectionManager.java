@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.File;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A {@link TunnelConnectionManager} for a single local port forward which is set up on a {@link SessionChain}
+ * obtained from a {@link SessionChainRegistry}.
+ * <p>
+ * The chain is released when the tunnel is closed so a shared session is only disconnected when the last of its
+ * tunnels is closed.
+ * </p>
+ * <p>
+ * {@link #ensureOpen()} doesn't lock while the tunnel is {@link TunnelState#OPEN open} and its session is connected.
+ * Otherwise a single thread reopens the tunnel and any other thread calling {@link #ensureOpen()} meanwhile waits for
+ * the outcome of that same attempt.
+ * </p>
+ * <p>
+ * If an idle timeout is set the tunnel is closed once no data has gone through its local port for that long. The
+ * local port stays reserved and the tunnel is reopened by the next call to {@link #ensureOpen()}.
+ * </p>
+ */
+class SessionChainTunnelConnectionManager extends TunnelConnectionManager {
+  private static final Logger log = LoggerFactory.getLogger(SessionChainTunnelConnectionManager.class);
+
+  private final SessionFactory sessionFactory;
+  private final SessionChainRegistry sessionChainRegistry;
+  private final Route route;
+  private final Tunnel tunnel;
+  private final LocalPortReservation localPortReservation;
+  private final long idleTimeoutNanos;
+  private final TunnelMetrics metrics;
+  private final AtomicReference<TunnelState> state = new AtomicReference<>(TunnelState.CLOSED);
+  private final TunnelReopener reopener;
+  private SessionChain sessionChain;
+  private volatile Session forwardingSession;
+  private ScheduledFuture<?> idleCheck;
+  private boolean opened;
+  private final Runnable disconnectListener = this::onSessionChainDisconnected;
+
+  SessionChainTunnelConnectionManager(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      Tunnel tunnel) throws JSchException {
+    this(sessionFactory, sessionChainRegistry, route, tunnel, null, 0);
+  }
+
+  SessionChainTunnelConnectionManager(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      Tunnel tunnel,
+      LocalPortReservation localPortReservation,
+      int idleTimeout) throws JSchException {
+    super(sessionFactory);
+    this.sessionFactory = sessionFactory;
+    this.sessionChainRegistry = sessionChainRegistry;
+    this.route = route;
+    this.tunnel = tunnel;
+    this.localPortReservation = localPortReservation;
+    idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    reopener = new TunnelReopener(tunnel.toString());
+    metrics = sessionChainRegistry.getMetrics();
+  }
+
+  @Override
+  public synchronized void open() throws JSchException {
+    if (sessionChain == null) {
+      sessionChain = sessionChainRegistry.acquire(sessionFactory, route);
+      sessionChain.addDisconnectListener(disconnectListener);
+    }
+    Session session;
+    try {
+      session = sessionChain.open();
+      if (session != forwardingSession) {
+        forwardingSession = null;
+        if (localPortReservation == null) {
+          session.setPortForwardingL(tunnel.getLocalAlias(), tunnel.getLocalPort(), tunnel.getDestinationHostname(),
+              tunnel.getDestinationPort());
+        } else {
+          session.setPortForwardingL(tunnel.getLocalAlias(), tunnel.getLocalPort(), tunnel.getDestinationHostname(),
+              tunnel.getDestinationPort(), localPortReservation);
+        }
+        forwardingSession = session;
+        log.info("Forwarding {} through {}", tunnel, route);
+      }
+    } catch (JSchException | RuntimeException e) {
+      setState(TunnelState.DEGRADED);
+      throw e;
+    }
+    setState(TunnelState.OPEN);
+    opened = true;
+    scheduleIdleCheck();
+  }
+
+  /**
+   * Sets the state of the tunnel, reporting to the metrics whether it has become usable or not.
+   */
+  private void setState(TunnelState newState) {
+    TunnelState oldState = state.getAndSet(newState);
+    if (newState == TunnelState.OPEN && oldState != TunnelState.OPEN) {
+      metrics.tunnelUp();
+    } else if (newState != TunnelState.OPEN && oldState == TunnelState.OPEN) {
+      metrics.tunnelDown();
+    }
+  }
+
+  private boolean degrade() {
+    if (state.compareAndSet(TunnelState.OPEN, TunnelState.DEGRADED)) {
+      metrics.tunnelDown();
+      return true;
+    }
+    return false;
+  }
+
+  private void scheduleIdleCheck() {
+    if (idleTimeoutNanos > 0 && localPortReservation != null && idleCheck == null) {
+      long period = Math.max(1, idleTimeoutNanos / 2);
+      idleCheck = TunnelScheduler.get().scheduleWithFixedDelay(() -> {
+        try {
+          closeIfIdle();
+        } catch (RuntimeException e) {
+          log.warn("Unable to check whether tunnel {} through {} is idle", tunnel, route, e);
+        }
+      }, period, period, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void cancelIdleCheck() {
+    if (idleCheck != null) {
+      idleCheck.cancel(false);
+      idleCheck = null;
+    }
+  }
+
+  /**
+   * Closes the tunnel if no data has gone through it for longer than the idle timeout. The local port stays reserved.
+   *
+   * @return <code>true</code> if the tunnel has been closed, <code>false</code> otherwise.
+   */
+  synchronized boolean closeIfIdle() {
+    if (state.get() != TunnelState.OPEN
+        || localPortReservation == null
+        || localPortReservation.getActivity().getIdleNanos() < idleTimeoutNanos) {
+      return false;
+    }
+    log.info("Closing tunnel {} through {}: idle for more than {}ms", tunnel, route,
+        TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+    disconnect();
+    localPortReservation.rebind();
+    return true;
+  }
+
+  @Override
+  public void ensureOpen() throws JSchException {
+    if (localPortReservation != null) {
+      // Recorded before checking the state so the tunnel isn't considered idle while it's about to be used
+      localPortReservation.getActivity().touch();
+    }
+    if (state.get() == TunnelState.OPEN) {
+      Session session = forwardingSession;
+      if (session != null && session.isConnected()) {
+        return;
+      }
+      log.debug("SSH session of tunnel {} through {} is disconnected", tunnel, route);
+      degrade();
+    }
+    long start = System.nanoTime();
+    try {
+      reopen();
+    } finally {
+      metrics.ensureOpenWaited(System.nanoTime() - start);
+    }
+  }
+
+  private void onSessionChainDisconnected() {
+    if (degrade()) {
+      log.info("Reopening tunnel {} through {} in the background: SSH session chain is not responding", tunnel, route);
+      TunnelScheduler.executor().execute(() -> {
+        try {
+          if (state.get() == TunnelState.DEGRADED) {
+            reopen();
+          }
+        } catch (JSchException | RuntimeException e) {
+          log.warn("Unable to reopen tunnel {} through {}", tunnel, route, e);
+        }
+      });
+    }
+  }
+
+  private void reopen() throws JSchException {
+    reopener.reopen(() -> {
+      if (!isOpen()) {
+        reopenNow();
+      }
+    });
+  }
+
+  private void reopenNow() throws JSchException {
+    long start = System.nanoTime();
+    boolean firstOpen;
+    synchronized (this) {
+      firstOpen = !opened;
+      setState(TunnelState.REOPENING);
+    }
+    try {
+      open();
+    } catch (JSchException | RuntimeException e) {
+      metrics.tunnelOpenFailed();
+      throw e;
+    }
+    if (firstOpen) {
+      metrics.tunnelOpened(System.nanoTime() - start);
+    } else {
+      metrics.tunnelReopened(System.nanoTime() - start);
+    }
+  }
+
+  private boolean isOpen() {
+    Session session = forwardingSession;
+    return state.get() == TunnelState.OPEN && session != null && session.isConnected();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (localPortReservation != null) {
+      localPortReservation.release();
+    }
+    disconnect();
+  }
+
+  private void disconnect() {
+    cancelIdleCheck();
+    if (sessionChain == null) {
+      return;
+    }
+    if (forwardingSession != null && forwardingSession.isConnected()) {
+      try {
+        forwardingSession.delPortForwardingL(tunnel.getLocalAlias(), tunnel.getLocalPort());
+      } catch (JSchException e) {
+        log.warn("Unable to remove port forwarding {} from {}", tunnel, route, e);
+      }
+    }
+    forwardingSession = null;
+    sessionChain.removeDisconnectListener(disconnectListener);
+    sessionChainRegistry.release(sessionChain);
+    sessionChain = null;
+    setState(TunnelState.CLOSED);
+    metrics.tunnelClosed();
+  }
+
+  TunnelState getState() {
+    return state.get();
+  }
+
+  @Override
+  public Tunnel getTunnel(String destinationHostname, int destinationPort) {
+    if (tunnel.getDestinationHostname().equals(destinationHostname) && tunnel.getDestinationPort() == destinationPort) {
+      return tunnel;
+    }
+    return null;
+  }
+
+  @Override
+  public void setTunnelConnectionsFromFile(File tunnelsConfig) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+  @Override
+  public void setTunnelConnections(Iterable<String> pathAndSpecList) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+}
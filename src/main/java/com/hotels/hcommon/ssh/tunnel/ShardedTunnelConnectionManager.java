@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A {@link TunnelConnectionManager} for a single local port forward whose connections are spread over several
+ * {@link SessionChain session chains} to the same destination, optionally handing them channels opened ahead of time.
+ */
+class ShardedTunnelConnectionManager extends ChannelForwardingTunnelConnectionManager {
+  private static final Logger log = LoggerFactory.getLogger(ShardedTunnelConnectionManager.class);
+
+  ShardedTunnelConnectionManager(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      Tunnel tunnel,
+      LocalPortReservation localPortReservation,
+      int shards,
+      int connectTimeout,
+      ChannelLimits channelLimits,
+      int minIdleChannels,
+      int maxIdleChannels,
+      int idleTimeout) throws JSchException {
+    super(sessionFactory, sessionChainRegistry, route, tunnel, localPortReservation, shards, connectTimeout,
+        channelLimits, minIdleChannels, maxIdleChannels, idleTimeout);
+  }
+
+  @Override
+  void serve(Socket client) {
+    Tunnel tunnel = getTunnel();
+    ChannelDirectTCPIP channel = null;
+    try {
+      client.setTcpNoDelay(true);
+      channel = openChannel(client, tunnel.getDestinationHostname(), tunnel.getDestinationPort(),
+          new ClientOutputStream(client));
+      forward(client.getInputStream(), channel.getOutputStream());
+    } catch (IOException | JSchException | RuntimeException e) {
+      log.debug("Connection from {} to {} through {} failed", client.getRemoteSocketAddress(), tunnel, getRoute(), e);
+    } finally {
+      if (channel != null) {
+        channel.disconnect();
+      }
+      close(client);
+    }
+  }
+
+  @Override
+  public Tunnel getTunnel(String destinationHostname, int destinationPort) {
+    Tunnel tunnel = getTunnel();
+    if (tunnel.getDestinationHostname().equals(destinationHostname) && tunnel.getDestinationPort() == destinationPort) {
+      return tunnel;
+    }
+    return null;
+  }
+
+}
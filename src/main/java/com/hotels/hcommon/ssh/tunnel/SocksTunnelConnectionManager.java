@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * A {@link TunnelConnectionManager} for dynamic port forwarding, like {@code ssh -D}: a SOCKS5 server listens on the
+ * local port and every connection it accepts is forwarded as a {@code direct-tcpip} channel to the destination the
+ * client asks for, on the {@link SessionChain session chains} of the path.
+ * <p>
+ * Only the {@code CONNECT} command without authentication is supported. Host names are resolved by the remote end of
+ * the route.
+ * </p>
+ */
+class SocksTunnelConnectionManager extends ChannelForwardingTunnelConnectionManager {
+  private static final Logger log = LoggerFactory.getLogger(SocksTunnelConnectionManager.class);
+
+  static final byte SOCKS_VERSION = 5;
+  static final byte NO_AUTHENTICATION = 0;
+  static final byte NO_ACCEPTABLE_METHODS = (byte) 0xff;
+  static final byte CONNECT = 1;
+  static final byte IPV4 = 1;
+  static final byte DOMAIN_NAME = 3;
+  static final byte IPV6 = 4;
+  static final byte SUCCEEDED = 0;
+  static final byte GENERAL_FAILURE = 1;
+  static final byte HOST_UNREACHABLE = 4;
+  static final byte COMMAND_NOT_SUPPORTED = 7;
+  static final byte ADDRESS_TYPE_NOT_SUPPORTED = 8;
+
+  SocksTunnelConnectionManager(
+      SessionFactory sessionFactory,
+      SessionChainRegistry sessionChainRegistry,
+      Route route,
+      String localHost,
+      LocalPortReservation localPortReservation,
+      int shards,
+      int connectTimeout,
+      ChannelLimits channelLimits) throws JSchException {
+    super(sessionFactory, sessionChainRegistry, route,
+        new Tunnel(localHost, localPortReservation.getLocalPort(), "*", 0), localPortReservation, shards,
+        connectTimeout, channelLimits, 0, 0, 0);
+  }
+
+  @Override
+  void serve(Socket client) {
+    ChannelDirectTCPIP channel = null;
+    try {
+      client.setTcpNoDelay(true);
+      DataInputStream input = new DataInputStream(client.getInputStream());
+      OutputStream output = client.getOutputStream();
+      if (!negotiateMethod(input, output)) {
+        return;
+      }
+      byte[] request = new byte[4];
+      input.readFully(request);
+      if (request[0] != SOCKS_VERSION) {
+        return;
+      }
+      String host = readHost(request[3], input);
+      int port = input.readUnsignedShort();
+      if (request[1] != CONNECT) {
+        reply(output, COMMAND_NOT_SUPPORTED);
+        return;
+      }
+      if (host == null) {
+        reply(output, ADDRESS_TYPE_NOT_SUPPORTED);
+        return;
+      }
+      ReplyingOutputStream channelOutput = new ReplyingOutputStream(client);
+      try {
+        channel = openChannel(client, host, port, channelOutput);
+      } catch (IOException | JSchException e) {
+        log.debug("Unable to open channel to {}:{} through {}", host, port, getRoute(), e);
+        reply(output, HOST_UNREACHABLE);
+        return;
+      }
+      channelOutput.reply(SUCCEEDED);
+      forward(input, channel.getOutputStream());
+    } catch (IOException | RuntimeException e) {
+      log.debug("SOCKS connection from {} through {} failed", client.getRemoteSocketAddress(), getRoute(), e);
+    } finally {
+      if (channel != null) {
+        channel.disconnect();
+      }
+      close(client);
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the client accepts to go on without authentication, <code>false</code> otherwise.
+   */
+  private static boolean negotiateMethod(DataInputStream input, OutputStream output) throws IOException {
+    if (input.readByte() != SOCKS_VERSION) {
+      return false;
+    }
+    byte[] methods = new byte[input.readUnsignedByte()];
+    input.readFully(methods);
+    for (byte method : methods) {
+      if (method == NO_AUTHENTICATION) {
+        output.write(new byte[] { SOCKS_VERSION, NO_AUTHENTICATION });
+        output.flush();
+        return true;
+      }
+    }
+    output.write(new byte[] { SOCKS_VERSION, NO_ACCEPTABLE_METHODS });
+    output.flush();
+    return false;
+  }
+
+  /**
+   * @return the destination host, <code>null</code> if the address type isn't supported.
+   */
+  private static String readHost(byte addressType, DataInputStream input) throws IOException {
+    switch (addressType) {
+      case IPV4:
+        byte[] ipv4 = new byte[4];
+        input.readFully(ipv4);
+        return InetAddress.getByAddress(ipv4).getHostAddress();
+      case DOMAIN_NAME:
+        byte[] name = new byte[input.readUnsignedByte()];
+        input.readFully(name);
+        return new String(name, "US-ASCII");
+      case IPV6:
+        byte[] ipv6 = new byte[16];
+        input.readFully(ipv6);
+        return InetAddress.getByAddress(ipv6).getHostAddress();
+      default:
+        return null;
+    }
+  }
+
+  private static byte[] reply(byte status) {
+    return new byte[] { SOCKS_VERSION, status, 0, IPV4, 0, 0, 0, 0, 0, 0 };
+  }
+
+  private static void reply(OutputStream output, byte status) throws IOException {
+    output.write(reply(status));
+    output.flush();
+  }
+
+  /**
+   * The stream the data received on a channel is written to. Writes wait for the SOCKS reply to be sent to the
+   * client first, and closing it closes the client connection.
+   */
+  private final class ReplyingOutputStream extends OutputStream {
+    private final Socket client;
+    private final OutputStream output;
+    private boolean replied;
+
+    private ReplyingOutputStream(Socket client) throws IOException {
+      this.client = client;
+      output = client.getOutputStream();
+    }
+
+    synchronized void reply(byte status) throws IOException {
+      SocksTunnelConnectionManager.reply(output, status);
+      replied = true;
+      notifyAll();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      awaitReply();
+      output.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      awaitReply();
+      output.flush();
+    }
+
+    private void awaitReply() throws IOException {
+      try {
+        while (!replied) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the SOCKS reply", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      SocksTunnelConnectionManager.this.close(client);
+    }
+  }
+
+  @Override
+  public Tunnel getTunnel(String destinationHostname, int destinationPort) {
+    return getTunnel();
+  }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+/**
+ * Keeps track of the last time data went through the local port of a tunnel.
+ */
+class TunnelActivity {
+
+  private volatile long lastActivity = System.nanoTime();
+
+  void touch() {
+    lastActivity = System.nanoTime();
+  }
+
+  /**
+   * @return the number of nanoseconds since the last activity.
+   */
+  long getIdleNanos() {
+    return System.nanoTime() - lastActivity;
+  }
+
+}
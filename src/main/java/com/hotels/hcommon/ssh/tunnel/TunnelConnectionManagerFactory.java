@@ -27,4 +27,21 @@ public interface TunnelConnectionManagerFactory {
 
   TunnelConnectionManager create(String localHost, int localPort, String remoteHost, int remotePort);
 
+  /**
+   * @return a socket factory whose sockets are SSH channels to the given remote host and port, without any local port.
+   * @throws UnsupportedOperationException if this factory only creates local port forwards.
+   */
+  default ChannelSocketFactory createSocketFactory(String remoteHost, int remotePort) {
+    throw new UnsupportedOperationException(getClass().getName() + " doesn't create socket factories");
+  }
+
+  /**
+   * @return a tunnel connection manager running a SOCKS5 proxy on the given local host and port which forwards each
+   *         connection to the destination requested by the client.
+   * @throws UnsupportedOperationException if this factory only creates local port forwards.
+   */
+  default TunnelConnectionManager createDynamic(String localHost, int localPort) {
+    throw new UnsupportedOperationException(getClass().getName() + " doesn't create dynamic port forwards");
+  }
+
 }
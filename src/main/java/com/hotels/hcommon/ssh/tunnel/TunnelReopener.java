@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Reopens a tunnel on a single thread at a time. Any other thread asking for the tunnel to be reopened meanwhile waits
+ * for the outcome of that same attempt instead of making its own.
+ */
+final class TunnelReopener {
+
+  interface Attempt {
+    void run() throws JSchException;
+  }
+
+  private final String tunnel;
+  private final AtomicReference<CompletableFuture<Void>> reopening = new AtomicReference<>();
+
+  TunnelReopener(String tunnel) {
+    this.tunnel = tunnel;
+  }
+
+  void reopen(Attempt attempt) throws JSchException {
+    while (true) {
+      CompletableFuture<Void> outcome = reopening.get();
+      if (outcome != null) {
+        await(outcome);
+        return;
+      }
+      outcome = new CompletableFuture<>();
+      if (reopening.compareAndSet(null, outcome)) {
+        try {
+          attempt.run();
+          outcome.complete(null);
+        } catch (JSchException | RuntimeException e) {
+          outcome.completeExceptionally(e);
+          throw e;
+        } finally {
+          reopening.compareAndSet(outcome, null);
+        }
+        return;
+      }
+    }
+  }
+
+  private void await(CompletableFuture<Void> outcome) throws JSchException {
+    try {
+      outcome.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JSchException("Interrupted while waiting for tunnel " + tunnel + " to be reopened", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JSchException) {
+        throw (JSchException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new JSchException("Unable to reopen tunnel " + tunnel, cause);
+    }
+  }
+
+}
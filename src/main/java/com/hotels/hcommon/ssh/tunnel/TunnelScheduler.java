@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Daemon threads shared by all the tunnels of the JVM to run their background maintenance tasks: a single thread for
+ * the periodic checks and a pool for blocking work such as reopening tunnels.
+ */
+public final class TunnelScheduler {
+
+  private static final ScheduledExecutorService SCHEDULER;
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(daemon("hcommon-ssh-tunnel-worker"));
+
+  static {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemon("hcommon-ssh-tunnel-scheduler"));
+    scheduler.setRemoveOnCancelPolicy(true);
+    SCHEDULER = scheduler;
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  static ScheduledExecutorService get() {
+    return SCHEDULER;
+  }
+
+  public static ExecutorService executor() {
+    return EXECUTOR;
+  }
+
+  private TunnelScheduler() {}
+
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+/**
+ * Liveness of a tunnel as seen by the threads using it.
+ */
+enum TunnelState {
+  /** The tunnel is forwarding through a connected session. */
+  OPEN,
+  /** The session of the tunnel has been found disconnected and the tunnel must be reopened before it's used. */
+  DEGRADED,
+  /** A thread is reopening the tunnel, other threads wait for its outcome. */
+  REOPENING,
+  /** The tunnel has not been opened yet or has been closed. */
+  CLOSED;
+}
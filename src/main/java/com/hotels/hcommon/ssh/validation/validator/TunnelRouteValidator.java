@@ -15,15 +15,10 @@
  */
 package com.hotels.hcommon.ssh.validation.validator;
 
-import static java.util.regex.Pattern.CASE_INSENSITIVE;
-
-import java.net.IDN;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import javax.validation.ConstraintValidator;
 import javax.validation.ConstraintValidatorContext;
 
+import com.hotels.hcommon.ssh.route.Route;
 import com.hotels.hcommon.ssh.validation.constraint.TunnelRoute;
 
 /**
@@ -43,106 +38,18 @@ import com.hotels.hcommon.ssh.validation.constraint.TunnelRoute;
  * ec2-user@bastion-host -> hadoop@emr-master
  * </pre>
  * </p>
+ * <p>
+ * The route is checked by parsing it with {@link Route#parse(CharSequence)}.
+ * </p>
  */
 public class TunnelRouteValidator implements ConstraintValidator<TunnelRoute, CharSequence> {
-  private static final String ATOM = "[a-z0-9!#$%&'*+/=?^_`{|}~-]";
-  private static final String DOMAIN = "(([a-z0-9]|[a-z0-9][a-z0-9\\-]*[a-z0-9])\\.)*([a-z0-9]|[a-z0-9][a-z0-9\\-]*[a-z0-9])";
-  private static final String IP_DOMAIN = "(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])";
-  private static final int MAX_LOCAL_PART_LENGTH = 64;
-  private static final int MAX_DOMAIN_PART_LENGTH = 255;
-
-  /**
-   * Regular expression for the local part (username) of a tunnel hop (everything before '@')
-   */
-  private static final Pattern LOCAL_PATTERN = java.util.regex.Pattern.compile(ATOM + "+(\\." + ATOM + "+)*",
-      CASE_INSENSITIVE);
-
-  /**
-   * Regular expression for the domain part (hostname or IP address) of a tunnel hop (everything after '@')
-   */
-  private static final Pattern DOMAIN_PATTERN = java.util.regex.Pattern.compile(DOMAIN + "|" + IP_DOMAIN,
-      CASE_INSENSITIVE);
 
   @Override
   public void initialize(TunnelRoute annotation) {}
 
   @Override
   public boolean isValid(CharSequence value, ConstraintValidatorContext context) {
-    if (value == null || value.toString().trim().length() == 0) {
-      return true;
-    }
-
-    String[] hops = value.toString().split("->");
-    for (String userHostInfo : hops) {
-      userHostInfo = userHostInfo.trim();
-
-      if (userHostInfo.isEmpty()) {
-        return false;
-      }
-
-      String username = null;
-      String hostname = null;
-      String[] parts = userHostInfo.split("@");
-      switch (parts.length) {
-      case 1:
-        hostname = parts[0];
-        break;
-      case 2:
-        username = parts[0];
-        hostname = parts[1];
-        break;
-      default:
-        // invalid format
-        return false;
-      }
-
-      // If we have a trailing dot in local or domain part we have an invalid tunnel hop.
-      // The regular expression match would take care of this, but IDN.toASCII drops the trailing '.'
-      // (IMO a bug in the implementation)
-
-      if (username != null
-          && (username.endsWith(".") || !matchPart(username.trim(), LOCAL_PATTERN, MAX_LOCAL_PART_LENGTH))) {
-        return false;
-      }
-
-      if (hostname.endsWith(".") || !matchPart(hostname.trim(), DOMAIN_PATTERN, MAX_DOMAIN_PART_LENGTH)) {
-        return false;
-      }
-    }
-
-    return true;
+    return Route.isValid(value);
   }
 
-  private boolean matchPart(String part, Pattern pattern, int maxLength) {
-    String asciiString;
-    try {
-      asciiString = toAscii(part);
-    } catch (IllegalArgumentException e) {
-      return false;
-    }
-
-    if (asciiString.length() > maxLength) {
-      return false;
-    }
-
-    Matcher matcher = pattern.matcher(asciiString);
-    return matcher.matches();
-  }
-
-  private String toAscii(String unicodeString) throws IllegalArgumentException {
-    StringBuilder asciiString = new StringBuilder(256);
-    int start = 0;
-    int end = unicodeString.length() <= 63 ? unicodeString.length() : 63;
-    while (true) {
-      // IDN.toASCII only supports a max "label" length of 63 characters. Need to chunk the input in these sizes
-      asciiString.append(IDN.toASCII(unicodeString.substring(start, end)));
-      if (end == unicodeString.length()) {
-        break;
-      }
-      start = end;
-      end = start + 63 > unicodeString.length() ? unicodeString.length() : start + 63;
-    }
-
-    return asciiString.toString();
-  }
 }
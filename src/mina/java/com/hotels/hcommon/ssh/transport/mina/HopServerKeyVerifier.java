@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport.mina;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+
+/**
+ * A {@link ServerKeyVerifier} which checks the keys of the hops reached through a local port forward against the
+ * address of the hop rather than the loopback address the session is actually connected to.
+ */
+final class HopServerKeyVerifier implements ServerKeyVerifier {
+
+  private final ServerKeyVerifier delegate;
+  private final ConcurrentMap<Integer, InetSocketAddress> forwardedPorts = new ConcurrentHashMap<>();
+
+  HopServerKeyVerifier(ServerKeyVerifier delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Records that the given local port is forwarded to the given hop until {@link #unregister(int)} is called.
+   */
+  void register(int localPort, String hostname, int port) {
+    forwardedPorts.put(localPort, InetSocketAddress.createUnresolved(hostname, port));
+  }
+
+  void unregister(int localPort) {
+    forwardedPorts.remove(localPort);
+  }
+
+  @Override
+  public boolean verifyServerKey(ClientSession clientSession, SocketAddress remoteAddress, PublicKey serverKey) {
+    if (remoteAddress instanceof InetSocketAddress) {
+      InetSocketAddress address = (InetSocketAddress) remoteAddress;
+      InetSocketAddress hop = forwardedPorts.get(address.getPort());
+      if (hop != null && address.getAddress() != null && address.getAddress().isLoopbackAddress()) {
+        return delegate.verifyServerKey(clientSession, hop, serverKey);
+      }
+    }
+    return delegate.verifyServerKey(clientSession, remoteAddress, serverKey);
+  }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport.mina;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Hop;
+import com.hotels.hcommon.ssh.route.Route;
+
+/**
+ * The SSH sessions to the hops of a {@link Route}. Each hop after the first one is reached through a local port forward
+ * of the session of the previous hop.
+ * <p>
+ * The listeners of the chain are notified when one of its sessions is closed other than by {@link #close()}, e.g. by
+ * MINA after missed keepalives.
+ * </p>
+ */
+final class MinaSessionChain {
+  private static final Logger log = LoggerFactory.getLogger(MinaSessionChain.class);
+
+  private static final String LOOPBACK = "localhost";
+
+  private final SshClient client;
+  private final HopServerKeyVerifier serverKeyVerifier;
+  private final Route route;
+  private final int sshPort;
+  private final long timeoutMillis;
+  private final TunnelMetrics metrics;
+  private final List<ClientSession> sessions = new ArrayList<>();
+  private final List<SshdSocketAddress> hopForwards = new ArrayList<>();
+  private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+  private int references;
+
+  MinaSessionChain(
+      SshClient client,
+      HopServerKeyVerifier serverKeyVerifier,
+      Route route,
+      int sshPort,
+      int sessionTimeout,
+      TunnelMetrics metrics) {
+    this.client = client;
+    this.serverKeyVerifier = serverKeyVerifier;
+    this.route = route;
+    this.sshPort = sshPort;
+    timeoutMillis = sessionTimeout == 0 ? Long.MAX_VALUE : sessionTimeout;
+    this.metrics = metrics;
+  }
+
+  Route getRoute() {
+    return route;
+  }
+
+  void addCloseListener(Runnable listener) {
+    closeListeners.add(listener);
+  }
+
+  void removeCloseListener(Runnable listener) {
+    closeListeners.remove(listener);
+  }
+
+  int retain() {
+    return ++references;
+  }
+
+  int release() {
+    return --references;
+  }
+
+  /**
+   * @return the session of the last hop, connecting the whole chain again if any of its sessions has been closed.
+   */
+  synchronized ClientSession open() throws IOException {
+    if (isOpen()) {
+      return sessions.get(sessions.size() - 1);
+    }
+    close();
+    List<Hop> hops = route.getHops();
+    String host = hops.get(0).getHostname();
+    int port = sshPort;
+    try {
+      for (int i = 0; i < hops.size(); i++) {
+        Hop hop = hops.get(i);
+        ClientSession session = connect(hop, host, port);
+        if (i < hops.size() - 1) {
+          String nextHostname = hops.get(i + 1).getHostname();
+          SshdSocketAddress bound = session.startLocalPortForwarding(new SshdSocketAddress(LOOPBACK, 0),
+              new SshdSocketAddress(nextHostname, sshPort));
+          hopForwards.add(bound);
+          serverKeyVerifier.register(bound.getPort(), nextHostname, sshPort);
+          host = LOOPBACK;
+          port = bound.getPort();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    log.debug("SSH sessions opened through {}", route);
+    return sessions.get(sessions.size() - 1);
+  }
+
+  private ClientSession connect(Hop hop, String host, int port) throws IOException {
+    String user = hop.getUser() == null ? System.getProperty("user.name") : hop.getUser();
+    long start = System.nanoTime();
+    ClientSession session = client.connect(user, host, port).verify(timeoutMillis).getSession();
+    try {
+      session.auth().verify(timeoutMillis);
+    } catch (IOException | RuntimeException e) {
+      close(session);
+      throw e;
+    }
+    sessions.add(session);
+    session.addCloseFutureListener(future -> onClosed(session));
+    metrics.handshake(hop.getHostname(), System.nanoTime() - start);
+    metrics.sessionConnected();
+    return session;
+  }
+
+  private static void close(ClientSession session) {
+    try {
+      session.close();
+    } catch (IOException e) {
+      log.debug("Unable to close SSH session {}", session, e);
+    }
+  }
+
+  private void onClosed(ClientSession session) {
+    synchronized (this) {
+      if (!sessions.contains(session)) {
+        // Closed by close()
+        return;
+      }
+    }
+    log.info("SSH session to {} of {} has been closed", session.getConnectAddress(), route);
+    for (Runnable listener : closeListeners) {
+      listener.run();
+    }
+  }
+
+  synchronized boolean isOpen() {
+    if (sessions.size() != route.getHops().size()) {
+      return false;
+    }
+    for (ClientSession session : sessions) {
+      if (!session.isOpen()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  synchronized void close() {
+    for (SshdSocketAddress hopForward : hopForwards) {
+      serverKeyVerifier.unregister(hopForward.getPort());
+    }
+    hopForwards.clear();
+    List<ClientSession> closed = new ArrayList<>(sessions);
+    sessions.clear();
+    // The last hop first, the others carry its traffic
+    for (int i = closed.size() - 1; i >= 0; i--) {
+      close(closed.get(i));
+      metrics.sessionDisconnected();
+    }
+  }
+
+}
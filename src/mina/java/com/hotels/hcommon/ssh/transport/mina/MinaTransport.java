@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport.mina;
+
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.transport.SshTransport;
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+/**
+ * A {@link SshTransport} built on Apache MINA SSHD.
+ * <p>
+ * The sessions and forwarded connections of all the tunnels of a factory are served by the small, fixed pool of NIO
+ * threads of a single {@code SshClient} instead of a thread per session and per connection.
+ * </p>
+ */
+public final class MinaTransport implements SshTransport {
+
+  public static final String NAME = "mina";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public TunnelConnectionManagerFactory newTunnelConnectionManagerFactory(SshSettings sshSettings) {
+    return new MinaTunnelConnectionManagerFactory(sshSettings);
+  }
+
+}
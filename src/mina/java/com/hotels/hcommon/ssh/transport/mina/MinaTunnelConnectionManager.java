@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport.mina;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSchException;
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+import com.hotels.hcommon.ssh.tunnel.LocalPortReservation;
+import com.hotels.hcommon.ssh.tunnel.TunnelScheduler;
+
+/**
+ * A {@link TunnelConnectionManager} for a single local port forward set up on a {@link MinaSessionChain}.
+ * <p>
+ * It only extends {@link TunnelConnectionManager} to fit the {@link com.hotels.hcommon.ssh.tunnel
+ * .TunnelConnectionManagerFactory} API, JSch isn't used.
+ * </p>
+ * <p>
+ * The local port stays reserved whenever it isn't forwarded, and is given back when the tunnel is closed.
+ * </p>
+ * <p>
+ * The tunnel is reopened in the background when one of the sessions of its chain is closed, e.g. after missed
+ * keepalives.
+ * </p>
+ */
+class MinaTunnelConnectionManager extends TunnelConnectionManager {
+  private static final Logger log = LoggerFactory.getLogger(MinaTunnelConnectionManager.class);
+
+  private final MinaTunnelConnectionManagerFactory factory;
+  private final Route route;
+  private final Tunnel tunnel;
+  private final LocalPortReservation localPortReservation;
+  private final TunnelMetrics metrics;
+  private MinaSessionChain sessionChain;
+  private volatile ClientSession forwardingSession;
+  private SshdSocketAddress forward;
+  private final Runnable closeListener = this::onSessionChainClosed;
+
+  MinaTunnelConnectionManager(
+      MinaTunnelConnectionManagerFactory factory,
+      Route route,
+      Tunnel tunnel,
+      LocalPortReservation localPortReservation,
+      TunnelMetrics metrics) throws JSchException {
+    super(null);
+    this.factory = factory;
+    this.route = route;
+    this.tunnel = tunnel;
+    this.localPortReservation = localPortReservation;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public synchronized void open() throws JSchException {
+    if (sessionChain == null) {
+      sessionChain = factory.acquire(route);
+      sessionChain.addCloseListener(closeListener);
+    }
+    try {
+      ClientSession session = sessionChain.open();
+      if (session != forwardingSession) {
+        if (forwardingSession == null) {
+          metrics.tunnelUp();
+        }
+        forwardingSession = session;
+        localPortReservation.unbind();
+        forward = session.startLocalPortForwarding(new SshdSocketAddress(tunnel.getLocalAlias(), tunnel.getLocalPort()),
+            new SshdSocketAddress(tunnel.getDestinationHostname(), tunnel.getDestinationPort()));
+        log.info("Forwarding {} through {}", tunnel, route);
+      }
+    } catch (IOException | RuntimeException e) {
+      disconnect();
+      throw new JSchException("Unable to forward " + tunnel + " through " + route, e);
+    }
+  }
+
+  @Override
+  public void ensureOpen() throws JSchException {
+    ClientSession session = forwardingSession;
+    if (session != null && session.isOpen()) {
+      return;
+    }
+    synchronized (this) {
+      session = forwardingSession;
+      if (session != null && session.isOpen()) {
+        return;
+      }
+      if (session != null) {
+        log.debug("SSH session of tunnel {} is closed", tunnel);
+        forwardingSession = null;
+        forward = null;
+        // The forwarding has been stopped with the session
+        localPortReservation.rebind();
+        metrics.tunnelDown();
+      }
+      long start = System.nanoTime();
+      open();
+      metrics.tunnelReopened(System.nanoTime() - start);
+    }
+  }
+
+  private void onSessionChainClosed() {
+    log.info("Reopening tunnel {} through {} in the background: SSH session chain has been closed", tunnel, route);
+    TunnelScheduler.executor().execute(() -> {
+      try {
+        synchronized (this) {
+          // Unless closed meanwhile
+          if (sessionChain != null) {
+            ensureOpen();
+          }
+        }
+      } catch (JSchException | RuntimeException e) {
+        log.warn("Unable to reopen tunnel {} through {}", tunnel, route, e);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void close() {
+    if (sessionChain == null) {
+      localPortReservation.release();
+      return;
+    }
+    disconnect();
+    localPortReservation.release();
+    metrics.tunnelClosed();
+  }
+
+  private void disconnect() {
+    ClientSession session = forwardingSession;
+    if (session != null && forward != null && session.isOpen()) {
+      try {
+        session.stopLocalPortForwarding(forward);
+      } catch (IOException e) {
+        log.warn("Unable to remove port forwarding {} through {}", tunnel, route, e);
+      }
+    }
+    if (session != null) {
+      metrics.tunnelDown();
+    }
+    forwardingSession = null;
+    forward = null;
+    localPortReservation.rebind();
+    if (sessionChain != null) {
+      sessionChain.removeCloseListener(closeListener);
+      factory.release(sessionChain);
+      sessionChain = null;
+    }
+  }
+
+  @Override
+  public Tunnel getTunnel(String destinationHostname, int destinationPort) {
+    if (tunnel.getDestinationHostname().equals(destinationHostname) && tunnel.getDestinationPort() == destinationPort) {
+      return tunnel;
+    }
+    return null;
+  }
+
+  @Override
+  public void setTunnelConnectionsFromFile(File tunnelsConfig) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+  @Override
+  public void setTunnelConnections(Iterable<String> pathAndSpecList) {
+    throw new UnsupportedOperationException("Tunnel connections cannot be changed");
+  }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport.mina;
+
+import static com.hotels.hcommon.ssh.validation.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.KnownHostsServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.RejectAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.keyprovider.FileKeyPairProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastdev.jsch.tunnel.Tunnel;
+import com.pastdev.jsch.tunnel.TunnelConnectionManager;
+
+import com.hotels.hcommon.ssh.SshException;
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.route.Route;
+import com.hotels.hcommon.ssh.tunnel.LocalPortAllocator;
+import com.hotels.hcommon.ssh.tunnel.LocalPortReservation;
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+/**
+ * Creates the tunnels of the {@link MinaTransport}.
+ * <p>
+ * All the tunnels share one {@link SshClient}, started when the first tunnel is opened and stopped when the last one is
+ * closed. When sessions are shared the
+ * tunnels of the same route share one {@link MinaSessionChain}, otherwise each tunnel has its own.
+ * </p>
+ * <p>
+ * The local port of a tunnel is reserved, from the local port range if there's one, as soon as it's created. MINA
+ * binds the port of a forwarding itself so the reservation is only released right before, and taken again when the
+ * forwarding stops.
+ * </p>
+ * <p>
+ * If a keepalive interval is set every session is sent a keepalive at that interval and closed once it hasn't
+ * answered for the keepalive count max times the interval, which makes its tunnels reopen in the background.
+ * </p>
+ * <p>
+ * The idle timeout, the open backoff, shards, channel limits, handshake limits and channel pools are not supported,
+ * settings asking for any of them are rejected.
+ * </p>
+ */
+class MinaTunnelConnectionManagerFactory implements TunnelConnectionManagerFactory {
+  private static final Logger log = LoggerFactory.getLogger(MinaTunnelConnectionManagerFactory.class);
+
+  static final String LOCALHOST = "localhost";
+  static final int FIRST_AVAILABLE_PORT = 0;
+
+  private final SshSettings sshSettings;
+  private final LocalPortAllocator localPortAllocator;
+  private final Map<Route, MinaSessionChain> sessionChains = new HashMap<>();
+  private HopServerKeyVerifier serverKeyVerifier;
+  private SshClient client;
+  private int activeSessionChains;
+
+  MinaTunnelConnectionManagerFactory(SshSettings sshSettings) {
+    checkSupported(sshSettings);
+    this.sshSettings = sshSettings;
+    if (sshSettings.getFirstLocalPort() > 0) {
+      localPortAllocator = new LocalPortAllocator(sshSettings.getFirstLocalPort(), sshSettings.getLastLocalPort());
+    } else {
+      localPortAllocator = null;
+    }
+  }
+
+  private static void checkSupported(SshSettings sshSettings) {
+    checkArgument(sshSettings.getIdleTimeout() == 0, "The MINA transport doesn't support idle timeouts");
+    checkArgument(sshSettings.getOpenBackoff() == 0, "The MINA transport doesn't support open backoffs");
+    checkArgument(sshSettings.getShards() == 1, "The MINA transport doesn't support shards");
+    checkArgument(sshSettings.getMaxChannelsPerSession() == 0,
+        "The MINA transport doesn't support limiting the channels per session");
+    checkArgument(sshSettings.getMaxConcurrentHandshakes() == 0,
+        "The MINA transport doesn't support limiting concurrent handshakes");
+    checkArgument(sshSettings.getMaxIdleChannels() == 0, "The MINA transport doesn't support channel pools");
+  }
+
+  @Override
+  public SshSettings getSshSettings() {
+    return sshSettings;
+  }
+
+  @Override
+  public TunnelConnectionManager create(String remoteHost, int remotePort) {
+    return create(LOCALHOST, FIRST_AVAILABLE_PORT, remoteHost, remotePort);
+  }
+
+  @Override
+  public TunnelConnectionManager create(String localHost, int localPort, String remoteHost, int remotePort) {
+    checkArgument(localHost != null && !localHost.trim().isEmpty(), "localHost is required");
+    checkArgument(0 <= localPort && localPort <= 65535,
+        "localPort must a valid port number, a value between 0 and 65535");
+    checkArgument(remoteHost != null && !remoteHost.trim().isEmpty(), "remoteHost is required");
+    checkArgument(0 < remotePort && remotePort <= 65535,
+        "remotePort must a valid port number, a value between 1 and 65535");
+
+    Route route = route(localHost, remoteHost);
+    LocalPortReservation localPortReservation = reserveLocalPort(localHost, localPort);
+    Tunnel tunnel = new Tunnel(localHost, localPortReservation.getLocalPort(), remoteHost, remotePort);
+    try {
+      log.debug("Creating SSH tunnel connection manager for {} through {}", tunnel, route);
+      return new MinaTunnelConnectionManager(this, route, tunnel, localPortReservation, sshSettings.getMetrics());
+    } catch (Exception e) {
+      localPortReservation.release();
+      throw new SshException("Unable to create a TunnelConnectionManager: " + route + "|" + tunnel.getSpec(), e);
+    }
+  }
+
+  /**
+   * @return the route of the settings or, like the JSch transport, {@code localHost -> remoteHost} if it's empty.
+   */
+  private Route route(String localHost, String remoteHost) {
+    Route route = sshSettings.getTunnelRoute();
+    return route.isEmpty() ? Route.parse(localHost + "->" + remoteHost) : route;
+  }
+
+  private LocalPortReservation reserveLocalPort(String localHost, int localPort) {
+    try {
+      if (localPort == FIRST_AVAILABLE_PORT && localPortAllocator != null) {
+        return localPortAllocator.reserve(localHost);
+      }
+      return LocalPortReservation.reserve(localHost, localPort);
+    } catch (IOException | RuntimeException e) {
+      throw new SshException("Unable to bind to local port " + localHost + ":" + localPort, e);
+    }
+  }
+
+  synchronized MinaSessionChain acquire(Route route) {
+    SshClient sshClient = client();
+    MinaSessionChain sessionChain = sshSettings.isSessionSharing() ? sessionChains.get(route) : null;
+    if (sessionChain == null) {
+      sessionChain = new MinaSessionChain(sshClient, serverKeyVerifier, route, sshSettings.getSshPort(),
+          sshSettings.getSessionTimeout(), sshSettings.getMetrics());
+      if (sshSettings.isSessionSharing()) {
+        sessionChains.put(route, sessionChain);
+      }
+      activeSessionChains++;
+    }
+    sessionChain.retain();
+    return sessionChain;
+  }
+
+  synchronized void release(MinaSessionChain sessionChain) {
+    if (sessionChain.release() == 0) {
+      sessionChains.remove(sessionChain.getRoute(), sessionChain);
+      sessionChain.close();
+      if (--activeSessionChains == 0) {
+        // Stops the NIO threads, the client is started again by the next tunnel
+        client.stop();
+        client = null;
+        log.debug("SSH client stopped: no tunnels left");
+      }
+    }
+  }
+
+  private SshClient client() {
+    if (client == null) {
+      long start = System.nanoTime();
+      SshClient newClient = SshClient.setUpDefaultClient();
+      List<Path> privateKeys = new ArrayList<>();
+      for (String privateKey : sshSettings.getPrivateKeys()) {
+        privateKeys.add(Paths.get(privateKey.trim()));
+      }
+      newClient.setKeyIdentityProvider(new FileKeyPairProvider(privateKeys));
+      serverKeyVerifier = new HopServerKeyVerifier(serverKeyVerifier());
+      newClient.setServerKeyVerifier(serverKeyVerifier);
+      if (sshSettings.getKeepAliveInterval() > 0) {
+        PropertyResolverUtils.updateProperty(newClient, ClientFactoryManager.HEARTBEAT_INTERVAL,
+            sshSettings.getKeepAliveInterval());
+        // A session whose keepalive isn't answered in time is closed
+        PropertyResolverUtils.updateProperty(newClient, ClientFactoryManager.HEARTBEAT_REPLY_WAIT,
+            (long) sshSettings.getKeepAliveInterval() * sshSettings.getKeepAliveCountMax());
+      }
+      newClient.start();
+      client = newClient;
+      sshSettings.getMetrics().sessionFactoryCreated(System.nanoTime() - start);
+      log.debug("SSH client started with knownHosts={} and identityKeys={}", sshSettings.getKnownHosts(),
+          sshSettings.getPrivateKeys());
+    }
+    return client;
+  }
+
+  private ServerKeyVerifier serverKeyVerifier() {
+    if (!sshSettings.isStrictHostKeyChecking()) {
+      return AcceptAllServerKeyVerifier.INSTANCE;
+    }
+    if (sshSettings.getKnownHosts() == null) {
+      return RejectAllServerKeyVerifier.INSTANCE;
+    }
+    return new KnownHostsServerKeyVerifier(RejectAllServerKeyVerifier.INSTANCE, Paths.get(sshSettings.getKnownHosts()));
+  }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import com.hotels.hcommon.ssh.DispatchTable.Dispatch;
+
+public class DispatchTableTest {
+
+  public static interface Client extends Tunnelable, Closeable {
+    void open();
+
+    void reconnect();
+
+    String getName();
+  }
+
+  public static interface ShutdownOnly {
+    void shutdown();
+  }
+
+  public static class ShutdownOnlyImpl implements ShutdownOnly {
+    @Override
+    public void shutdown() {}
+  }
+
+  public static class ClientImpl implements Client {
+    @Override
+    public void open() {}
+
+    @Override
+    public void reconnect() {}
+
+    @Override
+    public String getName() {
+      return null;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  @Test
+  public void classifyMethods() throws Exception {
+    DispatchTable table = DispatchTable.of(ClientImpl.class, MethodChecker.DEFAULT);
+    assertThat(dispatch(table, Client.class.getMethod("open")), is(Dispatch.TUNNELLED));
+    assertThat(dispatch(table, Client.class.getMethod("reconnect")), is(Dispatch.TUNNELLED));
+    assertThat(dispatch(table, Client.class.getMethod("close")), is(Dispatch.SHUTDOWN));
+    assertThat(dispatch(table, Closeable.class.getMethod("close")), is(Dispatch.SHUTDOWN));
+    assertThat(dispatch(table, Client.class.getMethod("getName")), is(Dispatch.PASS_THROUGH));
+    assertThat(dispatch(table, Object.class.getMethod("toString")), is(Dispatch.PASS_THROUGH));
+  }
+
+  @Test
+  public void classifyUnknownMethods() throws Exception {
+    DispatchTable table = DispatchTable.of(ClientImpl.class, MethodChecker.DEFAULT);
+    Method shutdown = ShutdownOnly.class.getMethod("shutdown");
+    assertThat(dispatch(table, shutdown), is(Dispatch.SHUTDOWN));
+  }
+
+  @Test
+  public void tablesAreCachedPerClassAndMethodChecker() {
+    assertThat(DispatchTable.of(ClientImpl.class, MethodChecker.DEFAULT),
+        is(sameInstance(DispatchTable.of(ClientImpl.class, MethodChecker.DEFAULT))));
+  }
+
+  @Test
+  public void tablesAreOnlyWeaklyCached() throws Exception {
+    WeakReference<DispatchTable> table = new WeakReference<>(
+        DispatchTable.of(ShutdownOnlyImpl.class, MethodChecker.DEFAULT));
+    for (int i = 0; i < 50 && table.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(table.get(), is(nullValue()));
+  }
+
+  private static Dispatch dispatch(DispatchTable table, Method method) {
+    return table.get(method);
+  }
+}
@@ -31,6 +31,11 @@ import org.junit.rules.TemporaryFolder;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.KeyPair;
 
+import com.hotels.hcommon.ssh.metrics.InMemoryTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
 public class SshSettingsTest {
 
   private static final String KNOWN_HOSTS = "knownHosts";
@@ -71,7 +76,26 @@ public class SshSettingsTest {
     assertThat(sshSettings.getSshPort(), is(SshSettings.DEFAULT_SSH_PORT));
     assertThat(sshSettings.getSessionTimeout(), is(SshSettings.DEFAULT_SESSION_TIMEOUT));
     assertThat(sshSettings.isStrictHostKeyChecking(), is(SshSettings.DEFAULT_STRICT_HOST_KEY_CHECKING));
+    assertThat(sshSettings.isSessionSharing(), is(SshSettings.DEFAULT_SESSION_SHARING));
+    assertThat(sshSettings.getIdleTimeout(), is(SshSettings.DEFAULT_IDLE_TIMEOUT));
+    assertThat(sshSettings.getKeepAliveInterval(), is(SshSettings.DEFAULT_KEEP_ALIVE_INTERVAL));
+    assertThat(sshSettings.getKeepAliveCountMax(), is(SshSettings.DEFAULT_KEEP_ALIVE_COUNT_MAX));
+    assertThat(sshSettings.getOpenBackoff(), is(0));
+    assertThat(sshSettings.getMaxOpenBackoff(), is(SshSettings.DEFAULT_MAX_OPEN_BACKOFF));
+    assertThat(sshSettings.getOpenFailureThreshold(), is(SshSettings.DEFAULT_OPEN_FAILURE_THRESHOLD));
+    assertThat(sshSettings.getFirstLocalPort(), is(SshSettings.DEFAULT_FIRST_LOCAL_PORT));
+    assertThat(sshSettings.getLastLocalPort(), is(SshSettings.DEFAULT_LAST_LOCAL_PORT));
+    assertThat(sshSettings.getMetrics(), is((TunnelMetrics) NoOpTunnelMetrics.INSTANCE));
+    assertThat(sshSettings.getTransport(), is(SshSettings.DEFAULT_TRANSPORT));
+    assertThat(sshSettings.getShards(), is(SshSettings.DEFAULT_SHARDS));
+    assertThat(sshSettings.getMaxChannelsPerSession(), is(SshSettings.DEFAULT_MAX_CHANNELS_PER_SESSION));
+    assertThat(sshSettings.getMaxExtraSessions(), is(SshSettings.DEFAULT_MAX_EXTRA_SESSIONS));
+    assertThat(sshSettings.getChannelQueueTimeout(), is(SshSettings.DEFAULT_CHANNEL_QUEUE_TIMEOUT));
+    assertThat(sshSettings.getMaxConcurrentHandshakes(), is(SshSettings.DEFAULT_MAX_CONCURRENT_HANDSHAKES));
+    assertThat(sshSettings.getMinIdleChannels(), is(SshSettings.DEFAULT_MIN_IDLE_CHANNELS));
+    assertThat(sshSettings.getMaxIdleChannels(), is(SshSettings.DEFAULT_MAX_IDLE_CHANNELS));
     assertThat(sshSettings.getRoute(), is("a -> b"));
+    assertThat(sshSettings.getTunnelRoute().getPath(), is("a->b"));
     assertThat(sshSettings.getKnownHosts(), is(knownHosts.getAbsolutePath()));
     assertThat(sshSettings.getPrivateKeys(),
         is(Arrays.asList(identityKey1.getAbsolutePath(), identityKey2.getAbsolutePath())));
@@ -79,6 +103,7 @@ public class SshSettingsTest {
 
   @Test
   public void nonDefaultValues() {
+    TunnelMetrics metrics = new InMemoryTunnelMetrics();
     SshSettings sshSettings = SshSettings
         .builder()
         .withSshPort(23)
@@ -87,10 +112,42 @@ public class SshSettingsTest {
         .withKnownHosts(knownHosts.getAbsolutePath())
         .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
         .withStrictHostKeyChecking(false)
+        .withSessionSharing(true)
+        .withKeepAliveInterval(15000)
+        .withKeepAliveCountMax(5)
+        .withOpenBackoff(500)
+        .withMaxOpenBackoff(10000)
+        .withOpenFailureThreshold(2)
+        .withLocalPortRange(20000, 20999)
+        .withMetrics(metrics)
+        .withTransport("mina")
+        .withShards(4)
+        .withMaxChannelsPerSession(10)
+        .withMaxExtraSessions(2)
+        .withChannelQueueTimeout(3000)
+        .withMaxConcurrentHandshakes(8)
+        .withChannelPool(2, 6)
         .build();
     assertThat(sshSettings.getSshPort(), is(23));
     assertThat(sshSettings.getSessionTimeout(), is(1050));
     assertThat(sshSettings.isStrictHostKeyChecking(), is(false));
+    assertThat(sshSettings.isSessionSharing(), is(true));
+    assertThat(sshSettings.getKeepAliveInterval(), is(15000));
+    assertThat(sshSettings.getKeepAliveCountMax(), is(5));
+    assertThat(sshSettings.getOpenBackoff(), is(500));
+    assertThat(sshSettings.getMaxOpenBackoff(), is(10000));
+    assertThat(sshSettings.getOpenFailureThreshold(), is(2));
+    assertThat(sshSettings.getFirstLocalPort(), is(20000));
+    assertThat(sshSettings.getLastLocalPort(), is(20999));
+    assertThat(sshSettings.getMetrics(), is(metrics));
+    assertThat(sshSettings.getTransport(), is("mina"));
+    assertThat(sshSettings.getShards(), is(4));
+    assertThat(sshSettings.getMaxChannelsPerSession(), is(10));
+    assertThat(sshSettings.getMaxExtraSessions(), is(2));
+    assertThat(sshSettings.getChannelQueueTimeout(), is(3000));
+    assertThat(sshSettings.getMaxConcurrentHandshakes(), is(8));
+    assertThat(sshSettings.getMinIdleChannels(), is(2));
+    assertThat(sshSettings.getMaxIdleChannels(), is(6));
     assertThat(sshSettings.getRoute(), is("h1 -> h2"));
     assertThat(sshSettings.getKnownHosts(), is(knownHosts.getAbsolutePath()));
     assertThat(sshSettings.getPrivateKeys(),
@@ -122,6 +179,126 @@ public class SshSettingsTest {
         .build();
   }
 
+  @Test
+  public void invalidIdleTimeout() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH tunnel idle timeout: -1");
+    SshSettings
+        .builder()
+        .withIdleTimeout(-1)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void idleTimeout() {
+    SshSettings sshSettings = SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withIdleTimeout(60000)
+        .build();
+    assertThat(sshSettings.getIdleTimeout(), is(60000));
+  }
+
+  @Test
+  public void idleTimeoutWithShardsAndChannelPool() {
+    SshSettings sshSettings = SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withIdleTimeout(60000)
+        .withShards(2)
+        .withMaxChannelsPerSession(10)
+        .withChannelPool(0, 2)
+        .build();
+    assertThat(sshSettings.getIdleTimeout(), is(60000));
+    assertThat(sshSettings.getShards(), is(2));
+  }
+
+  @Test
+  public void invalidKeepAliveInterval() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH keepalive interval: -1");
+    SshSettings
+        .builder()
+        .withKeepAliveInterval(-1)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void invalidKeepAliveCountMax() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH keepalive count max: 0");
+    SshSettings
+        .builder()
+        .withKeepAliveCountMax(0)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void maxOpenBackoffLowerThanOpenBackoff() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH max open backoff: 100");
+    SshSettings
+        .builder()
+        .withOpenBackoff(1000)
+        .withMaxOpenBackoff(100)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void invalidOpenFailureThreshold() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH open failure threshold: 0");
+    SshSettings
+        .builder()
+        .withOpenFailureThreshold(0)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void invalidLocalPortRange() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid local port range: 20999-20000");
+    SshSettings
+        .builder()
+        .withLocalPortRange(20999, 20000)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
+  @Test
+  public void nullMetrics() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH tunnel metrics: null");
+    SshSettings
+        .builder()
+        .withMetrics(null)
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .build();
+  }
+
   @Test
   public void nullRoute() {
     SshSettings sshSettings = SshSettings
@@ -131,6 +308,7 @@ public class SshSettingsTest {
         .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
         .build();
     assertThat(sshSettings.getRoute(), is(nullValue()));
+    assertThat(sshSettings.getTunnelRoute(), is(Route.EMPTY));
   }
 
   @Test
@@ -203,4 +381,86 @@ public class SshSettingsTest {
     assertThat(sshSettings.getLocalhost(), is(localhost));
   }
 
+  @Test
+  public void invalidTransport() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH transport: ' '");
+    SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withTransport(" ")
+        .build();
+  }
+
+  @Test
+  public void invalidShards() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid number of SSH tunnel shards: 0");
+    SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withShards(0)
+        .build();
+  }
+
+  @Test
+  public void invalidMaxChannelsPerSession() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid max SSH channels per session: -1");
+    SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withMaxChannelsPerSession(-1)
+        .build();
+  }
+
+  @Test
+  public void invalidChannelPool() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH channel pool size: 3-2");
+    SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withChannelPool(3, 2)
+        .build();
+  }
+
+  @Test
+  public void channelPoolFillingSessions() {
+    expectedException.expect(IllegalArgumentException.class);
+    expectedException.expectMessage("Invalid SSH channel pool size: 4 idle channels");
+    SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withMaxChannelsPerSession(4)
+        .withChannelPool(0, 4)
+        .build();
+  }
+
+  @Test
+  public void equalSettings() {
+    SshSettings.Builder builder = SshSettings
+        .builder()
+        .withRoute("h1 -> h2")
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath());
+    SshSettings sshSettings = builder.build();
+    assertThat(sshSettings.equals(builder.build()), is(true));
+    assertThat(sshSettings.hashCode(), is(builder.build().hashCode()));
+    assertThat(sshSettings.equals(builder.withPrivateKeys(identityKey2.getAbsolutePath()).build()), is(false));
+    assertThat(sshSettings.equals(builder.withPrivateKeys(identityKey1.getAbsolutePath()).withShards(2).build()),
+        is(false));
+    assertThat(sshSettings.equals(builder.withShards(1).withMetrics(new InMemoryTunnelMetrics()).build()), is(false));
+  }
+
 }
@@ -15,15 +15,31 @@
  */
 package com.hotels.hcommon.ssh;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import javax.net.SocketFactory;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -31,9 +47,12 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.jcraft.jsch.JSchException;
 import com.pastdev.jsch.tunnel.Tunnel;
 import com.pastdev.jsch.tunnel.TunnelConnectionManager;
 
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
+import com.hotels.hcommon.ssh.tunnel.ChannelSocketFactory;
 import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -49,6 +68,8 @@ public class TunnelableFactoryTest {
     public void method();
 
     public void methodThrowingException() throws TunneledException;
+
+    public int sum(int a, int b);
   }
 
   private static class Tunnelled implements Connectable {
@@ -59,6 +80,11 @@ public class TunnelableFactoryTest {
     public void methodThrowingException() throws TunneledException {
       throw new TunneledException();
     }
+
+    @Override
+    public int sum(int a, int b) {
+      return a + b;
+    }
   }
 
   private static class TunneledException extends Exception {
@@ -71,6 +97,9 @@ public class TunnelableFactoryTest {
   private @Mock TunnelConnectionManagerFactory tunnelConnectionManagerFactory;
   private @Mock MethodChecker methodChecker;
   private @Mock TunnelableSupplier<Tunnelled> tunnelableSupplier;
+  private @Mock SocketFactoryTunnelableSupplier<Tunnelled> socketFactoryTunnelableSupplier;
+  private @Mock SocksTunnelableSupplier<Tunnelled> socksTunnelableSupplier;
+  private @Mock TunnelMetrics metrics;
 
   private TunnelableFactory<Tunnelled> tunnelableFactory;
   private final Tunnelled tunnelled = new Tunnelled();
@@ -82,6 +111,7 @@ public class TunnelableFactoryTest {
     when(tunnelConnectionManagerFactory.create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT))
         .thenReturn(tunnelConnectionManager);
     when(tunnelConnectionManagerFactory.getSshSettings()).thenReturn(sshSettings);
+    when(sshSettings.getMetrics()).thenReturn(metrics);
     when(tunnelableSupplier.get()).thenReturn(tunnelled);
     tunnelableFactory = new TunnelableFactory<>(tunnelConnectionManagerFactory);
   }
@@ -149,6 +179,131 @@ public class TunnelableFactoryTest {
     verify(tunnelConnectionManager, never()).close();
   }
 
+  @Test
+  public void reuseOpenTunnel() throws Exception {
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManagerFactory, times(1)).create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManager, times(1)).open();
+    verify(tunnelableSupplier, times(2)).get();
+  }
+
+  @Test
+  public void doNotShareTunnelsOfDifferentSettings() throws Exception {
+    TunnelRegistry tunnelRegistry = new TunnelRegistry();
+    TunnelConnectionManagerFactory otherTunnelConnectionManagerFactory = mock(TunnelConnectionManagerFactory.class);
+    SshSettings otherSshSettings = mock(SshSettings.class);
+    TunnelConnectionManager otherTunnelConnectionManager = mock(TunnelConnectionManager.class);
+    when(otherTunnelConnectionManagerFactory.getSshSettings()).thenReturn(otherSshSettings);
+    when(otherSshSettings.getMetrics()).thenReturn(metrics);
+    when(otherTunnelConnectionManager.getTunnel(anyString(), anyInt())).thenReturn(tunnel);
+    when(otherTunnelConnectionManagerFactory.create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT))
+        .thenReturn(otherTunnelConnectionManager);
+
+    new TunnelableFactory<Tunnelled>(tunnelConnectionManagerFactory, tunnelRegistry)
+        .wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    new TunnelableFactory<Tunnelled>(otherTunnelConnectionManagerFactory, tunnelRegistry)
+        .wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManager).open();
+    verify(otherTunnelConnectionManager).open();
+    assertThat(tunnelRegistry.size(), is(2));
+  }
+
+  @Test
+  public void closeTunnelWhenLastProxyIsShutdown() throws Exception {
+    when(methodChecker.isShutdown(any(Method.class))).thenReturn(true);
+    Connectable proxyA = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST,
+        LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    Connectable proxyB = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST,
+        LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    proxyA.method();
+    proxyA.method();
+    verify(tunnelConnectionManager, never()).close();
+    proxyB.method();
+    verify(tunnelConnectionManager).close();
+  }
+
+  @Test
+  public void reopenTunnelAfterShutdown() throws Exception {
+    MethodChecker reconnectingMethodChecker = new MethodChecker() {
+      @Override
+      public boolean isTunnelled(Method method) {
+        return "methodThrowingException".equals(method.getName());
+      }
+
+      @Override
+      public boolean isShutdown(Method method) {
+        return "method".equals(method.getName());
+      }
+    };
+    Connectable proxy = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, reconnectingMethodChecker, LOCAL_HOST,
+        LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    proxy.method();
+    verify(tunnelConnectionManager).close();
+    try {
+      proxy.methodThrowingException();
+      fail("Should have thrown TunneledException");
+    } catch (TunneledException e) {
+      verify(tunnelConnectionManager).ensureOpen();
+    }
+    proxy.method();
+    verify(tunnelConnectionManager, times(2)).close();
+    verify(tunnelConnectionManagerFactory, times(2)).create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+  }
+
+  @Test
+  public void reopenTunnelOnAssignedPortAfterShutdown() throws Exception {
+    when(methodChecker.isTunnelled(Connectable.class.getMethod("methodThrowingException"))).thenReturn(true);
+    when(methodChecker.isShutdown(Connectable.class.getMethod("method"))).thenReturn(true);
+    when(tunnelConnectionManagerFactory.create(LOCAL_HOST, 0, REMOTE_HOST, REMOTE_PORT))
+        .thenReturn(tunnelConnectionManager);
+    when(tunnelConnectionManagerFactory.create(LOCAL_HOST, SSH_PORT, REMOTE_HOST, REMOTE_PORT))
+        .thenReturn(tunnelConnectionManager);
+    Connectable proxy = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, 0,
+        REMOTE_HOST, REMOTE_PORT);
+    proxy.method();
+    try {
+      proxy.methodThrowingException();
+      fail("Should have thrown TunneledException");
+    } catch (TunneledException e) {
+      verify(tunnelConnectionManagerFactory).create(LOCAL_HOST, SSH_PORT, REMOTE_HOST, REMOTE_PORT);
+    }
+  }
+
+  @Test
+  public void methodCheckerIsNotInvokedOnEveryCall() throws Exception {
+    Connectable proxy = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT,
+        REMOTE_HOST, REMOTE_PORT);
+    proxy.method();
+    proxy.method();
+    Method method = Connectable.class.getMethod("method");
+    verify(methodChecker).isTunnelled(method);
+    verify(methodChecker).isShutdown(method);
+  }
+
+  @Test
+  public void doNotShareTunnelsToDifferentEndpoints() throws Exception {
+    TunnelConnectionManager otherTunnelConnectionManager = mock(TunnelConnectionManager.class);
+    when(otherTunnelConnectionManager.getTunnel(anyString(), anyInt())).thenReturn(tunnel);
+    when(tunnelConnectionManagerFactory.create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT + 1))
+        .thenReturn(otherTunnelConnectionManager);
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT + 1);
+    verify(tunnelConnectionManager).open();
+    verify(otherTunnelConnectionManager).open();
+  }
+
+  @Test
+  public void releaseTunnelWhenDelegateCannotBeCreated() throws Exception {
+    when(tunnelableSupplier.get()).thenThrow(new IllegalStateException());
+    try {
+      tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException e) {
+      verify(tunnelConnectionManager).close();
+    }
+  }
+
   @Test(expected = TunneledException.class)
   public void invokeThrowsUnderlyingTargetException() throws Throwable {
     Connectable proxy = (Connectable) tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT,
@@ -156,4 +311,180 @@ public class TunnelableFactoryTest {
     proxy.methodThrowingException();
   }
 
+  @Test
+  public void wrapAsyncOpensTunnelOnExecutor() throws Exception {
+    final List<Runnable> tasks = new ArrayList<>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+    CompletableFuture<Tunnelable> future = tunnelableFactory.wrapAsync(tunnelableSupplier, methodChecker, LOCAL_HOST,
+        LOCAL_PORT, REMOTE_HOST, REMOTE_PORT, executor);
+    assertThat(future.isDone(), is(false));
+    verify(tunnelConnectionManager, never()).open();
+    verify(tunnelableSupplier, never()).get();
+
+    assertThat(tasks.size(), is(1));
+    tasks.get(0).run();
+    verify(tunnelConnectionManager).open();
+    assertThat(future.get().toString(), is(tunnelled.toString()));
+  }
+
+  @Test
+  public void wrapAsyncFailsWhenTunnelCannotBeOpened() throws Exception {
+    JSchException cause = new JSchException("unreachable");
+    doThrow(cause).when(tunnelConnectionManager).open();
+    CompletableFuture<Tunnelable> future = tunnelableFactory.wrapAsync(tunnelableSupplier, methodChecker, LOCAL_HOST,
+        LOCAL_PORT, REMOTE_HOST, REMOTE_PORT, new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            command.run();
+          }
+        });
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), is(instanceOf(SshException.class)));
+      assertThat(e.getCause().getCause(), is(sameInstance((Throwable) cause)));
+      verify(tunnelableSupplier, never()).get();
+    }
+  }
+
+  @Test
+  public void wrapLazilyDoesNotOpenTunnel() throws Exception {
+    tunnelableFactory.wrapLazily(tunnelableSupplier, Tunnelled.class, methodChecker, LOCAL_HOST, LOCAL_PORT,
+        REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManagerFactory).create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManager, never()).open();
+    verify(tunnelableSupplier, never()).get();
+  }
+
+  @Test
+  public void wrapLazilyOpensTunnelOnFirstTunnelledCall() throws Exception {
+    when(methodChecker.isTunnelled(any(Method.class))).thenReturn(true);
+    Connectable proxy = (Connectable) tunnelableFactory.wrapLazily(tunnelableSupplier, Tunnelled.class, methodChecker,
+        LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    proxy.method();
+    assertThat(proxy.sum(1, 2), is(3));
+    verify(tunnelConnectionManager, times(2)).ensureOpen();
+    verify(tunnelableSupplier).get();
+  }
+
+  @Test
+  public void wrapLazilyShutdownBeforeFirstCall() throws Exception {
+    when(methodChecker.isShutdown(any(Method.class))).thenReturn(true);
+    Connectable proxy = (Connectable) tunnelableFactory.wrapLazily(tunnelableSupplier, Connectable.class,
+        methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    assertThat(proxy.sum(1, 2), is(0));
+    verify(tunnelableSupplier, never()).get();
+    verify(tunnelConnectionManager).close();
+  }
+
+  @Test
+  public void wrapJoinsLazyTunnel() throws Exception {
+    tunnelableFactory.wrapLazily(tunnelableSupplier, Tunnelled.class, methodChecker, LOCAL_HOST, LOCAL_PORT,
+        REMOTE_HOST, REMOTE_PORT);
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManagerFactory).create(LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(tunnelConnectionManager).open();
+  }
+
+  @Test
+  public void closeTunnelWhenItCannotBeOpened() throws Exception {
+    doThrow(new JSchException("unreachable")).when(tunnelConnectionManager).open();
+    try {
+      tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      verify(tunnelConnectionManager).close();
+    }
+  }
+
+  @Test
+  public void reportTunnelOpened() throws Exception {
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+    verify(metrics, times(1)).tunnelOpened(anyLong());
+    verify(metrics, never()).tunnelOpenFailed();
+  }
+
+  @Test
+  public void reportTunnelOpenFailed() throws Exception {
+    doThrow(new JSchException("unreachable")).when(tunnelConnectionManager).open();
+    try {
+      tunnelableFactory.wrap(tunnelableSupplier, methodChecker, LOCAL_HOST, LOCAL_PORT, REMOTE_HOST, REMOTE_PORT);
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      verify(metrics).tunnelOpenFailed();
+      verify(metrics, never()).tunnelOpened(anyLong());
+    }
+  }
+
+  @Test
+  public void wrapWithSocketFactory() throws Exception {
+    ChannelSocketFactory socketFactory = mock(ChannelSocketFactory.class);
+    when(tunnelConnectionManagerFactory.createSocketFactory(REMOTE_HOST, REMOTE_PORT)).thenReturn(socketFactory);
+    when(socketFactoryTunnelableSupplier.get(socketFactory)).thenReturn(tunnelled);
+    when(methodChecker.isTunnelled(any(Method.class))).thenReturn(true);
+    Connectable proxy = (Connectable) tunnelableFactory.wrapWithSocketFactory(socketFactoryTunnelableSupplier,
+        methodChecker, REMOTE_HOST, REMOTE_PORT);
+    verify(socketFactory).ensureOpen();
+    verify(metrics).tunnelOpened(anyLong());
+    assertThat(proxy.sum(1, 2), is(3));
+    verify(socketFactory, times(2)).ensureOpen();
+    verify(tunnelConnectionManagerFactory, never()).create(anyString(), anyInt(), anyString(), anyInt());
+  }
+
+  @Test
+  public void wrapWithSocketFactoryShutdown() throws Exception {
+    ChannelSocketFactory socketFactory = mock(ChannelSocketFactory.class);
+    when(tunnelConnectionManagerFactory.createSocketFactory(REMOTE_HOST, REMOTE_PORT)).thenReturn(socketFactory);
+    when(socketFactoryTunnelableSupplier.get(socketFactory)).thenReturn(tunnelled);
+    when(methodChecker.isShutdown(any(Method.class))).thenReturn(true);
+    Connectable proxy = (Connectable) tunnelableFactory.wrapWithSocketFactory(socketFactoryTunnelableSupplier,
+        methodChecker, REMOTE_HOST, REMOTE_PORT);
+    proxy.method();
+    verify(socketFactory).close();
+  }
+
+  @Test
+  public void wrapWithSocketFactoryOpenFailure() throws Exception {
+    ChannelSocketFactory socketFactory = mock(ChannelSocketFactory.class);
+    when(tunnelConnectionManagerFactory.createSocketFactory(REMOTE_HOST, REMOTE_PORT)).thenReturn(socketFactory);
+    doThrow(new JSchException("unreachable")).when(socketFactory).ensureOpen();
+    try {
+      tunnelableFactory.wrapWithSocketFactory(socketFactoryTunnelableSupplier, methodChecker, REMOTE_HOST,
+          REMOTE_PORT);
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      verify(metrics).tunnelOpenFailed();
+      verify(socketFactory).close();
+      verify(socketFactoryTunnelableSupplier, never()).get(any(SocketFactory.class));
+    }
+  }
+
+  @Test
+  public void wrapWithSocksProxy() throws Exception {
+    when(tunnelConnectionManagerFactory.createDynamic(LOCAL_HOST, LOCAL_PORT)).thenReturn(tunnelConnectionManager);
+    java.net.Proxy socksProxy = new java.net.Proxy(java.net.Proxy.Type.SOCKS,
+        new InetSocketAddress(LOCAL_HOST, SSH_PORT));
+    when(socksTunnelableSupplier.get(socksProxy)).thenReturn(tunnelled);
+    when(methodChecker.isShutdown(any(Method.class))).thenReturn(true);
+    Connectable proxyA = (Connectable) tunnelableFactory.wrapWithSocksProxy(socksTunnelableSupplier, methodChecker,
+        LOCAL_HOST, LOCAL_PORT);
+    Connectable proxyB = (Connectable) tunnelableFactory.wrapWithSocksProxy(socksTunnelableSupplier, methodChecker,
+        LOCAL_HOST, LOCAL_PORT);
+    verify(tunnelConnectionManager).open();
+    verify(tunnelConnectionManagerFactory).createDynamic(LOCAL_HOST, LOCAL_PORT);
+    verify(socksTunnelableSupplier, times(2)).get(socksProxy);
+    verify(metrics).tunnelOpened(anyLong());
+    proxyA.method();
+    verify(tunnelConnectionManager, never()).close();
+    proxyB.method();
+    verify(tunnelConnectionManager).close();
+  }
+
 }
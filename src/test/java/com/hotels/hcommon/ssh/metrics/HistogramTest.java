@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+  private final Histogram histogram = new Histogram();
+
+  @Test
+  public void empty() {
+    assertThat(histogram.getCount(), is(0L));
+    assertThat(histogram.getMax(), is(0L));
+    assertThat(histogram.getMean(), is(0.0));
+    assertThat(histogram.getValueAtPercentile(99), is(0L));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    for (long value = 0; value < 16; value++) {
+      assertThat(Histogram.lowestValue(Histogram.index(value)), is(value));
+    }
+  }
+
+  @Test
+  public void bucketsKeepValuesWithinSixPercent() {
+    for (long value = 16; value < 1_000_000; value += 7) {
+      long lowest = Histogram.lowestValue(Histogram.index(value));
+      assertThat(lowest <= value, is(true));
+      assertThat(value - lowest <= value / 16, is(true));
+    }
+    assertThat(Histogram.lowestValue(Histogram.index(Long.MAX_VALUE)) <= Long.MAX_VALUE, is(true));
+  }
+
+  @Test
+  public void percentiles() {
+    for (long value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    assertThat(histogram.getCount(), is(100L));
+    assertThat(histogram.getMax(), is(100L));
+    assertThat(histogram.getMean(), is(50.5));
+    assertThat(histogram.getValueAtPercentile(0), is(1L));
+    assertThat(histogram.getValueAtPercentile(10), is(10L));
+    assertThat(histogram.getValueAtPercentile(50), is(50L));
+    assertThat(histogram.getValueAtPercentile(99), is(96L));
+  }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class InMemoryTunnelMetricsTest {
+
+  private final InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+
+  @Test
+  public void handshakesPerHop() {
+    metrics.handshake("jump", 10);
+    metrics.handshake("jump", 20);
+    metrics.handshake("target", 30);
+    assertThat(metrics.getHandshakes().size(), is(2));
+    assertThat(metrics.getHandshakes().get("jump").getCount(), is(2L));
+    assertThat(metrics.getHandshakes().get("target").getMax(), is(30L));
+  }
+
+  @Test
+  public void gauges() {
+    metrics.sessionConnected();
+    metrics.sessionConnected();
+    metrics.sessionDisconnected();
+    metrics.tunnelUp();
+    metrics.tunnelUp();
+    metrics.tunnelDown();
+    metrics.tunnelDown();
+    assertThat(metrics.getActiveSessions(), is(1L));
+    assertThat(metrics.getActiveTunnels(), is(0L));
+  }
+
+  @Test
+  public void counters() {
+    metrics.sessionFactoryCreated(5);
+    metrics.tunnelOpened(100);
+    metrics.tunnelOpenFailed();
+    metrics.tunnelReopened(200);
+    metrics.tunnelReopened(300);
+    metrics.tunnelClosed();
+    metrics.ensureOpenWaited(400);
+    assertThat(metrics.getSessionFactoryCreation().getCount(), is(1L));
+    assertThat(metrics.getTunnelOpens().getCount(), is(1L));
+    assertThat(metrics.getTunnelOpenFailures(), is(1L));
+    assertThat(metrics.getTunnelReopens().getCount(), is(2L));
+    assertThat(metrics.getTunnelReopens().getMax(), is(300L));
+    assertThat(metrics.getTunnelCloses(), is(1L));
+    assertThat(metrics.getEnsureOpenWaits().getMax(), is(400L));
+  }
+
+}
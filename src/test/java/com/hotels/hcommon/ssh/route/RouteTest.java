@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.route;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RouteTest {
+
+  @Test
+  public void nullRoute() {
+    assertThat(Route.parse(null), is(sameInstance(Route.EMPTY)));
+  }
+
+  @Test
+  public void blankRoute() {
+    Route route = Route.parse("  ");
+    assertThat(route.isEmpty(), is(true));
+    assertThat(route.getPath(), is(""));
+  }
+
+  @Test
+  public void singleHop() {
+    Route route = Route.parse("my-host.com");
+    assertThat(route.getHops().size(), is(1));
+    assertThat(route.getHops().get(0).getUser(), is(nullValue()));
+    assertThat(route.getHops().get(0).getHostname(), is("my-host.com"));
+    assertThat(route.getPath(), is("my-host.com"));
+  }
+
+  @Test
+  public void multipleHops() {
+    Route route = Route.parse(" ec2-user@bastion-host ->hadoop @ emr-master-> 10.0.0.1 ");
+    assertThat(route.getHops(), is(Arrays.asList(new Hop("ec2-user", "bastion-host"), new Hop("hadoop", "emr-master"),
+        new Hop(null, "10.0.0.1"))));
+    assertThat(route.getPath(), is("ec2-user@bastion-host->hadoop@emr-master->10.0.0.1"));
+  }
+
+  @Test
+  public void equalRoutesIgnoreWhitespace() {
+    assertThat(Route.parse("a -> user@b"), is(Route.parse("a->user@b")));
+  }
+
+  @Test
+  public void userSymbols() {
+    assertThat(Route.isValid("first.last+tag@host"), is(true));
+    assertThat(Route.isValid("first..last@host"), is(false));
+    assertThat(Route.isValid(".user@host"), is(false));
+    assertThat(Route.isValid("user.@host"), is(false));
+    assertThat(Route.isValid("us(er@host"), is(false));
+  }
+
+  @Test
+  public void invalidHostnames() {
+    assertThat(Route.isValid("host."), is(false));
+    assertThat(Route.isValid("-host"), is(false));
+    assertThat(Route.isValid("host-"), is(false));
+    assertThat(Route.isValid("my_host"), is(false));
+    assertThat(Route.isValid("my host"), is(false));
+    assertThat(Route.isValid("a..b"), is(false));
+  }
+
+  @Test
+  public void invalidSeparators() {
+    assertThat(Route.isValid("a ->"), is(false));
+    assertThat(Route.isValid("-> a"), is(false));
+    assertThat(Route.isValid("a -> -> b"), is(false));
+    assertThat(Route.isValid("a@b@c"), is(false));
+    assertThat(Route.isValid("user@"), is(false));
+  }
+
+  @Test
+  public void tooLong() {
+    char[] user = new char[65];
+    Arrays.fill(user, 'u');
+    assertThat(Route.isValid(new String(user, 0, 64) + "@host"), is(true));
+    assertThat(Route.isValid(new String(user) + "@host"), is(false));
+    char[] hostname = new char[256];
+    Arrays.fill(hostname, 'h');
+    assertThat(Route.isValid(new String(hostname, 0, 255)), is(true));
+    assertThat(Route.isValid(new String(hostname)), is(false));
+  }
+
+  @Test
+  public void internationalizedHostname() {
+    Route route = Route.parse("user@bücher.example");
+    assertThat(route.getHops().get(0).getHostname(), is("bücher.example"));
+  }
+
+}
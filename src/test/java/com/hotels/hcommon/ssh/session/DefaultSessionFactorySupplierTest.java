@@ -16,9 +16,20 @@
 package com.hotels.hcommon.ssh.session;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -29,7 +40,10 @@ import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.KeyPair;
 import com.pastdev.jsch.SessionFactory;
 
+import com.hotels.hcommon.ssh.SshException;
 import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.metrics.InMemoryTunnelMetrics;
+import com.hotels.hcommon.ssh.metrics.TunnelMetrics;
 
 public class DefaultSessionFactorySupplierTest {
 
@@ -44,6 +58,7 @@ public class DefaultSessionFactorySupplierTest {
   private File knownHosts;
   private File identityKey1;
   private File identityKey2;
+  private final InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
 
   @Before
   public void init() throws Exception {
@@ -90,4 +105,70 @@ public class DefaultSessionFactorySupplierTest {
     assertThat(sessionFactoryA, is(sessionFactoryB));
   }
 
+  @Test
+  public void invalidate() {
+    DefaultSessionFactorySupplier sessionFactorySupplier = new DefaultSessionFactorySupplier(sshSettings(metrics));
+    SessionFactory sessionFactoryA = sessionFactorySupplier.get();
+    sessionFactorySupplier.invalidate();
+    SessionFactory sessionFactoryB = sessionFactorySupplier.get();
+    assertThat(sessionFactoryA, is(not(sameInstance(sessionFactoryB))));
+    assertThat(sessionFactorySupplier.get(), is(sameInstance(sessionFactoryB)));
+    assertThat(metrics.getSessionFactoryCreation().getCount(), is(2L));
+  }
+
+  @Test
+  public void concurrentCallsCreateOneFactory() throws Exception {
+    final DefaultSessionFactorySupplier sessionFactorySupplier = new DefaultSessionFactorySupplier(
+        sshSettings(metrics));
+    int threads = 16;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<SessionFactory>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<SessionFactory>() {
+          @Override
+          public SessionFactory call() throws Exception {
+            start.await();
+            return sessionFactorySupplier.get();
+          }
+        }));
+      }
+      start.countDown();
+      SessionFactory sessionFactory = futures.get(0).get();
+      for (Future<SessionFactory> future : futures) {
+        assertThat(future.get(), is(sameInstance(sessionFactory)));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(metrics.getSessionFactoryCreation().getCount(), is(1L));
+  }
+
+  @Test
+  public void retryAfterFailure() throws Exception {
+    identityKey1.delete();
+    DefaultSessionFactorySupplier sessionFactorySupplier = new DefaultSessionFactorySupplier(sshSettings(metrics));
+    try {
+      sessionFactorySupplier.get();
+      fail("Expected SshException");
+    } catch (SshException e) {
+      // expected
+    }
+    KeyPair.genKeyPair(new JSch(), KeyPair.RSA).writePrivateKey(identityKey1.getAbsolutePath());
+    assertThat(sessionFactorySupplier.get(), is(notNullValue()));
+    assertThat(metrics.getSessionFactoryCreation().getCount(), is(1L));
+  }
+
+  private SshSettings sshSettings(TunnelMetrics metrics) {
+    return SshSettings
+        .builder()
+        .withSshPort(SSH_PORT)
+        .withSessionTimeout(SSH_TIMEOUT)
+        .withKnownHosts(knownHosts.getAbsolutePath())
+        .withPrivateKeys(identityKey1.getAbsolutePath() + "," + identityKey2.getAbsolutePath())
+        .withMetrics(metrics)
+        .build();
+  }
+
 }
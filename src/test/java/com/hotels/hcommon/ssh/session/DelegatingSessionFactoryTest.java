@@ -19,7 +19,9 @@ import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,6 +31,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.jcraft.jsch.HostKeyRepository;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Proxy;
 import com.jcraft.jsch.Session;
@@ -91,6 +94,27 @@ public class DelegatingSessionFactoryTest {
     assertThat(factory.newSession(), is(sameInstance(session)));
     verify(delegate).newSession();
     verify(session).setTimeout(SSH_TIMEOUT);
+    verify(session, never()).setHostKeyRepository(any(HostKeyRepository.class));
+  }
+
+  @Test
+  public void newSessionWithHostKeyRepository() throws JSchException {
+    HostKeyRepository hostKeyRepository = mock(HostKeyRepository.class);
+    factory = new DelegatingSessionFactory(delegate, SSH_TIMEOUT, hostKeyRepository);
+    Session session = mock(Session.class);
+    when(delegate.newSession()).thenReturn(session);
+    assertThat(factory.newSession(), is(sameInstance(session)));
+    verify(session).setHostKeyRepository(hostKeyRepository);
+  }
+
+  @Test
+  public void hostKeyRepositoryPassedToNewSessionFactories() {
+    HostKeyRepository hostKeyRepository = mock(HostKeyRepository.class);
+    factory = new DelegatingSessionFactory(delegate, SSH_TIMEOUT, hostKeyRepository);
+    SessionFactoryBuilder builder = mock(SessionFactoryBuilder.class);
+    when(delegate.newSessionFactoryBuilder()).thenReturn(builder);
+    SessionFactory newFactory = factory.newSessionFactoryBuilder().build();
+    assertThat(((DelegatingSessionFactory) newFactory).hostKeyRepository, is(sameInstance(hostKeyRepository)));
   }
 
   @Test
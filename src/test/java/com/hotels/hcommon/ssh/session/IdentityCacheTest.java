@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+public class IdentityCacheTest {
+
+  private static final byte[] DATA = "data".getBytes();
+  private static final byte[] PASSPHRASE = "passphrase".getBytes();
+
+  public @Rule TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final JSch jSch = new JSch();
+  private final IdentityCache identityCache = new IdentityCache();
+  private File identityKey;
+
+  @Before
+  public void init() throws Exception {
+    identityKey = tmpFolder.newFile("K1");
+    writeKey(identityKey, KeyPair.RSA, null);
+  }
+
+  private KeyPair writeKey(File file, int type, byte[] passphrase) throws Exception {
+    KeyPair keyPair = KeyPair.genKeyPair(jSch, type);
+    if (passphrase == null) {
+      keyPair.writePrivateKey(file.getAbsolutePath());
+    } else {
+      keyPair.writePrivateKey(file.getAbsolutePath(), passphrase);
+    }
+    return keyPair;
+  }
+
+  @Test
+  public void typical() throws Exception {
+    Identity identity = identityCache.get(identityKey.getAbsolutePath());
+    assertThat(identity.getName(), is(identityKey.getAbsolutePath()));
+    assertThat(identity.getAlgName(), is("ssh-rsa"));
+    assertThat(identity.isEncrypted(), is(false));
+    assertThat(identity.getSignature(DATA) != null, is(true));
+  }
+
+  @Test
+  public void parsedOnce() throws Exception {
+    Identity identity = identityCache.get(identityKey.getAbsolutePath());
+    assertThat(identityCache.get(identityKey.getAbsolutePath()), is(sameInstance(identity)));
+    assertThat(identityCache.get(identityKey.getParent() + "/./" + identityKey.getName()), is(sameInstance(identity)));
+    assertThat(identityCache.size(), is(1));
+  }
+
+  @Test
+  public void reloadedWhenChanged() throws Exception {
+    Identity identity = identityCache.get(identityKey.getAbsolutePath());
+    KeyPair keyPair = writeKey(identityKey, KeyPair.DSA, null);
+    identityKey.setLastModified(identityKey.lastModified() + 10000L);
+    Identity reloaded = identityCache.get(identityKey.getAbsolutePath());
+    assertThat(reloaded, is(not(sameInstance(identity))));
+    assertThat(reloaded.getAlgName(), is("ssh-dss"));
+    assertThat(reloaded.getPublicKeyBlob(), is(keyPair.getPublicKeyBlob()));
+  }
+
+  @Test
+  public void droppedWhenDeleted() throws Exception {
+    identityCache.get(identityKey.getAbsolutePath());
+    identityKey.delete();
+    try {
+      identityCache.get(identityKey.getAbsolutePath());
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(identityCache.size(), is(0));
+    }
+  }
+
+  @Test
+  public void droppedWhenInvalid() throws Exception {
+    identityCache.get(identityKey.getAbsolutePath());
+    Files.write(identityKey.toPath(), "invalid".getBytes());
+    identityKey.setLastModified(identityKey.lastModified() + 10000L);
+    try {
+      identityCache.get(identityKey.getAbsolutePath());
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(identityCache.size(), is(0));
+    }
+  }
+
+  @Test
+  public void encrypted() throws Exception {
+    File encryptedKey = tmpFolder.newFile("K2");
+    writeKey(encryptedKey, KeyPair.RSA, PASSPHRASE);
+    Identity identity = identityCache.get(encryptedKey.getAbsolutePath());
+    assertThat(identity.isEncrypted(), is(true));
+    assertThat(identity.getAlgName(), is("ssh-rsa"));
+    assertThat(identity.setPassphrase("wrong".getBytes()), is(false));
+    assertThat(identity.setPassphrase(PASSPHRASE), is(true));
+    assertThat(identityCache.get(encryptedKey.getAbsolutePath()).isEncrypted(), is(false));
+  }
+
+  @Test
+  public void multipleKeys() throws Exception {
+    File identityKey2 = tmpFolder.newFile("K2");
+    writeKey(identityKey2, KeyPair.RSA, null);
+    List<Identity> identities = identityCache
+        .get(Arrays.asList(identityKey.getAbsolutePath(), identityKey2.getAbsolutePath()));
+    assertThat(identities.size(), is(2));
+    assertThat(identities.get(1).getName(), is(identityKey2.getAbsolutePath()));
+  }
+
+  @Test(expected = JSchException.class)
+  public void missingKey() throws Exception {
+    identityCache.get(new File(tmpFolder.getRoot(), "missing").getAbsolutePath());
+  }
+
+  @Test(expected = JSchException.class)
+  public void invalidKey() throws Exception {
+    identityCache.get(tmpFolder.newFile("invalid").getAbsolutePath());
+  }
+
+}
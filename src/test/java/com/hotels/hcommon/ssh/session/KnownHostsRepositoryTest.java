@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.session;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import static com.jcraft.jsch.HostKeyRepository.CHANGED;
+import static com.jcraft.jsch.HostKeyRepository.NOT_INCLUDED;
+import static com.jcraft.jsch.HostKeyRepository.OK;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+
+public class KnownHostsRepositoryTest {
+
+  public @Rule TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final JSch jSch = new JSch();
+  private File knownHosts;
+  private byte[] key1;
+  private byte[] key2;
+  private KnownHostsRepository repository;
+
+  @Before
+  public void init() throws Exception {
+    knownHosts = tmpFolder.newFile("known_hosts");
+    key1 = KeyPair.genKeyPair(jSch, KeyPair.RSA).getPublicKeyBlob();
+    key2 = KeyPair.genKeyPair(jSch, KeyPair.RSA).getPublicKeyBlob();
+    repository = new KnownHostsRepository(knownHosts.toPath());
+  }
+
+  private static String line(String hosts, byte[] key) {
+    return hosts + " ssh-rsa " + Base64.getEncoder().encodeToString(key) + " comment\n";
+  }
+
+  private static String hashed(String host) throws Exception {
+    byte[] salt = new byte[20];
+    salt[0] = (byte) host.length();
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(salt, "HmacSHA1"));
+    byte[] hash = mac.doFinal(host.getBytes(StandardCharsets.UTF_8));
+    return "|1|" + Base64.getEncoder().encodeToString(salt) + "|" + Base64.getEncoder().encodeToString(hash);
+  }
+
+  private void write(String content) throws IOException {
+    Files.write(knownHosts.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    touch();
+  }
+
+  private void append(String content) throws IOException {
+    Files.write(knownHosts.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    touch();
+  }
+
+  private void touch() {
+    // Some file systems only have a one second resolution
+    knownHosts.setLastModified(knownHosts.lastModified() + 2000L);
+  }
+
+  @Test
+  public void plainHosts() throws Exception {
+    write("# comment\n\n" + line("host1,host2", key1) + line("[host3]:2222", key2));
+    assertThat(repository.check("host1", key1), is(OK));
+    assertThat(repository.check("host2", key1), is(OK));
+    assertThat(repository.check("host1", key2), is(CHANGED));
+    assertThat(repository.check("[host3]:2222", key2), is(OK));
+    assertThat(repository.check("host3", key2), is(NOT_INCLUDED));
+    assertThat(repository.check("host4", key1), is(NOT_INCLUDED));
+  }
+
+  @Test
+  public void portIsNotMatchedByHost() throws Exception {
+    write(line("host1", key1));
+    assertThat(repository.check("[host1]:2222", key1), is(NOT_INCLUDED));
+    assertThat(repository.check("[host1]:2222", key2), is(NOT_INCLUDED));
+  }
+
+  @Test
+  public void hashedHosts() throws Exception {
+    write(line(hashed("host1"), key1) + line(hashed("host2"), key2));
+    assertThat(repository.check("host1", key1), is(OK));
+    assertThat(repository.check("host1", key1), is(OK));
+    assertThat(repository.check("host2", key2), is(OK));
+    assertThat(repository.check("host2", key1), is(CHANGED));
+    assertThat(repository.check("host3", key1), is(NOT_INCLUDED));
+  }
+
+  @Test
+  public void markedLinesIgnored() throws Exception {
+    write("@revoked " + line("host1", key1) + "@cert-authority " + line("host2", key1));
+    assertThat(repository.check("host1", key1), is(NOT_INCLUDED));
+    assertThat(repository.check("host2", key1), is(NOT_INCLUDED));
+  }
+
+  @Test
+  public void invalidLinesIgnored() throws Exception {
+    write("host1\nhost1 ssh-rsa\nhost1 ssh-rsa %%%\n" + line("host2", key1));
+    assertThat(repository.check("host1", key1), is(NOT_INCLUDED));
+    assertThat(repository.check("host2", key1), is(OK));
+  }
+
+  @Test
+  public void appendedHosts() throws Exception {
+    write(line("host1", key1));
+    assertThat(repository.check("host2", key2), is(NOT_INCLUDED));
+    assertThat(repository.check("host3", key2), is(NOT_INCLUDED));
+    append(line("host2", key2) + line(hashed("host3"), key2));
+    assertThat(repository.check("host1", key1), is(OK));
+    assertThat(repository.check("host2", key2), is(OK));
+    assertThat(repository.check("host3", key2), is(OK));
+  }
+
+  @Test
+  public void rewrittenFile() throws Exception {
+    write(line("host1", key1) + line("host2", key1));
+    assertThat(repository.check("host1", key1), is(OK));
+    write(line("host1", key2) + line("host2", key1) + line("host3", key1));
+    assertThat(repository.check("host1", key1), is(CHANGED));
+    assertThat(repository.check("host1", key2), is(OK));
+    assertThat(repository.check("host3", key1), is(OK));
+  }
+
+  @Test
+  public void deletedFile() throws Exception {
+    write(line("host1", key1));
+    assertThat(repository.check("host1", key1), is(OK));
+    knownHosts.delete();
+    assertThat(repository.check("host1", key1), is(NOT_INCLUDED));
+    write(line("host1", key1));
+    assertThat(repository.check("host1", key1), is(OK));
+  }
+
+  @Test
+  public void addedHostsKeptInMemory() throws Exception {
+    write(line("host1", key1));
+    repository.add(new HostKey("host2", key2), null);
+    assertThat(repository.check("host2", key2), is(OK));
+    write(line("host1", key1) + line("host3", key1));
+    assertThat(repository.check("host2", key2), is(OK));
+    assertThat(new String(Files.readAllBytes(knownHosts.toPath()), StandardCharsets.UTF_8).contains("host2"),
+        is(false));
+  }
+
+  @Test
+  public void remove() throws Exception {
+    write(line("host1,host2", key1) + line(hashed("host3"), key1));
+    repository.remove("host1", "ssh-rsa");
+    repository.remove("host3", "ssh-rsa", key1);
+    assertThat(repository.check("host1", key1), is(NOT_INCLUDED));
+    assertThat(repository.check("host2", key1), is(NOT_INCLUDED));
+    assertThat(repository.check("host3", key1), is(NOT_INCLUDED));
+  }
+
+  @Test
+  public void getHostKey() throws Exception {
+    write(line("host1,host2", key1) + line(hashed("host3"), key2));
+    assertThat(repository.getHostKey().length, is(2));
+    HostKey[] hostKeys = repository.getHostKey("host3", "ssh-rsa");
+    assertThat(hostKeys.length, is(1));
+    assertThat(hostKeys[0].getKey(), is(Base64.getEncoder().encodeToString(key2)));
+    assertThat(repository.getHostKey("host3", "ssh-dss").length, is(0));
+  }
+
+  @Test
+  public void sharedPerFile() throws Exception {
+    KnownHostsRepository repository = KnownHostsRepository.forFile(knownHosts.getAbsolutePath());
+    assertThat(KnownHostsRepository.forFile(knownHosts.getParent() + "/./known_hosts") == repository, is(true));
+  }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.transport;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hotels.hcommon.ssh.SshException;
+import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.tunnel.TunnelConnectionManagerFactory;
+
+public class SshTransportsTest {
+
+  public static class TestTransport implements SshTransport {
+    @Override
+    public String getName() {
+      return "test";
+    }
+
+    @Override
+    public TunnelConnectionManagerFactory newTunnelConnectionManagerFactory(SshSettings sshSettings) {
+      return null;
+    }
+  }
+
+  public static class DuplicateTransport implements SshTransport {
+    @Override
+    public String getName() {
+      return JschTransport.NAME;
+    }
+
+    @Override
+    public TunnelConnectionManagerFactory newTunnelConnectionManagerFactory(SshSettings sshSettings) {
+      return null;
+    }
+  }
+
+  public @Rule TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private ClassLoader classLoaderWithServices(Class<?>... transports) throws Exception {
+    File services = new File(temporaryFolder.getRoot(), "META-INF/services/" + SshTransport.class.getName());
+    services.getParentFile().mkdirs();
+    StringBuilder content = new StringBuilder();
+    for (Class<?> transport : transports) {
+      content.append(transport.getName()).append('\n');
+    }
+    Files.write(services.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    return new URLClassLoader(new URL[] { temporaryFolder.getRoot().toURI().toURL() }, getClass().getClassLoader());
+  }
+
+  @Test
+  public void jschIsTheDefault() {
+    assertThat(SshTransports.get(SshSettings.DEFAULT_TRANSPORT), is(instanceOf(JschTransport.class)));
+  }
+
+  @Test(expected = SshException.class)
+  public void unknownTransport() {
+    SshTransports.get("unknown");
+  }
+
+  @Test
+  public void discoverJsch() {
+    // Other transports, e.g. MINA when it's built in by its profile, are discovered as well
+    Map<String, SshTransport> transports = SshTransports.discover(getClass().getClassLoader());
+    assertThat(transports.keySet(), hasItem(JschTransport.NAME));
+    assertThat(transports.get(JschTransport.NAME), is(instanceOf(JschTransport.class)));
+  }
+
+  @Test
+  public void discoverServices() throws Exception {
+    Map<String, SshTransport> transports = SshTransports
+        .discover(classLoaderWithServices(TestTransport.class, DuplicateTransport.class));
+    assertThat(transports.keySet(), hasItems(JschTransport.NAME, "test"));
+    assertThat(transports.get("test"), is(instanceOf(TestTransport.class)));
+    assertThat(transports.get(JschTransport.NAME), is(instanceOf(JschTransport.class)));
+  }
+
+}
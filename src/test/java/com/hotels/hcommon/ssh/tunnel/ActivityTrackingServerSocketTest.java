@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class ActivityTrackingServerSocketTest {
+
+  @Test
+  public void trackAcceptReadAndWrite() throws Exception {
+    TunnelActivity activity = mock(TunnelActivity.class);
+    try (ActivityTrackingServerSocket serverSocket = new ActivityTrackingServerSocket(0, 0,
+        InetAddress.getByName("localhost"), activity);
+        Socket client = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Socket accepted = serverSocket.accept()) {
+      verify(activity).touch();
+
+      reset(activity);
+      accepted.getOutputStream().write(new byte[] { 1, 2 });
+      verify(activity).touch();
+
+      reset(activity);
+      client.getOutputStream().write(3);
+      accepted.getInputStream().read();
+      verify(activity, atLeast(1)).touch();
+    }
+  }
+
+}
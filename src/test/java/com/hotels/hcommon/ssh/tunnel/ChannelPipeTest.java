@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ChannelPipeTest {
+
+  private final ChannelPipe pipe = new ChannelPipe();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void typical() throws Exception {
+    OutputStream sink = pipe.getSink();
+    sink.write(new byte[] { 1, 2, 3 });
+    sink.write(4);
+    assertThat(pipe.available(), is(4));
+    byte[] buffer = new byte[3];
+    assertThat(pipe.read(buffer, 0, 3, 0), is(3));
+    assertThat(buffer, is(new byte[] { 1, 2, 3 }));
+    assertThat(pipe.read(buffer, 0, 3, 0), is(1));
+    assertThat(buffer[0], is((byte) 4));
+    assertThat(pipe.available(), is(0));
+  }
+
+  @Test
+  public void growsBeyondInitialCapacity() throws Exception {
+    byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    pipe.getSink().write(data, 0, 10);
+    pipe.read(new byte[5], 0, 5, 0);
+    pipe.getSink().write(data, 10, data.length - 10);
+    byte[] read = new byte[data.length - 5];
+    assertThat(pipe.read(read, 0, read.length, 0), is(read.length));
+    for (int i = 0; i < read.length; i++) {
+      assertThat(read[i], is(data[i + 5]));
+    }
+  }
+
+  @Test
+  public void writeWaitsForRoom() throws Exception {
+    ChannelPipe pipe = new ChannelPipe(4);
+    Future<?> write = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        pipe.getSink().write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        return null;
+      }
+    });
+    Thread.sleep(50);
+    assertThat(write.isDone(), is(false));
+    assertThat(pipe.available(), is(4));
+
+    byte[] buffer = new byte[6];
+    assertThat(pipe.read(buffer, 0, 3, 0), is(3));
+    write.get(5, TimeUnit.SECONDS);
+    assertThat(pipe.read(buffer, 3, 3, 0), is(3));
+    assertThat(buffer, is(new byte[] { 1, 2, 3, 4, 5, 6 }));
+  }
+
+  @Test
+  public void closeReleasesWaitingWrite() throws Exception {
+    ChannelPipe pipe = new ChannelPipe(4);
+    Future<?> write = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        pipe.getSink().write(new byte[8]);
+        return null;
+      }
+    });
+    Thread.sleep(50);
+    assertThat(write.isDone(), is(false));
+    pipe.close();
+    write.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void writeTimesOut() throws Exception {
+    ChannelPipe pipe = new ChannelPipe(4);
+    pipe.setWriteTimeout(100);
+    try {
+      pipe.getSink().write(new byte[8]);
+      fail("Should have thrown SocketTimeoutException");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    try {
+      pipe.read(new byte[4], 0, 4, 0);
+      fail("Should have thrown SocketException");
+    } catch (SocketException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void readWaitsForData() throws Exception {
+    Future<Integer> read = executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        return pipe.read(new byte[10], 0, 10, 0);
+      }
+    });
+    Thread.sleep(50);
+    assertThat(read.isDone(), is(false));
+    pipe.getSink().write(new byte[] { 1, 2 });
+    assertThat(read.get(5, TimeUnit.SECONDS), is(2));
+  }
+
+  @Test
+  public void endOfStream() throws Exception {
+    pipe.getSink().write(1);
+    pipe.getSink().close();
+    assertThat(pipe.read(new byte[10], 0, 10, 0), is(1));
+    assertThat(pipe.read(new byte[10], 0, 10, 0), is(-1));
+  }
+
+  @Test(expected = SocketTimeoutException.class)
+  public void readTimesOut() throws Exception {
+    pipe.read(new byte[10], 0, 10, 10);
+  }
+
+  @Test(expected = SocketException.class)
+  public void readAfterClose() throws Exception {
+    pipe.getSink().write(1);
+    pipe.close();
+    pipe.getSink().write(2);
+    pipe.read(new byte[10], 0, 10, 0);
+  }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ChannelPoolTest {
+
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicInteger destroyed = new AtomicInteger();
+  private final AtomicBoolean available = new AtomicBoolean(true);
+  private final List<AtomicBoolean> channels = new CopyOnWriteArrayList<>();
+
+  private final ChannelPool.Factory<AtomicBoolean> factory = new ChannelPool.Factory<AtomicBoolean>() {
+    @Override
+    public AtomicBoolean create() {
+      if (!available.get()) {
+        return null;
+      }
+      created.incrementAndGet();
+      AtomicBoolean channel = new AtomicBoolean(true);
+      channels.add(channel);
+      return channel;
+    }
+
+    @Override
+    public boolean isUsable(AtomicBoolean channel) {
+      return channel.get();
+    }
+
+    @Override
+    public void destroy(AtomicBoolean channel) {
+      destroyed.incrementAndGet();
+    }
+  };
+
+  private ChannelPool<AtomicBoolean> pool;
+
+  @After
+  public void close() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  private void awaitSize(int size) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (pool.size() != size && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(pool.size(), is(size));
+  }
+
+  @Test
+  public void fillUpToMinIdleOnStart() throws Exception {
+    pool = new ChannelPool<>("test", 2, 5, factory);
+    assertThat(pool.size(), is(0));
+    pool.start();
+    awaitSize(2);
+    assertThat(created.get(), is(2));
+  }
+
+  @Test
+  public void refillAfterPoll() throws Exception {
+    pool = new ChannelPool<>("test", 2, 5, factory);
+    pool.start();
+    awaitSize(2);
+    assertThat(pool.poll(), is(notNullValue()));
+    awaitSize(2);
+    assertThat(created.get(), is(3));
+  }
+
+  @Test
+  public void growWhenEmpty() throws Exception {
+    pool = new ChannelPool<>("test", 0, 2, factory);
+    assertThat(pool.getTarget(), is(0));
+    assertThat(pool.poll(), is(nullValue()));
+    assertThat(pool.getTarget(), is(1));
+    assertThat(pool.poll(), is(nullValue()));
+    assertThat(pool.poll(), is(nullValue()));
+    assertThat(pool.getTarget(), is(2));
+    pool.start();
+    awaitSize(2);
+  }
+
+  @Test
+  public void shrinkToDemand() throws Exception {
+    pool = new ChannelPool<>("test", 1, 4, factory);
+    for (int i = 0; i < 4; i++) {
+      pool.poll();
+    }
+    pool.start();
+    awaitSize(4);
+    pool.maintain();
+    assertThat(pool.getTarget(), is(4));
+    pool.maintain();
+    assertThat(pool.getTarget(), is(1));
+    assertThat(pool.size(), is(1));
+    assertThat(destroyed.get(), is(3));
+  }
+
+  @Test
+  public void discardChannelsClosedByTheRemoteEnd() throws Exception {
+    pool = new ChannelPool<>("test", 2, 2, factory);
+    pool.start();
+    awaitSize(2);
+    channels.get(0).set(false);
+    assertThat(pool.poll(), is(channels.get(1)));
+    assertThat(destroyed.get(), is(1));
+
+    awaitSize(2);
+    for (AtomicBoolean channel : channels) {
+      channel.set(false);
+    }
+    pool.maintain();
+    assertThat(destroyed.get(), is(3));
+    awaitSize(2);
+  }
+
+  @Test
+  public void stopFillingWhenNoChannelCanBeOpened() throws Exception {
+    available.set(false);
+    pool = new ChannelPool<>("test", 1, 1, factory);
+    pool.start();
+    assertThat(pool.poll(), is(nullValue()));
+    assertThat(pool.size(), is(0));
+    available.set(true);
+    assertThat(pool.poll(), is(nullValue()));
+    awaitSize(1);
+  }
+
+  @Test
+  public void closeDestroysIdleChannels() throws Exception {
+    pool = new ChannelPool<>("test", 3, 3, factory);
+    pool.start();
+    awaitSize(3);
+    pool.close();
+    assertThat(pool.size(), is(0));
+    assertThat(destroyed.get(), is(3));
+  }
+
+}
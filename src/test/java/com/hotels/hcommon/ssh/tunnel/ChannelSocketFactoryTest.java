@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChannelSocketFactoryTest {
+
+  private static final Route ROUTE = Route.parse("user@hop1");
+  private static final String REMOTE_HOST = "remote";
+  private static final int REMOTE_PORT = 9083;
+  private static final int CONNECT_TIMEOUT = 1000;
+
+  private @Mock SessionFactory sessionFactory;
+  private @Mock SessionFactoryBuilder sessionFactoryBuilder;
+  private @Mock SessionFactory hopSessionFactory;
+  private @Mock Session session;
+  private @Mock ChannelDirectTCPIP channel;
+
+  private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+  private final AtomicReference<OutputStream> received = new AtomicReference<>();
+  private ChannelSocketFactory socketFactory;
+
+  @Before
+  public void init() throws Exception {
+    when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sessionFactoryBuilder.build()).thenReturn(hopSessionFactory);
+    when(hopSessionFactory.newSession()).thenReturn(session);
+    when(session.isConnected()).thenReturn(true);
+    when(session.openChannel("direct-tcpip")).thenReturn(channel);
+    when(channel.getOutputStream()).thenReturn(sent);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        received.set((OutputStream) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(channel).setOutputStream(any(OutputStream.class));
+    socketFactory = new ChannelSocketFactory(sessionFactory, new SessionChainRegistry(false), ROUTE, REMOTE_HOST,
+        REMOTE_PORT, CONNECT_TIMEOUT);
+  }
+
+  @Test
+  public void typical() throws Exception {
+    socketFactory.ensureOpen();
+    Socket socket = socketFactory.createSocket("ignored", 1);
+    verify(channel).setHost(REMOTE_HOST);
+    verify(channel).setPort(REMOTE_PORT);
+    verify(channel).connect(CONNECT_TIMEOUT);
+    assertThat(socket.isConnected(), is(true));
+    assertThat(socket.getRemoteSocketAddress(), is(InetSocketAddress.createUnresolved("ignored", 1)));
+
+    socket.getOutputStream().write(new byte[] { 1, 2, 3 });
+    assertThat(sent.toByteArray(), is(new byte[] { 1, 2, 3 }));
+
+    received.get().write(new byte[] { 4, 5 });
+    InputStream input = socket.getInputStream();
+    assertThat(input.read(), is(4));
+    assertThat(input.read(), is(5));
+    received.get().close();
+    assertThat(input.read(), is(-1));
+
+    socket.close();
+    assertThat(socket.isClosed(), is(true));
+    verify(channel).disconnect();
+  }
+
+  @Test
+  public void connectTimeout() throws Exception {
+    socketFactory.ensureOpen();
+    Socket socket = socketFactory.createSocket();
+    assertThat(socket.isConnected(), is(false));
+    socket.connect(InetSocketAddress.createUnresolved("ignored", 1), 200);
+    verify(channel).connect(200);
+  }
+
+  @Test
+  public void channelOpenFailure() throws Exception {
+    socketFactory.ensureOpen();
+    doThrow(new JSchException("refused")).when(channel).connect(CONNECT_TIMEOUT);
+    try {
+      socketFactory.createSocket("ignored", 1);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      verify(channel).disconnect();
+    }
+  }
+
+  @Test
+  public void ensureOpenDoesNotReconnectOpenSession() throws Exception {
+    socketFactory.ensureOpen();
+    socketFactory.ensureOpen();
+    socketFactory.createSocket("ignored", 1);
+    verify(session).connect();
+  }
+
+  @Test
+  public void ensureOpenReconnectsDroppedSession() throws Exception {
+    socketFactory.ensureOpen();
+    when(session.isConnected()).thenReturn(false, false, true);
+    socketFactory.ensureOpen();
+    verify(session, times(2)).connect();
+  }
+
+  @Test
+  public void closeReleasesSessionChain() throws Exception {
+    socketFactory.ensureOpen();
+    socketFactory.close();
+    verify(session).disconnect();
+    try {
+      socketFactory.createSocket("ignored", 1);
+      fail("Expected SocketException");
+    } catch (SocketException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void reopenAfterClose() throws Exception {
+    socketFactory.ensureOpen();
+    socketFactory.close();
+    socketFactory.ensureOpen();
+    socketFactory.createSocket("ignored", 1);
+    verify(session, times(2)).connect();
+  }
+
+  @Test(expected = SocketException.class)
+  public void closedFactoryBeforeOpen() throws Exception {
+    socketFactory.createSocket("ignored", 1);
+  }
+
+}
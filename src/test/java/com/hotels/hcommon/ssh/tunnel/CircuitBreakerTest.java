@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.hotels.hcommon.ssh.SshException;
+
+public class CircuitBreakerTest {
+
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker("hop", 1000, 4000, 2, nanoTime::get);
+
+  @Test
+  public void closedUntilFailureThreshold() {
+    circuitBreaker.acquire();
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    circuitBreaker.acquire();
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+  }
+
+  @Test
+  public void successResetsFailures() {
+    circuitBreaker.onFailure();
+    circuitBreaker.onSuccess();
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void failFastWhileOpen() {
+    trip();
+    advance(499);
+    assertFailFast();
+  }
+
+  @Test
+  public void singleAttemptWhenHalfOpen() {
+    trip();
+    advance(1000);
+    circuitBreaker.acquire();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    assertFailFast();
+
+    circuitBreaker.onSuccess();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    circuitBreaker.acquire();
+  }
+
+  @Test
+  public void backoffDoublesUpToMax() {
+    trip();
+    advance(1000);
+    circuitBreaker.acquire();
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    // Second trip: between 1000ms and 2000ms
+    advance(999);
+    assertFailFast();
+    advance(1001);
+    circuitBreaker.acquire();
+    circuitBreaker.onFailure();
+    // Third trip: between 2000ms and 4000ms
+    advance(1999);
+    assertFailFast();
+    advance(2001);
+    circuitBreaker.acquire();
+    circuitBreaker.onFailure();
+    // Capped: between 2000ms and 4000ms
+    advance(4000);
+    circuitBreaker.acquire();
+  }
+
+  private void trip() {
+    circuitBreaker.onFailure();
+    circuitBreaker.onFailure();
+  }
+
+  private void advance(long millis) {
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  private void assertFailFast() {
+    try {
+      circuitBreaker.acquire();
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      // expected
+    }
+  }
+
+}
@@ -17,8 +17,14 @@ package com.hotels.hcommon.ssh.tunnel;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,7 +36,10 @@ import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
 import com.pastdev.jsch.tunnel.Tunnel;
 import com.pastdev.jsch.tunnel.TunnelConnectionManager;
 
+import com.hotels.hcommon.ssh.SshException;
 import com.hotels.hcommon.ssh.SshSettings;
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
 import com.hotels.hcommon.ssh.session.SessionFactorySupplier;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -47,6 +56,9 @@ public class DefaultTunnelConnectionManagerFactoryTest {
   public void init() {
     when(sessionFactorySupplier.get()).thenReturn(sessionFactory);
     when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sshSettings.getMetrics()).thenReturn(NoOpTunnelMetrics.INSTANCE);
+    when(sshSettings.getTunnelRoute()).thenReturn(Route.EMPTY);
+    when(sshSettings.getShards()).thenReturn(SshSettings.DEFAULT_SHARDS);
     tunnelConnectionManagerFactory = new DefaultTunnelConnectionManagerFactory(sshSettings, sessionFactorySupplier);
   }
 
@@ -72,21 +84,97 @@ public class DefaultTunnelConnectionManagerFactoryTest {
 
   @Test
   public void localAndRemoteDetails() {
-    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("my-host", 0, "hotels.com",
-        5678);
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("127.0.0.1", 0,
+        "hotels.com", 5678);
     Tunnel tunnel = tunnelConnectionManager.getTunnel("hotels.com", 5678);
     assertThat(tunnel.getAssignedLocalPort() > 0, is(true));
-    assertThat(tunnel.getLocalAlias(), is("my-host"));
+    assertThat(tunnel.getLocalAlias(), is("127.0.0.1"));
     assertThat(tunnel.getDestinationHostname(), is("hotels.com"));
     assertThat(tunnel.getDestinationPort(), is(5678));
   }
 
   @Test
-  public void fullSpec() {
-    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("my-host", 1234,
+  public void fullSpec() throws Exception {
+    int localPort = freePort();
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("127.0.0.1", localPort,
         "hotels.com", 5678);
     Tunnel tunnel = tunnelConnectionManager.getTunnel("hotels.com", 5678);
-    assertThat(tunnel.getSpec(), is("my-host:1234:hotels.com:5678"));
+    assertThat(tunnel.getSpec(), is("127.0.0.1:" + localPort + ":hotels.com:5678"));
+  }
+
+  @Test
+  public void localPortIsReservedUntilClosed() throws Exception {
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5678);
+    int localPort = tunnelConnectionManager.getTunnel("hotels.com", 5678).getAssignedLocalPort();
+    try (ServerSocket socket = new ServerSocket(localPort, 0, InetAddress.getByName("localhost"))) {
+      fail("Local port " + localPort + " should be reserved");
+    } catch (BindException e) {
+      // expected
+    }
+    tunnelConnectionManager.close();
+    new ServerSocket(localPort, 0, InetAddress.getByName("localhost")).close();
+  }
+
+  @Test
+  public void socketFactory() {
+    ChannelSocketFactory socketFactory = tunnelConnectionManagerFactory.createSocketFactory("hotels.com", 5678);
+    assertThat(socketFactory.toString(), is("hotels.com:5678 through localhost->hotels.com"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void socketFactoryInvalidRemotePort() {
+    tunnelConnectionManagerFactory.createSocketFactory("hotels.com", 0);
+  }
+
+  @Test
+  public void dynamic() throws Exception {
+    when(sshSettings.getTunnelRoute()).thenReturn(Route.parse("user@hop1"));
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.createDynamic("localhost", 0);
+    Tunnel tunnel = tunnelConnectionManager.getTunnel("hotels.com", 5678);
+    assertThat(tunnel.getAssignedLocalPort() > 0, is(true));
+    assertThat(tunnel.getLocalAlias(), is("localhost"));
+    tunnelConnectionManager.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void dynamicWithoutRoute() {
+    tunnelConnectionManagerFactory.createDynamic("localhost", 0);
+  }
+
+  @Test
+  public void sharded() throws Exception {
+    when(sshSettings.getShards()).thenReturn(4);
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5678);
+    assertThat(tunnelConnectionManager instanceof ShardedTunnelConnectionManager, is(true));
+    Tunnel tunnel = tunnelConnectionManager.getTunnel("hotels.com", 5678);
+    assertThat(tunnel.getAssignedLocalPort() > 0, is(true));
+    assertThat(tunnel.getDestinationHostname(), is("hotels.com"));
+    tunnelConnectionManager.close();
+  }
+
+  @Test
+  public void channelsLimited() throws Exception {
+    when(sshSettings.getMaxChannelsPerSession()).thenReturn(10);
+    tunnelConnectionManagerFactory = new DefaultTunnelConnectionManagerFactory(sshSettings, sessionFactorySupplier);
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5678);
+    assertThat(tunnelConnectionManager instanceof ShardedTunnelConnectionManager, is(true));
+    tunnelConnectionManager.close();
+  }
+
+  @Test
+  public void channelPool() throws Exception {
+    when(sshSettings.getMinIdleChannels()).thenReturn(1);
+    when(sshSettings.getMaxIdleChannels()).thenReturn(4);
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5678);
+    assertThat(tunnelConnectionManager instanceof ShardedTunnelConnectionManager, is(true));
+    tunnelConnectionManager.close();
+  }
+
+  @Test(expected = SshException.class)
+  public void localPortInUse() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getByName("localhost"))) {
+      tunnelConnectionManagerFactory.create("localhost", socket.getLocalPort(), "hotels.com", 5678);
+    }
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -119,4 +207,30 @@ public class DefaultTunnelConnectionManagerFactoryTest {
     tunnelConnectionManagerFactory.create("host", 1234, "target", -1);
   }
 
+  @Test
+  public void localPortFromRange() throws Exception {
+    int firstPort = freePort();
+    when(sshSettings.getFirstLocalPort()).thenReturn(firstPort);
+    when(sshSettings.getLastLocalPort()).thenReturn(firstPort);
+    tunnelConnectionManagerFactory = new DefaultTunnelConnectionManagerFactory(sshSettings, sessionFactorySupplier);
+    TunnelConnectionManager tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5678);
+    assertThat(tunnelConnectionManager.getTunnel("hotels.com", 5678).getAssignedLocalPort(), is(firstPort));
+    try {
+      tunnelConnectionManagerFactory.create("hotels.com", 5679);
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      // expected: the only port of the range is in use
+    }
+    tunnelConnectionManager.close();
+    tunnelConnectionManager = tunnelConnectionManagerFactory.create("hotels.com", 5679);
+    assertThat(tunnelConnectionManager.getTunnel("hotels.com", 5679).getAssignedLocalPort(), is(firstPort));
+    tunnelConnectionManager.close();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
 }
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.jcraft.jsch.JSchException;
+
+public class HandshakeLimiterTest {
+
+  private static final int PORT = 22;
+
+  private static Thread next(HandshakeLimiter.Sequence handshakes, String host, CountDownLatch acquired) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          handshakes.next(host, PORT);
+          acquired.countDown();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void unlimited() throws Exception {
+    HandshakeLimiter.Sequence handshakes = HandshakeLimiter.UNLIMITED.newSequence();
+    handshakes.next("unlimited", PORT);
+    handshakes.done();
+    assertThat(HandshakeLimiter.UNLIMITED.availablePermits("unlimited", PORT), is(-1));
+  }
+
+  @Test
+  public void waitForPermitOfSameHost() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(1, 0);
+    HandshakeLimiter.Sequence first = limiter.newSequence();
+    first.next("same-host", PORT);
+    assertThat(limiter.availablePermits("same-host", PORT), is(0));
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiting = next(limiter.newSequence(), "same-host", acquired);
+    assertThat(acquired.await(200, TimeUnit.MILLISECONDS), is(false));
+    first.done();
+    assertThat(acquired.await(5, TimeUnit.SECONDS), is(true));
+    waiting.join();
+  }
+
+  @Test
+  public void hostsHaveTheirOwnPermits() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(1, 0);
+    limiter.newSequence().next("host-a", PORT);
+    limiter.newSequence().next("host-b", PORT);
+    assertThat(limiter.availablePermits("host-a", PORT), is(0));
+    assertThat(limiter.availablePermits("host-b", PORT), is(0));
+  }
+
+  @Test
+  public void permitsAreSharedByEveryLimiter() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(2, 0);
+    limiter.newSequence().next("shared-host", PORT);
+    new HandshakeLimiter(2, 0).newSequence().next("shared-host", PORT);
+    assertThat(limiter.availablePermits("shared-host", PORT), is(0));
+  }
+
+  @Test
+  public void smallestLimitApplies() throws Exception {
+    HandshakeLimiter limiter3 = new HandshakeLimiter(3, 0);
+    HandshakeLimiter limiter1 = new HandshakeLimiter(1, 0);
+    HandshakeLimiter.Sequence first = limiter3.newSequence();
+    first.next("mixed-host", PORT);
+    assertThat(limiter3.availablePermits("mixed-host", PORT), is(2));
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiting = next(limiter1.newSequence(), "mixed-host", acquired);
+    assertThat(acquired.await(200, TimeUnit.MILLISECONDS), is(false));
+    assertThat(limiter3.availablePermits("mixed-host", PORT), is(0));
+    first.done();
+    assertThat(acquired.await(5, TimeUnit.SECONDS), is(true));
+    waiting.join();
+    assertThat(limiter3.availablePermits("mixed-host", PORT), is(0));
+  }
+
+  @Test
+  public void failAfterTimeout() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(1, 100);
+    limiter.newSequence().next("busy-host", PORT);
+    try {
+      limiter.newSequence().next("busy-host", PORT);
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(limiter.availablePermits("busy-host", PORT), is(0));
+    }
+  }
+
+  @Test
+  public void holdOnePermitAtATime() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(1, 0);
+    HandshakeLimiter.Sequence handshakes = limiter.newSequence();
+    handshakes.next("first-hop", PORT);
+    handshakes.next("second-hop", PORT);
+    assertThat(limiter.availablePermits("first-hop", PORT), is(1));
+    assertThat(limiter.availablePermits("second-hop", PORT), is(0));
+    handshakes.done();
+    handshakes.done();
+    assertThat(limiter.availablePermits("second-hop", PORT), is(1));
+  }
+
+  @Test
+  public void waitInArrivalOrder() throws Exception {
+    HandshakeLimiter limiter = new HandshakeLimiter(1, 0);
+    HandshakeLimiter.Sequence first = limiter.newSequence();
+    first.next("fifo-host", PORT);
+    CountDownLatch secondAcquired = new CountDownLatch(1);
+    Thread second = next(limiter.newSequence(), "fifo-host", secondAcquired);
+    while (!second.getState().equals(Thread.State.WAITING)) {
+      Thread.sleep(10);
+    }
+    CountDownLatch thirdAcquired = new CountDownLatch(1);
+    next(limiter.newSequence(), "fifo-host", thirdAcquired);
+
+    first.done();
+    assertThat(secondAcquired.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(thirdAcquired.await(200, TimeUnit.MILLISECONDS), is(false));
+  }
+
+}
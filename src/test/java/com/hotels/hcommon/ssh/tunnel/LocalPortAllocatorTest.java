@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.junit.Test;
+
+import com.hotels.hcommon.ssh.SshException;
+
+public class LocalPortAllocatorTest {
+
+  @Test
+  public void allocateEveryPortOfTheRange() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort + 1);
+    LocalPortReservation first = allocator.reserve("localhost");
+    LocalPortReservation second = allocator.reserve("localhost");
+    assertThat(first.getLocalPort(), is(firstPort));
+    assertThat(second.getLocalPort(), is(firstPort + 1));
+    assertThat(allocator.allocatedCount(), is(2));
+    first.release();
+    second.release();
+    assertThat(allocator.allocatedCount(), is(0));
+  }
+
+  @Test(expected = SshException.class)
+  public void rangeExhausted() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort);
+    LocalPortReservation reservation = allocator.reserve("localhost");
+    try {
+      allocator.reserve("localhost");
+    } finally {
+      reservation.release();
+    }
+  }
+
+  @Test
+  public void releasedPortIsNotReusedStraightAway() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort + 1);
+    LocalPortReservation first = allocator.reserve("localhost");
+    first.release();
+    LocalPortReservation second = allocator.reserve("localhost");
+    assertThat(second.getLocalPort(), is(firstPort + 1));
+    LocalPortReservation third = allocator.reserve("localhost");
+    assertThat(third.getLocalPort(), is(firstPort));
+    second.release();
+    third.release();
+  }
+
+  @Test
+  public void skipPortsBoundElsewhere() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort + 1);
+    try (ServerSocket socket = new ServerSocket(firstPort, 0, InetAddress.getByName("localhost"))) {
+      LocalPortReservation reservation = allocator.reserve("localhost");
+      assertThat(reservation.getLocalPort(), is(firstPort + 1));
+      assertThat(allocator.allocatedCount(), is(1));
+      reservation.release();
+    }
+  }
+
+  @Test
+  public void unbindForForwardingThatBindsThePortItself() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort);
+    LocalPortReservation reservation = allocator.reserve("localhost");
+    reservation.unbind();
+    assertThat(reservation.isReserved(), is(false));
+    try (ServerSocket forwarding = new ServerSocket(firstPort, 0, InetAddress.getByName("localhost"))) {
+      // Still allocated to the tunnel
+      assertThat(allocator.allocatedCount(), is(1));
+    }
+    reservation.rebind();
+    assertThat(reservation.isReserved(), is(true));
+    reservation.release();
+    assertThat(allocator.allocatedCount(), is(0));
+  }
+
+  @Test
+  public void unbindFailsWhenPortIsTaken() throws Exception {
+    int firstPort = freeRange();
+    LocalPortAllocator allocator = new LocalPortAllocator(firstPort, firstPort);
+    LocalPortReservation reservation = allocator.reserve("localhost");
+    reservation.unbind();
+    try (ServerSocket other = new ServerSocket(firstPort, 0, InetAddress.getByName("localhost"))) {
+      reservation.unbind();
+      fail("The port is taken");
+    } catch (BindException e) {
+      assertThat(reservation.isReserved(), is(false));
+    }
+    reservation.release();
+  }
+
+  private static int freeRange() throws Exception {
+    while (true) {
+      int port;
+      try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getByName("localhost"))) {
+        port = socket.getLocalPort();
+      }
+      if (port < 65535) {
+        try (ServerSocket socket = new ServerSocket(port + 1, 0, InetAddress.getByName("localhost"))) {
+          return port;
+        } catch (IOException e) {
+          // try another one
+        }
+      }
+    }
+  }
+
+}
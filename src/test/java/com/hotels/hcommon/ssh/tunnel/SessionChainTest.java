@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+
+import com.hotels.hcommon.ssh.SshException;
+import com.hotels.hcommon.ssh.metrics.NoOpTunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionChainTest {
+
+  private static final Route ROUTE = Route.parse("hop1->hop2");
+
+  private @Mock SessionFactory sessionFactory;
+  private @Mock SessionFactoryBuilder sessionFactoryBuilder;
+  private @Mock SessionFactory hopSessionFactory;
+  private @Mock Session session;
+  private @Mock Runnable disconnectListener;
+
+  private SessionChain sessionChain;
+
+  @Before
+  public void init() throws Exception {
+    when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(hopSessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sessionFactoryBuilder.build()).thenReturn(hopSessionFactory);
+    when(hopSessionFactory.newSession()).thenReturn(session);
+    when(session.isConnected()).thenReturn(true);
+    sessionChain = new SessionChain(sessionFactory, ROUTE, 0, 2, null, NoOpTunnelMetrics.INSTANCE);
+    sessionChain.addDisconnectListener(disconnectListener);
+  }
+
+  @Test
+  public void sessionsOfEveryHop() throws Exception {
+    assertThat(sessionChain.getSessions().size(), is(0));
+    sessionChain.open();
+    assertThat(sessionChain.getSessions().size(), is(2));
+  }
+
+  @Test
+  public void reserveChannelsUpToTheLimit() {
+    assertThat(sessionChain.reserveChannel(2), is(true));
+    assertThat(sessionChain.reserveChannel(2), is(true));
+    assertThat(sessionChain.reserveChannel(2), is(false));
+    assertThat(sessionChain.reserveChannel(0), is(true));
+    assertThat(sessionChain.getChannels(), is(3));
+    sessionChain.releaseChannel();
+    sessionChain.releaseChannel();
+    assertThat(sessionChain.reserveChannel(2), is(true));
+  }
+
+  @Test
+  public void notifyChannelReleaseListeners() {
+    AtomicInteger released = new AtomicInteger();
+    Runnable listener = released::incrementAndGet;
+    sessionChain.addChannelReleaseListener(listener);
+    sessionChain.reserveChannel(1);
+    sessionChain.releaseChannel();
+    assertThat(released.get(), is(1));
+
+    sessionChain.removeChannelReleaseListener(listener);
+    sessionChain.reserveChannel(1);
+    sessionChain.releaseChannel();
+    assertThat(released.get(), is(1));
+  }
+
+  @Test
+  public void keepAliveIsSentOnEverySession() throws Exception {
+    sessionChain.open();
+    assertThat(sessionChain.getKeepAliveNanos(), is(-1L));
+    assertThat(sessionChain.sendKeepAlive(), is(true));
+    verify(session, times(2)).sendKeepAliveMsg();
+    assertThat(sessionChain.getKeepAliveNanos() >= 0, is(true));
+  }
+
+  @Test
+  public void keepAliveIsNotSentWhenClosed() throws Exception {
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    verify(session, never()).sendKeepAliveMsg();
+  }
+
+  @Test
+  public void disconnectAfterKeepAliveCountMax() throws Exception {
+    sessionChain.open();
+    doThrow(new IOException("Broken pipe")).when(session).sendKeepAliveMsg();
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    verify(session, never()).disconnect();
+    verify(disconnectListener, never()).run();
+
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    verify(session).disconnect();
+    verify(disconnectListener).run();
+    assertThat(sessionChain.getSessions().size(), is(0));
+  }
+
+  @Test
+  public void missedKeepAlivesAreReset() throws Exception {
+    sessionChain.open();
+    doThrow(new IOException("Broken pipe")).doNothing().when(session).sendKeepAliveMsg();
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    assertThat(sessionChain.sendKeepAlive(), is(true));
+    doThrow(new IOException("Broken pipe")).when(session).sendKeepAliveMsg();
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    verify(disconnectListener, never()).run();
+  }
+
+  @Test
+  public void droppedSessionIsDisconnectedStraightAway() throws Exception {
+    sessionChain.open();
+    when(session.isConnected()).thenReturn(false);
+    assertThat(sessionChain.sendKeepAlive(), is(false));
+    verify(disconnectListener).run();
+  }
+
+  @Test
+  public void removedListenerIsNotNotified() throws Exception {
+    sessionChain.removeDisconnectListener(disconnectListener);
+    sessionChain.open();
+    when(session.isConnected()).thenReturn(false);
+    sessionChain.sendKeepAlive();
+    verify(disconnectListener, never()).run();
+  }
+
+  @Test
+  public void releaseHandshakePermit() throws Exception {
+    when(session.getHost()).thenReturn("chain-host");
+    when(session.getPort()).thenReturn(22);
+    HandshakeLimiter handshakeLimiter = new HandshakeLimiter(1, 0);
+    sessionChain = new SessionChain(sessionFactory, ROUTE, 0, 2, null, NoOpTunnelMetrics.INSTANCE, handshakeLimiter);
+    doThrow(new JSchException("Connection refused")).when(session).connect();
+    try {
+      sessionChain.open();
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(handshakeLimiter.availablePermits("chain-host", 22), is(1));
+    }
+  }
+
+  @Test
+  public void failFastWhileCircuitIsOpen() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(ROUTE.getPath(), 60000, 60000, 1);
+    sessionChain = new SessionChain(sessionFactory, ROUTE, 0, 2, circuitBreaker, NoOpTunnelMetrics.INSTANCE);
+    doThrow(new JSchException("Connection refused")).when(session).connect();
+    try {
+      sessionChain.open();
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+    try {
+      sessionChain.open();
+      fail("Should have thrown SshException");
+    } catch (SshException e) {
+      verify(session).connect();
+    }
+  }
+
+}
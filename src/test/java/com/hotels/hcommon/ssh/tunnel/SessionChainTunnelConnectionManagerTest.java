@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+import com.pastdev.jsch.tunnel.Tunnel;
+
+import com.hotels.hcommon.ssh.metrics.InMemoryTunnelMetrics;
+import com.hotels.hcommon.ssh.route.Route;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionChainTunnelConnectionManagerTest {
+
+  private static final Route ROUTE = Route.parse("user@hop1");
+  private static final Tunnel TUNNEL_A = new Tunnel("localhost", 10001, "remote-a", 9083);
+  private static final Tunnel TUNNEL_B = new Tunnel("localhost", 10002, "remote-b", 9083);
+
+  private @Mock SessionFactory sessionFactory;
+  private @Mock SessionFactoryBuilder sessionFactoryBuilder;
+  private @Mock SessionFactory hopSessionFactory;
+  private @Mock Session session;
+
+  @Before
+  public void init() throws Exception {
+    when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(hopSessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sessionFactoryBuilder.build()).thenReturn(hopSessionFactory);
+    when(hopSessionFactory.newSession()).thenReturn(session);
+    when(session.isConnected()).thenReturn(true);
+  }
+
+  @Test
+  public void openForwardsLocalPort() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(false);
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    verify(sessionFactoryBuilder).setUsername("user");
+    verify(sessionFactoryBuilder).setHostname("hop1");
+    verify(session).connect();
+    verify(session).setPortForwardingL("localhost", 10001, "remote-a", 9083);
+  }
+
+  @Test
+  public void multiHopPathIsProxied() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(false);
+    SessionChainTunnelConnectionManager manager = new SessionChainTunnelConnectionManager(sessionFactory, registry,
+        Route.parse("hop1->user@hop2"), TUNNEL_A);
+    manager.open();
+    verify(sessionFactoryBuilder).setHostname("hop1");
+    verify(sessionFactoryBuilder).setProxy(any(Proxy.class));
+    verify(sessionFactoryBuilder).setUsername("user");
+    verify(sessionFactoryBuilder).setHostname("hop2");
+  }
+
+  @Test
+  public void ensureOpenDoesNotReconnectOpenTunnel() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(false);
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    manager.ensureOpen();
+    verify(session).connect();
+    verify(session).setPortForwardingL("localhost", 10001, "remote-a", 9083);
+  }
+
+  @Test
+  public void ensureOpenReconnectsDroppedSession() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(false);
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    when(session.isConnected()).thenReturn(false, false, true);
+    manager.ensureOpen();
+    verify(session, times(2)).connect();
+  }
+
+  @Test
+  public void dedicatedSessionPerTunnel() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(false);
+    SessionChainTunnelConnectionManager managerA = newManager(registry, TUNNEL_A);
+    SessionChainTunnelConnectionManager managerB = newManager(registry, TUNNEL_B);
+    managerA.open();
+    managerB.open();
+    verify(session, times(2)).connect();
+    assertThat(registry.size(), is(0));
+
+    managerA.close();
+    verify(session).disconnect();
+  }
+
+  @Test
+  public void sharedSessionPerPath() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    SessionChainTunnelConnectionManager managerA = newManager(registry, TUNNEL_A);
+    SessionChainTunnelConnectionManager managerB = newManager(registry, TUNNEL_B);
+    managerA.open();
+    managerB.open();
+    verify(session).connect();
+    verify(session).setPortForwardingL("localhost", 10001, "remote-a", 9083);
+    verify(session).setPortForwardingL("localhost", 10002, "remote-b", 9083);
+    assertThat(registry.size(), is(1));
+
+    managerA.close();
+    verify(session).delPortForwardingL("localhost", 10001);
+    verify(session, never()).disconnect();
+
+    managerB.close();
+    verify(session).delPortForwardingL("localhost", 10002);
+    verify(session).disconnect();
+    assertThat(registry.size(), is(0));
+  }
+
+  @Test
+  public void closeIsIdempotent() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    SessionChainTunnelConnectionManager managerA = newManager(registry, TUNNEL_A);
+    SessionChainTunnelConnectionManager managerB = newManager(registry, TUNNEL_B);
+    managerA.open();
+    managerB.open();
+    managerA.close();
+    managerA.close();
+    verify(session, never()).disconnect();
+  }
+
+  @Test
+  public void reopenAfterClose() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    manager.close();
+    manager.open();
+    verify(session, times(2)).connect();
+    assertThat(registry.size(), is(1));
+  }
+
+  @Test
+  public void getTunnel() throws Exception {
+    SessionChainTunnelConnectionManager manager = newManager(new SessionChainRegistry(false), TUNNEL_A);
+    assertThat(manager.getTunnel("remote-a", 9083), is(sameInstance(TUNNEL_A)));
+    assertThat(manager.getTunnel("remote-b", 9083), is(nullValue()));
+  }
+
+  @Test
+  public void reservedLocalPortIsHandedOverToForwarding() throws Exception {
+    LocalPortReservation reservation = mock(LocalPortReservation.class);
+    SessionChainTunnelConnectionManager manager = new SessionChainTunnelConnectionManager(sessionFactory,
+        new SessionChainRegistry(false), ROUTE, TUNNEL_A, reservation, 0);
+    manager.open();
+    verify(session).setPortForwardingL("localhost", 10001, "remote-a", 9083, reservation);
+    manager.close();
+    verify(reservation).release();
+  }
+
+  @Test
+  public void closeIdleTunnel() throws Exception {
+    LocalPortReservation reservation = mock(LocalPortReservation.class);
+    TunnelActivity activity = mock(TunnelActivity.class);
+    when(reservation.getActivity()).thenReturn(activity);
+    SessionChainTunnelConnectionManager manager = new SessionChainTunnelConnectionManager(sessionFactory,
+        new SessionChainRegistry(false), ROUTE, TUNNEL_A, reservation, 1000);
+    manager.open();
+
+    when(activity.getIdleNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(999));
+    assertThat(manager.closeIfIdle(), is(false));
+    verify(session, never()).disconnect();
+
+    when(activity.getIdleNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(1000));
+    assertThat(manager.closeIfIdle(), is(true));
+    verify(session).delPortForwardingL("localhost", 10001);
+    verify(session).disconnect();
+    verify(reservation).rebind();
+    verify(reservation, never()).release();
+    assertThat(manager.getState(), is(TunnelState.CLOSED));
+
+    manager.ensureOpen();
+    verify(session, times(2)).connect();
+    assertThat(manager.getState(), is(TunnelState.OPEN));
+    manager.close();
+  }
+
+  @Test
+  public void reopenInBackgroundWhenKeepAlivesAreMissed() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true, 0, 1);
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    SessionChain sessionChain = registry.acquire(sessionFactory, ROUTE);
+    when(session.isConnected()).thenReturn(false, false, true);
+    sessionChain.sendKeepAlive();
+    verify(session, timeout(5000).times(2)).connect();
+    registry.release(sessionChain);
+  }
+
+  @Test
+  public void stateTracksOpenAndClose() throws Exception {
+    SessionChainTunnelConnectionManager manager = newManager(new SessionChainRegistry(false), TUNNEL_A);
+    assertThat(manager.getState(), is(TunnelState.CLOSED));
+    manager.open();
+    assertThat(manager.getState(), is(TunnelState.OPEN));
+    manager.close();
+    assertThat(manager.getState(), is(TunnelState.CLOSED));
+  }
+
+  @Test
+  public void failedReopenDegradesTunnel() throws Exception {
+    SessionChainTunnelConnectionManager manager = newManager(new SessionChainRegistry(false), TUNNEL_A);
+    manager.open();
+    when(session.isConnected()).thenReturn(false);
+    doThrow(new JSchException("unreachable")).when(session).connect();
+    try {
+      manager.ensureOpen();
+      fail("Should have thrown JSchException");
+    } catch (JSchException e) {
+      assertThat(manager.getState(), is(TunnelState.DEGRADED));
+    }
+  }
+
+  @Test
+  public void concurrentCallersShareOneReopen() throws Exception {
+    final AtomicBoolean connected = new AtomicBoolean();
+    when(session.isConnected()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) {
+        return connected.get();
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Exception {
+        Thread.sleep(50);
+        connected.set(true);
+        return null;
+      }
+    }).when(session).connect();
+    final SessionChainTunnelConnectionManager manager = newManager(new SessionChainRegistry(false), TUNNEL_A);
+    manager.open();
+    connected.set(false);
+
+    int threads = 20;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            manager.ensureOpen();
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(session, times(2)).connect();
+    assertThat(manager.getState(), is(TunnelState.OPEN));
+  }
+
+  @Test
+  public void reportMetrics() throws Exception {
+    InMemoryTunnelMetrics metrics = new InMemoryTunnelMetrics();
+    SessionChainRegistry registry = new SessionChainRegistry(false, 0, 0, 0, 0, 1, metrics);
+    when(session.getHost()).thenReturn("hop1");
+    SessionChainTunnelConnectionManager manager = newManager(registry, TUNNEL_A);
+    manager.open();
+    assertThat(metrics.getActiveTunnels(), is(1L));
+    assertThat(metrics.getActiveSessions(), is(1L));
+
+    when(session.isConnected()).thenReturn(false, false, true);
+    manager.ensureOpen();
+    assertThat(metrics.getTunnelReopens().getCount(), is(1L));
+    assertThat(metrics.getEnsureOpenWaits().getCount(), is(1L));
+    assertThat(metrics.getHandshakes().get("hop1").getCount(), is(2L));
+    assertThat(metrics.getActiveTunnels(), is(1L));
+    assertThat(metrics.getActiveSessions(), is(1L));
+
+    manager.close();
+    assertThat(metrics.getTunnelCloses(), is(1L));
+    assertThat(metrics.getActiveTunnels(), is(0L));
+    assertThat(metrics.getActiveSessions(), is(0L));
+  }
+
+  private SessionChainTunnelConnectionManager newManager(SessionChainRegistry registry, Tunnel tunnel)
+    throws Exception {
+    return new SessionChainTunnelConnectionManager(sessionFactory, registry, ROUTE, tunnel);
+  }
+
+}
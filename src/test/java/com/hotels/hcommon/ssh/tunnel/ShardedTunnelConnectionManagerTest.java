@@ -0,0 +1,625 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+import com.pastdev.jsch.tunnel.Tunnel;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShardedTunnelConnectionManagerTest {
+
+  private static final Route ROUTE = Route.parse("user@hop1");
+  private static final String LOCAL_HOST = "localhost";
+  private static final String REMOTE_HOST = "remote";
+  private static final int REMOTE_PORT = 9083;
+  private static final int CONNECT_TIMEOUT = 1000;
+
+  private @Mock SessionFactory sessionFactory;
+  private @Mock SessionFactoryBuilder sessionFactoryBuilder;
+  private @Mock SessionFactory hopSessionFactory;
+  private @Mock Session session1;
+  private @Mock Session session2;
+
+  private final BlockingQueue<OutputStream> received = new LinkedBlockingQueue<>();
+  private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+  private final List<ShardedTunnelConnectionManager> tunnelConnectionManagers = new ArrayList<>();
+  private final List<Socket> sockets = new ArrayList<>();
+  private final List<ChannelDirectTCPIP> channels = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void init() throws Exception {
+    when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sessionFactoryBuilder.build()).thenReturn(hopSessionFactory);
+    when(hopSessionFactory.newSession()).thenReturn(session1, session2);
+    for (Session session : new Session[] { session1, session2 }) {
+      when(session.isConnected()).thenReturn(true);
+      when(session.openChannel("direct-tcpip")).thenAnswer(new Answer<ChannelDirectTCPIP>() {
+        @Override
+        public ChannelDirectTCPIP answer(InvocationOnMock invocation) throws Exception {
+          return newChannel();
+        }
+      });
+    }
+  }
+
+  private ChannelDirectTCPIP newChannel() throws Exception {
+    ChannelDirectTCPIP channel = mock(ChannelDirectTCPIP.class);
+    channels.add(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.getOutputStream()).thenReturn(new OutputStream() {
+      @Override
+      public void write(int b) {
+        synchronized (sent) {
+          sent.write(b);
+        }
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        received.add((OutputStream) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(channel).setOutputStream(any(OutputStream.class));
+    return channel;
+  }
+
+  @After
+  public void close() throws Exception {
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    for (ShardedTunnelConnectionManager tunnelConnectionManager : tunnelConnectionManagers) {
+      tunnelConnectionManager.close();
+    }
+  }
+
+  private ShardedTunnelConnectionManager newTunnelConnectionManager(SessionChainRegistry registry, int shards)
+    throws Exception {
+    return newTunnelConnectionManager(registry, shards, ChannelLimits.NONE);
+  }
+
+  private ShardedTunnelConnectionManager newTunnelConnectionManager(
+      SessionChainRegistry registry,
+      int shards,
+      ChannelLimits channelLimits)
+    throws Exception {
+    return newTunnelConnectionManager(registry, shards, channelLimits, 0, 0);
+  }
+
+  private ShardedTunnelConnectionManager newTunnelConnectionManager(
+      SessionChainRegistry registry,
+      int shards,
+      ChannelLimits channelLimits,
+      int minIdleChannels,
+      int maxIdleChannels)
+    throws Exception {
+    LocalPortReservation localPortReservation = LocalPortReservation.reserve(LOCAL_HOST, 0);
+    Tunnel tunnel = new Tunnel(LOCAL_HOST, localPortReservation.getLocalPort(), REMOTE_HOST, REMOTE_PORT);
+    ShardedTunnelConnectionManager tunnelConnectionManager = new ShardedTunnelConnectionManager(sessionFactory,
+        registry, ROUTE, tunnel, localPortReservation, shards, CONNECT_TIMEOUT, channelLimits, minIdleChannels,
+        maxIdleChannels, 0);
+    tunnelConnectionManagers.add(tunnelConnectionManager);
+    return tunnelConnectionManager;
+  }
+
+  private ShardedTunnelConnectionManager newIdleTunnelConnectionManager(TunnelActivity activity, int idleTimeout)
+    throws Exception {
+    LocalPortReservation localPortReservation = new LocalPortReservation(
+        new ActivityTrackingServerSocket(0, 0, InetAddress.getByName(LOCAL_HOST), activity), activity);
+    Tunnel tunnel = new Tunnel(LOCAL_HOST, localPortReservation.getLocalPort(), REMOTE_HOST, REMOTE_PORT);
+    ShardedTunnelConnectionManager tunnelConnectionManager = new ShardedTunnelConnectionManager(sessionFactory,
+        new SessionChainRegistry(false), ROUTE, tunnel, localPortReservation, 1, CONNECT_TIMEOUT, ChannelLimits.NONE, 0,
+        0, idleTimeout);
+    tunnelConnectionManagers.add(tunnelConnectionManager);
+    return tunnelConnectionManager;
+  }
+
+  private Socket connect(ShardedTunnelConnectionManager tunnelConnectionManager) throws Exception {
+    Socket socket = new Socket(LOCAL_HOST,
+        tunnelConnectionManager.getTunnel(REMOTE_HOST, REMOTE_PORT).getAssignedLocalPort());
+    socket.setSoTimeout(5000);
+    sockets.add(socket);
+    return socket;
+  }
+
+  private OutputStream awaitChannel() throws Exception {
+    OutputStream output = received.poll(5, TimeUnit.SECONDS);
+    if (output == null) {
+      fail("Expected a channel to be opened");
+    }
+    return output;
+  }
+
+  private static void awaitConnections(ShardedTunnelConnectionManager tunnelConnectionManager, int shard, int count)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (tunnelConnectionManager.getConnections(shard) != count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(tunnelConnectionManager.getConnections(shard), is(count));
+  }
+
+  private static void awaitIdleChannels(ShardedTunnelConnectionManager tunnelConnectionManager, int count)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (tunnelConnectionManager.getIdleChannels() != count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(tunnelConnectionManager.getIdleChannels(), is(count));
+  }
+
+  @Test
+  public void openConnectsEveryShard() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    verify(session1).connect();
+    verify(session2).connect();
+    tunnelConnectionManager.ensureOpen();
+    verify(session1).connect();
+    verify(session2).connect();
+  }
+
+  @Test
+  public void stateTracksOpenAndClose() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.CLOSED));
+    tunnelConnectionManager.ensureOpen();
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.OPEN));
+    tunnelConnectionManager.close();
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.CLOSED));
+  }
+
+  @Test
+  public void concurrentCallersShareOneReopen() throws Exception {
+    final AtomicBoolean connected = new AtomicBoolean();
+    for (Session session : new Session[] { session1, session2 }) {
+      when(session.isConnected()).thenAnswer(new Answer<Boolean>() {
+        @Override
+        public Boolean answer(InvocationOnMock invocation) {
+          return connected.get();
+        }
+      });
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Exception {
+          Thread.sleep(50);
+          connected.set(true);
+          return null;
+        }
+      }).when(session).connect();
+    }
+    final ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(
+        new SessionChainRegistry(false), 1);
+    tunnelConnectionManager.open();
+    connected.set(false);
+
+    int threads = 20;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            tunnelConnectionManager.ensureOpen();
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(session1).connect();
+    verify(session2).connect();
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.OPEN));
+  }
+
+  @Test
+  public void reopenInBackgroundWhenKeepAlivesAreMissed() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true, 0, 1);
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(registry, 1);
+    tunnelConnectionManager.open();
+    SessionChain sessionChain = registry.acquire(sessionFactory, ROUTE, 0);
+    when(session1.isConnected()).thenReturn(false);
+    sessionChain.sendKeepAlive();
+    verify(session2, timeout(5000)).connect();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (tunnelConnectionManager.getState() != TunnelState.OPEN && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.OPEN));
+    registry.release(sessionChain);
+  }
+
+  @Test
+  public void closeIdleTunnelWithoutConnections() throws Exception {
+    TunnelActivity activity = mock(TunnelActivity.class);
+    ShardedTunnelConnectionManager tunnelConnectionManager = newIdleTunnelConnectionManager(activity, 1000);
+    tunnelConnectionManager.open();
+
+    when(activity.getIdleNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(999));
+    assertThat(tunnelConnectionManager.closeIfIdle(), is(false));
+
+    Socket socket = connect(tunnelConnectionManager);
+    awaitChannel();
+    when(activity.getIdleNanos()).thenReturn(TimeUnit.MILLISECONDS.toNanos(1000));
+    assertThat(tunnelConnectionManager.closeIfIdle(), is(false));
+    verify(session1, never()).disconnect();
+
+    socket.close();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (tunnelConnectionManager.getConnections() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(tunnelConnectionManager.closeIfIdle(), is(true));
+    verify(session1).disconnect();
+    assertThat(tunnelConnectionManager.getSessions(), is(0));
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.CLOSED));
+
+    // The local port is still listening and the next connection reopens the tunnel
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    verify(session2).connect();
+    assertThat(tunnelConnectionManager.getState(), is(TunnelState.OPEN));
+  }
+
+  @Test
+  public void forwardData() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    Socket socket = connect(tunnelConnectionManager);
+    OutputStream channelOutput = awaitChannel();
+
+    socket.getOutputStream().write(new byte[] { 1, 2, 3 });
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sent.size() < 3 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    synchronized (sent) {
+      assertThat(sent.toByteArray(), is(new byte[] { 1, 2, 3 }));
+    }
+
+    channelOutput.write(new byte[] { 4, 5 });
+    InputStream input = socket.getInputStream();
+    assertThat(input.read(), is(4));
+    assertThat(input.read(), is(5));
+    channelOutput.close();
+    assertThat(input.read(), is(-1));
+    assertThat(tunnelConnectionManager.getTunnel(REMOTE_HOST, REMOTE_PORT).getDestinationHostname(), is(REMOTE_HOST));
+  }
+
+  @Test
+  public void releaseConnectionClosedByClient() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager).close();
+    awaitChannel();
+
+    verify(channels.get(0), timeout(5000)).disconnect();
+    awaitConnections(tunnelConnectionManager, 0, 0);
+    awaitConnections(tunnelConnectionManager, 1, 0);
+    assertThat(tunnelConnectionManager.getConnections(), is(0));
+  }
+
+  @Test
+  public void spreadConnectionsOverShards() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    verify(session1).openChannel("direct-tcpip");
+    verify(session2).openChannel("direct-tcpip");
+    assertThat(tunnelConnectionManager.getConnections(0), is(1));
+    assertThat(tunnelConnectionManager.getConnections(1), is(1));
+  }
+
+  @Test
+  public void preferLeastLoadedShard() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    connect(tunnelConnectionManager);
+    // The remote end closes the connection on the second shard
+    awaitChannel().close();
+    awaitConnections(tunnelConnectionManager, 1, 0);
+
+    // Round-robin would pick the first shard
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    verify(session1, times(1)).openChannel("direct-tcpip");
+    verify(session2, times(2)).openChannel("direct-tcpip");
+    awaitConnections(tunnelConnectionManager, 0, 1);
+    awaitConnections(tunnelConnectionManager, 1, 1);
+  }
+
+  @Test
+  public void shareShardsBetweenTunnels() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    ShardedTunnelConnectionManager tunnelConnectionManager1 = newTunnelConnectionManager(registry, 2);
+    ShardedTunnelConnectionManager tunnelConnectionManager2 = newTunnelConnectionManager(registry, 2);
+    tunnelConnectionManager1.open();
+    tunnelConnectionManager2.open();
+    verify(hopSessionFactory, times(2)).newSession();
+    assertThat(registry.size(), is(2));
+
+    tunnelConnectionManager1.close();
+    verify(session1, timeout(5000).times(0)).disconnect();
+    tunnelConnectionManager2.close();
+    verify(session1).disconnect();
+    verify(session2).disconnect();
+    assertThat(registry.size(), is(0));
+  }
+
+  @Test
+  public void closeReleasesShardsAndConnections() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        2);
+    tunnelConnectionManager.open();
+    Socket socket = connect(tunnelConnectionManager);
+    awaitChannel();
+    tunnelConnectionManager.close();
+    verify(session1).disconnect();
+    verify(session2).disconnect();
+    assertThat(socket.getInputStream().read(), is(-1));
+    assertThat(tunnelConnectionManager.getConnections(), is(0));
+  }
+
+  @Test
+  public void spillOverToExtraSession() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, new ChannelLimits(1, 1, 0));
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    connect(tunnelConnectionManager);
+    OutputStream extraChannelOutput = awaitChannel();
+    verify(session1).openChannel("direct-tcpip");
+    verify(session2).openChannel("direct-tcpip");
+    assertThat(tunnelConnectionManager.getSessions(), is(2));
+
+    // Retired once it doesn't carry any connection
+    extraChannelOutput.close();
+    verify(session2, timeout(5000)).disconnect();
+    assertThat(tunnelConnectionManager.getSessions(), is(1));
+    assertThat(tunnelConnectionManager.getConnections(0), is(1));
+  }
+
+  @Test
+  public void queueUntilChannelReleased() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, new ChannelLimits(1, 0, 5000));
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager);
+    OutputStream channelOutput = awaitChannel();
+    Socket queued = connect(tunnelConnectionManager);
+    assertThat(received.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+
+    channelOutput.close();
+    awaitChannel().write(7);
+    assertThat(queued.getInputStream().read(), is(7));
+    verify(session1, times(2)).openChannel("direct-tcpip");
+    verify(hopSessionFactory).newSession();
+  }
+
+  @Test
+  public void queueUntilChannelReleasedByTunnelSharingSession() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    ChannelLimits channelLimits = new ChannelLimits(1, 0, 5000);
+    ShardedTunnelConnectionManager tunnelConnectionManager1 = newTunnelConnectionManager(registry, 1, channelLimits);
+    ShardedTunnelConnectionManager tunnelConnectionManager2 = newTunnelConnectionManager(registry, 1, channelLimits);
+    tunnelConnectionManager1.open();
+    tunnelConnectionManager2.open();
+    connect(tunnelConnectionManager1);
+    OutputStream channelOutput = awaitChannel();
+    Socket queued = connect(tunnelConnectionManager2);
+    assertThat(received.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+
+    long start = System.nanoTime();
+    channelOutput.close();
+    awaitChannel().write(7);
+    assertThat(queued.getInputStream().read(), is(7));
+    assertThat(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4), is(true));
+    verify(session1, times(2)).openChannel("direct-tcpip");
+    verify(hopSessionFactory).newSession();
+  }
+
+  @Test
+  public void closeConnectionAfterQueueTimeout() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, new ChannelLimits(1, 0, 100));
+    tunnelConnectionManager.open();
+    connect(tunnelConnectionManager);
+    awaitChannel();
+    Socket rejected = connect(tunnelConnectionManager);
+    assertThat(rejected.getInputStream().read(), is(-1));
+    verify(session1).openChannel("direct-tcpip");
+    awaitConnections(tunnelConnectionManager, 0, 1);
+  }
+
+  @Test
+  public void countChannelsOfSharedSessions() throws Exception {
+    SessionChainRegistry registry = new SessionChainRegistry(true);
+    ChannelLimits channelLimits = new ChannelLimits(1, 1, 0);
+    ShardedTunnelConnectionManager tunnelConnectionManager1 = newTunnelConnectionManager(registry, 1, channelLimits);
+    ShardedTunnelConnectionManager tunnelConnectionManager2 = newTunnelConnectionManager(registry, 1, channelLimits);
+    tunnelConnectionManager1.open();
+    tunnelConnectionManager2.open();
+    verify(hopSessionFactory).newSession();
+
+    connect(tunnelConnectionManager1);
+    awaitChannel();
+    connect(tunnelConnectionManager2);
+    awaitChannel();
+    verify(session1).openChannel("direct-tcpip");
+    verify(session2).openChannel("direct-tcpip");
+    assertThat(tunnelConnectionManager2.getSessions(), is(2));
+  }
+
+  @Test
+  public void handPooledChannelToNewConnection() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, ChannelLimits.NONE, 1, 1);
+    tunnelConnectionManager.open();
+    OutputStream pooledOutput = awaitChannel();
+    // Sent by the destination before any connection is made
+    pooledOutput.write(9);
+    awaitIdleChannels(tunnelConnectionManager, 1);
+
+    Socket socket = connect(tunnelConnectionManager);
+    assertThat(socket.getInputStream().read(), is(9));
+    socket.getOutputStream().write(1);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sent.size() < 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    synchronized (sent) {
+      assertThat(sent.toByteArray(), is(new byte[] { 1 }));
+    }
+
+    // Refilled in the background
+    awaitChannel();
+    verify(session1, times(2)).openChannel("direct-tcpip");
+    awaitIdleChannels(tunnelConnectionManager, 1);
+    assertThat(tunnelConnectionManager.getConnections(0), is(2));
+    assertThat(tunnelConnectionManager.getConnections(), is(1));
+
+    tunnelConnectionManager.close();
+    verify(channels.get(1)).disconnect();
+    assertThat(tunnelConnectionManager.getIdleChannels(), is(0));
+  }
+
+  @Test
+  public void releasePooledChannelClosedByClient() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, ChannelLimits.NONE, 1, 1);
+    tunnelConnectionManager.open();
+    OutputStream pooledOutput = awaitChannel();
+    awaitIdleChannels(tunnelConnectionManager, 1);
+
+    connect(tunnelConnectionManager).close();
+    verify(channels.get(0), timeout(5000)).disconnect();
+    // Refilled in the background
+    awaitChannel();
+    awaitIdleChannels(tunnelConnectionManager, 1);
+    awaitConnections(tunnelConnectionManager, 0, 1);
+    assertThat(tunnelConnectionManager.getConnections(), is(0));
+
+    // Closed by JSch once disconnected
+    pooledOutput.close();
+    awaitConnections(tunnelConnectionManager, 0, 1);
+  }
+
+  @Test
+  public void discardPooledChannelClosedByDestination() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, ChannelLimits.NONE, 1, 1);
+    tunnelConnectionManager.open();
+    awaitChannel().close();
+
+    Socket socket = connect(tunnelConnectionManager);
+    verify(channels.get(0), timeout(5000)).disconnect();
+    // The channel of the connection and the one refilling the pool, in any order
+    for (int i = 0; i < 2; i++) {
+      awaitChannel().write(3);
+    }
+    assertThat(socket.getInputStream().read(), is(3));
+    awaitIdleChannels(tunnelConnectionManager, 1);
+  }
+
+  @Test
+  public void discardPooledChannelReceivingTooMuchData() throws Exception {
+    ShardedTunnelConnectionManager tunnelConnectionManager = newTunnelConnectionManager(new SessionChainRegistry(false),
+        1, ChannelLimits.NONE, 1, 1);
+    tunnelConnectionManager.open();
+    OutputStream pooledOutput = awaitChannel();
+    pooledOutput.write(new byte[ChannelPipe.MAX_CAPACITY]);
+    try {
+      pooledOutput.write(1);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+
+    Socket socket = connect(tunnelConnectionManager);
+    verify(channels.get(0), timeout(5000)).disconnect();
+    for (int i = 0; i < 2; i++) {
+      awaitChannel().write(3);
+    }
+    assertThat(socket.getInputStream().read(), is(3));
+  }
+
+}
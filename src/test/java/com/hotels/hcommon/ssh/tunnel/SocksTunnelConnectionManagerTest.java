@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2018-2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hotels.hcommon.ssh.tunnel;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.pastdev.jsch.SessionFactory;
+import com.pastdev.jsch.SessionFactory.SessionFactoryBuilder;
+
+import com.hotels.hcommon.ssh.route.Route;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SocksTunnelConnectionManagerTest {
+
+  private static final Route ROUTE = Route.parse("user@hop1");
+  private static final String LOCAL_HOST = "localhost";
+  private static final String REMOTE_HOST = "remote";
+  private static final int REMOTE_PORT = 9083;
+  private static final int CONNECT_TIMEOUT = 1000;
+
+  private @Mock SessionFactory sessionFactory;
+  private @Mock SessionFactoryBuilder sessionFactoryBuilder;
+  private @Mock SessionFactory hopSessionFactory;
+  private @Mock Session session;
+  private @Mock ChannelDirectTCPIP channel;
+
+  private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+  private final CountDownLatch sentClosed = new CountDownLatch(1);
+  private final AtomicReference<OutputStream> received = new AtomicReference<>();
+  private SocksTunnelConnectionManager tunnelConnectionManager;
+  private int localPort;
+
+  @Before
+  public void init() throws Exception {
+    when(sessionFactory.newSessionFactoryBuilder()).thenReturn(sessionFactoryBuilder);
+    when(sessionFactoryBuilder.build()).thenReturn(hopSessionFactory);
+    when(hopSessionFactory.newSession()).thenReturn(session);
+    when(session.isConnected()).thenReturn(true);
+    when(session.openChannel("direct-tcpip")).thenReturn(channel);
+    when(channel.getOutputStream()).thenReturn(new OutputStream() {
+      @Override
+      public void write(int b) {
+        synchronized (sent) {
+          sent.write(b);
+        }
+      }
+
+      @Override
+      public void close() {
+        sentClosed.countDown();
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        received.set((OutputStream) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(channel).setOutputStream(any(OutputStream.class));
+    LocalPortReservation localPortReservation = LocalPortReservation.reserve(LOCAL_HOST, 0);
+    localPort = localPortReservation.getLocalPort();
+    tunnelConnectionManager = new SocksTunnelConnectionManager(sessionFactory, new SessionChainRegistry(false), ROUTE,
+        LOCAL_HOST, localPortReservation, 1, CONNECT_TIMEOUT, ChannelLimits.NONE);
+  }
+
+  @After
+  public void close() {
+    tunnelConnectionManager.close();
+  }
+
+  private Socket connect(InetSocketAddress destination) throws IOException {
+    Socket socket = new Socket(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(LOCAL_HOST, localPort)));
+    socket.setSoTimeout(5000);
+    socket.connect(destination, 5000);
+    return socket;
+  }
+
+  private byte[] awaitSent(int length) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (System.nanoTime() < deadline) {
+      synchronized (sent) {
+        if (sent.size() >= length) {
+          return sent.toByteArray();
+        }
+      }
+      Thread.sleep(10);
+    }
+    fail("Expected " + length + " bytes to be sent");
+    return null;
+  }
+
+  @Test
+  public void typical() throws Exception {
+    tunnelConnectionManager.open();
+    Socket socket = connect(InetSocketAddress.createUnresolved(REMOTE_HOST, REMOTE_PORT));
+    verify(channel).setHost(REMOTE_HOST);
+    verify(channel).setPort(REMOTE_PORT);
+    verify(channel).connect(CONNECT_TIMEOUT);
+
+    socket.getOutputStream().write(new byte[] { 1, 2, 3 });
+    assertThat(awaitSent(3), is(new byte[] { 1, 2, 3 }));
+
+    received.get().write(new byte[] { 4, 5 });
+    received.get().flush();
+    InputStream input = socket.getInputStream();
+    assertThat(input.read(), is(4));
+    assertThat(input.read(), is(5));
+    received.get().close();
+    assertThat(input.read(), is(-1));
+    socket.close();
+  }
+
+  @Test
+  public void clientEofClosesChannelOutput() throws Exception {
+    tunnelConnectionManager.open();
+    Socket socket = connect(InetSocketAddress.createUnresolved(REMOTE_HOST, REMOTE_PORT));
+    socket.shutdownOutput();
+    assertThat(sentClosed.await(5, TimeUnit.SECONDS), is(true));
+    socket.close();
+  }
+
+  @Test
+  public void ipAddressDestination() throws Exception {
+    tunnelConnectionManager.open();
+    Socket socket = connect(new InetSocketAddress("127.0.0.2", REMOTE_PORT));
+    verify(channel).setHost("127.0.0.2");
+    verify(channel).setPort(REMOTE_PORT);
+    socket.close();
+  }
+
+  @Test
+  public void channelOpenFailure() throws Exception {
+    doThrow(new JSchException("refused")).when(channel).connect(CONNECT_TIMEOUT);
+    tunnelConnectionManager.open();
+    try {
+      connect(InetSocketAddress.createUnresolved(REMOTE_HOST, REMOTE_PORT));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      verify(channel).disconnect();
+    }
+  }
+
+  @Test
+  public void noAcceptableMethod() throws Exception {
+    tunnelConnectionManager.open();
+    try (Socket socket = new Socket(LOCAL_HOST, localPort)) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(new byte[] { 5, 1, 2 });
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      byte[] reply = new byte[2];
+      input.readFully(reply);
+      assertThat(reply, is(new byte[] { 5, (byte) 0xff }));
+      assertThat(input.read(), is(-1));
+    }
+    verify(session, never()).openChannel("direct-tcpip");
+  }
+
+  @Test
+  public void unsupportedCommand() throws Exception {
+    tunnelConnectionManager.open();
+    try (Socket socket = new Socket(LOCAL_HOST, localPort)) {
+      socket.setSoTimeout(5000);
+      // BIND request to 127.0.0.1:80
+      socket.getOutputStream().write(new byte[] { 5, 1, 0, 5, 2, 0, 1, 127, 0, 0, 1, 0, 80 });
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      byte[] reply = new byte[12];
+      input.readFully(reply);
+      assertThat(reply[3], is((byte) 7));
+    }
+    verify(session, never()).openChannel("direct-tcpip");
+  }
+
+  @Test
+  public void getTunnelForAnyDestination() throws Exception {
+    assertThat(tunnelConnectionManager.getTunnel(REMOTE_HOST, REMOTE_PORT).getAssignedLocalPort(), is(localPort));
+    assertThat(tunnelConnectionManager.getTunnel("other", 1).getAssignedLocalPort(), is(localPort));
+  }
+
+  @Test
+  public void ensureOpenDoesNotReconnectOpenSession() throws Exception {
+    tunnelConnectionManager.ensureOpen();
+    tunnelConnectionManager.ensureOpen();
+    verify(session).connect();
+  }
+
+  @Test
+  public void closeReleasesSessionChainAndConnections() throws Exception {
+    tunnelConnectionManager.open();
+    Socket socket = connect(InetSocketAddress.createUnresolved(REMOTE_HOST, REMOTE_PORT));
+    verify(channel, timeout(5000)).connect(CONNECT_TIMEOUT);
+    tunnelConnectionManager.close();
+    verify(session).disconnect();
+    assertThat(socket.getInputStream().read(), is(-1));
+    assertThat(tunnelConnectionManager.getConnections(), is(0));
+    assertThat(isListening(localPort), is(false));
+  }
+
+  /**
+   * The listening socket may still accept connections for a short while after being closed, until the thread blocked
+   * in {@link java.net.ServerSocket#accept()} is woken up.
+   */
+  private static boolean isListening(int port) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (System.nanoTime() < deadline) {
+      try (Socket socket = new Socket(LOCAL_HOST, port)) {
+        // Connecting to a free ephemeral port may connect the socket to itself
+        if (socket.getLocalPort() == port) {
+          return false;
+        }
+      } catch (IOException e) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+}